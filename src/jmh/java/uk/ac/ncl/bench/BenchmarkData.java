@@ -0,0 +1,55 @@
+package uk.ac.ncl.bench;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ncl.structure.Atom;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.structure.Template;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The fixture of a data set, shared by all benchmark threads of a trial.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkData {
+    public final static int SAMPLE_SIZE = 50;
+
+    @Param({"uwcse", "synthetic"})
+    public String dataset;
+
+    public BenchmarkFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = BenchmarkFixture.create(dataset);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    /**
+     * @return at most {@link #SAMPLE_SIZE} rules spread evenly over the rules.
+     */
+    public static List<Rule> sample(Collection<Rule> rules) {
+        List<Rule> all = new ArrayList<>(rules);
+        List<Rule> sample = new ArrayList<>();
+        double step = Math.max(1d, (double) all.size() / SAMPLE_SIZE);
+        for (double i = 0; i < all.size() && sample.size() < SAMPLE_SIZE; i += step) {
+            sample.add(all.get((int) i));
+        }
+        return sample;
+    }
+
+    /**
+     * @return a copy of the abstract rule without measures.
+     */
+    public static Template copy(Rule rule) {
+        List<Atom> bodyAtoms = new ArrayList<>();
+        rule.bodyAtoms.forEach(atom -> bodyAtoms.add(new Atom(atom)));
+        return new Template(new Atom(rule.head), bodyAtoms);
+    }
+}
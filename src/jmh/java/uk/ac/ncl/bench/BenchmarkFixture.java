@@ -0,0 +1,152 @@
+package uk.ac.ncl.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import uk.ac.ncl.Hierarchy.RuleHierarchy;
+import uk.ac.ncl.core.Context;
+import uk.ac.ncl.core.Engine;
+import uk.ac.ncl.model.RH;
+import uk.ac.ncl.structure.FilterSet;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.utils.Helpers;
+import uk.ac.ncl.utils.IO;
+import uk.ac.ncl.utils.SyntheticGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Learns and applies the rules of a single target once, so that the benchmarks can repeat a
+ * single step of the pipeline over its real inputs. The data set is copied or generated under
+ * the benchmark home, and the graph and the phase cache are kept there across forks.
+ */
+public class BenchmarkFixture extends RH {
+    private final static String SYNTHETIC_TARGET = "R1";
+    private final static int SYNTHETIC_RULE_LENGTH = 2;
+
+    public final String target;
+    public final Set<Pair> trainPairs;
+    public final Set<Pair> validPairs;
+    public final Set<Pair> testPairs;
+    public final File ruleIndexFile;
+    /**
+     * Context after generalization and specialization, holding the abstract rules.
+     */
+    public final Context learned;
+    /**
+     * Context after rule application, holding the predictions.
+     */
+    public final Context applied;
+    public final List<Rule> abstractRules;
+    public final Set<Rule> rules;
+
+    private BenchmarkFixture(File config, String target) {
+        super(config, "bench_log");
+        this.target = target;
+        graphFile = new File(home, "databases/graph.db");
+        graph = graphFile.exists() ? IO.loadGraph(graphFile) : Engine.buildGraph(home.getPath());
+        trainFile = new File(home, "data/annotated_train.txt");
+        validFile = new File(home, "data/annotated_valid.txt");
+        testFile = new File(home, "data/annotated_test.txt");
+        ruleFile = new File(out, "rules.txt");
+        ruleIndexHome = new File(out, "index");
+        ruleIndexHome.mkdirs();
+        ruleIndexFile = IO.createEmptyFile(new File(ruleIndexHome, target + ".txt"));
+
+        learned = new Context(target).attach();
+        try(Transaction tx = graph.beginTx()) {
+            trainPairs = IO.readPair(graph, trainFile, target);
+            validPairs = IO.readPair(graph, validFile, target);
+            testPairs = IO.readPair(graph, testFile, target);
+            learned.setTargetFunctional(IO.isTargetFunctional(trainPairs));
+            learned.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
+
+            cachedGeneralization(trainPairs, learned);
+            abstractRules = new ArrayList<>(learned.getAbstractRules());
+            abstractRules.sort(Comparator.comparing(Rule::toString));
+            File targetRuleFile = IO.createEmptyFile(ruleFile);
+            if(!reuseRuleIndex(learned, ruleIndexFile, targetRuleFile)) {
+                specialization(learned, trainPairs, validPairs, ruleIndexFile, targetRuleFile
+                        , new RuleHierarchy(learned.getAbstractRules()));
+                IO.orderRuleIndexFile(ruleIndexFile);
+                cacheRuleIndex(learned, ruleIndexFile, targetRuleFile);
+            }
+            rules = IO.readRules(target, ruleIndexHome, graph, learned.isTargetFunctional());
+
+            applied = newContext().attach();
+            ruleApplication(applied, ruleIndexFile);
+            tx.success();
+        }
+    }
+
+    /**
+     * @param dataset "uwcse" for the bundled UWCSE data, or "synthetic" for a generated graph.
+     */
+    public static BenchmarkFixture create(String dataset) {
+        File root = new File(System.getProperty("rh.bench.root", "."));
+        File home = new File(System.getProperty("rh.bench.home", new File(root, "build/jmh-data").getPath()), dataset);
+        File dataHome = new File(home, "data");
+        JSONObject args = Helpers.buildJSONObject(new File(root, "data/UWCSE/config.json"));
+        String target;
+        if(dataset.equals("synthetic")) {
+            target = SYNTHETIC_TARGET;
+            if(!new File(dataHome, "train.txt").exists()) {
+                JSONObject settings = new JSONObject().put("entities", 10000).put("predicates", 4)
+                        .put("triples", 30000).put("rules", 3);
+                new SyntheticGraph(settings, IO.readSplitRatio(args.getJSONArray("split_ratio"))).write(dataHome);
+            }
+        } else {
+            target = "ADVISED_BY";
+            try {
+                for (String name : new String[]{"train.txt", "valid.txt", "test.txt"}) {
+                    if(!new File(dataHome, name).exists())
+                        FileUtils.copyFile(new File(root, "data/UWCSE/data/" + name), new File(dataHome, name));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+
+        args.put("home", home.getPath());
+        args.put("out", "bench");
+        args.put("target_relation", new JSONArray(Collections.singletonList(target)));
+        if(dataset.equals("synthetic")) {
+            args.put("ins_depth", SYNTHETIC_RULE_LENGTH);
+            args.put("car_depth", SYNTHETIC_RULE_LENGTH);
+        }
+        File config = new File(home, "config.json");
+        try {
+            FileUtils.writeStringToFile(config, args.toString(2), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return new BenchmarkFixture(config, target);
+    }
+
+    /**
+     * @return a context of the target without rules or predictions.
+     */
+    public Context newContext() {
+        Context context = new Context(target);
+        context.setTargetFunctional(learned.isTargetFunctional());
+        context.setFilterSet(learned.getFilterSet());
+        return context;
+    }
+
+    public GraphDatabaseService getGraph() {
+        return graph;
+    }
+
+    public void shutdown() {
+        Context.detach();
+        graph.shutdown();
+    }
+}
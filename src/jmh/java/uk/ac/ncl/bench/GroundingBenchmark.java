@@ -0,0 +1,38 @@
+package uk.ac.ncl.bench;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ncl.core.GraphOps;
+import uk.ac.ncl.structure.Rule;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Body groundings of a sample of the abstract rules, as computed in specialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GroundingBenchmark {
+    private GraphDatabaseService graph;
+    private List<Rule> rules;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) {
+        graph = data.fixture.getGraph();
+        rules = BenchmarkData.sample(data.fixture.abstractRules);
+    }
+
+    @Benchmark
+    public void bodyGroundings(Blackhole blackhole) {
+        try(Transaction tx = graph.beginTx()) {
+            for (Rule rule : rules) {
+                blackhole.consume(GraphOps.bodyGroundingCoreAPI(graph, rule, false, () -> false));
+            }
+            tx.success();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package uk.ac.ncl.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ncl.core.Context;
+import uk.ac.ncl.utils.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ordering of the rule index of the target. Ordering an ordered index repeats the same work, so
+ * the same copy of the index is ordered by every invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OrderIndexBenchmark {
+    private Context context;
+    private File ruleIndexFile;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) throws IOException {
+        context = data.fixture.newContext();
+        ruleIndexFile = new File(data.fixture.ruleIndexFile.getParentFile(), "order_benchmark.txt");
+        FileUtils.copyFile(data.fixture.ruleIndexFile, ruleIndexFile);
+    }
+
+    @Benchmark
+    public void orderRuleIndexFile() {
+        context.attach();
+        IO.orderRuleIndexFile(ruleIndexFile);
+    }
+}
@@ -0,0 +1,44 @@
+package uk.ac.ncl.bench;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ncl.core.Context;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the predictions of rule application into the prediction map of a new context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PredictionMapBenchmark {
+    private BenchmarkFixture fixture;
+    private List<Pair> pairs = new ArrayList<>();
+    private List<Rule> rules = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) {
+        fixture = data.fixture;
+        for (Map.Entry<Pair, List<Rule>> entry : fixture.applied.getPredictionMap().entrySet()) {
+            for (Rule rule : entry.getValue()) {
+                pairs.add(entry.getKey());
+                rules.add(rule);
+            }
+        }
+    }
+
+    @Benchmark
+    public Context putInPredictionMap() {
+        Context context = fixture.newContext();
+        context.initConcurrentMaps();
+        for (int i = 0; i < pairs.size(); i++) {
+            context.putInPredictionMap(pairs.get(i), rules.get(i));
+        }
+        return context;
+    }
+}
@@ -0,0 +1,28 @@
+package uk.ac.ncl.bench;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ncl.Hierarchy.RuleHierarchy;
+import uk.ac.ncl.structure.Rule;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the rule hierarchy over all abstract rules of the target.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RuleHierarchyBenchmark {
+    private List<Rule> rules;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) {
+        rules = data.fixture.abstractRules;
+    }
+
+    @Benchmark
+    public RuleHierarchy ruleHierarchy() {
+        return new RuleHierarchy(rules);
+    }
+}
@@ -0,0 +1,81 @@
+package uk.ac.ncl.bench;
+
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ncl.core.Context;
+import uk.ac.ncl.core.GroundingCache;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.structure.Template;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of the instantiated rules of a sample of the abstract rules. The body groundings
+ * are computed once and shared, so that only the evaluation of the rules is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpecializationBenchmark {
+    private BenchmarkFixture fixture;
+    private GraphDatabaseService graph;
+    private List<Rule> rules;
+    private GroundingCache groundings = new GroundingCache();
+
+    private Multimap<Long, Long> objOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
+    private Multimap<Long, Long> subOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
+    private Multimap<Long, Long> validObjToSub = MultimapBuilder.hashKeys().hashSetValues().build();
+    private Multimap<Long, Long> validSubToObj = MultimapBuilder.hashKeys().hashSetValues().build();
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) {
+        fixture = data.fixture;
+        graph = fixture.getGraph();
+        rules = BenchmarkData.sample(fixture.abstractRules);
+        for (Pair trainPair : fixture.trainPairs) {
+            objOriginalMap.put(trainPair.objId, trainPair.subId);
+            subOriginalMap.put(trainPair.subId, trainPair.objId);
+        }
+        for (Pair validPair : fixture.validPairs) {
+            validObjToSub.put(validPair.objId, validPair.subId);
+            validSubToObj.put(validPair.subId, validPair.objId);
+        }
+
+        Context context = fixture.newContext();
+        context.setGroundingCache(groundings);
+        try(Transaction tx = graph.beginTx()) {
+            for (Rule rule : rules) {
+                context.learningGroundings(graph, rule);
+            }
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    public void specialization(Blackhole blackhole) throws InterruptedException {
+        Context context = fixture.newContext().attach();
+        context.setGroundingCache(groundings);
+        BlockingQueue<String> ruleFileContents = new LinkedBlockingDeque<>();
+        BlockingQueue<String> indexFileContents = new LinkedBlockingDeque<>();
+        try(Transaction tx = graph.beginTx()) {
+            for (Rule rule : rules) {
+                Template template = BenchmarkData.copy(rule);
+                context.restoreAbstractRule(template, 1);
+                template.specialization(graph, fixture.trainPairs, fixture.validPairs
+                        , template.isFromSubject() ? objOriginalMap : subOriginalMap
+                        , template.isFromSubject() ? validObjToSub : validSubToObj
+                        , context, ruleFileContents, indexFileContents, context.getProfiler().start(template));
+            }
+            tx.success();
+        }
+        blackhole.consume(indexFileContents);
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.ncl.core;
+
+import com.google.common.collect.Multimap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ncl.Settings;
+import uk.ac.ncl.bench.BenchmarkData;
+import uk.ac.ncl.bench.BenchmarkFixture;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranking of the candidates of a sample of tail queries, by the recursive tie sorting of
+ * {@link Evaluator#rankCandidates} and by the threshold algorithm used to create the queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RankingBenchmark {
+    private Evaluator evaluator;
+    private Multimap<Pair, Rule> ruleMap;
+    private List<Pair> queries = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkData data) {
+        BenchmarkFixture fixture = data.fixture;
+        evaluator = new Evaluator(fixture.testPairs, fixture.applied.getFilterSet().buildFilterSet()
+                , fixture.applied, null, null, fixture.getGraph());
+        ruleMap = fixture.applied.getPredictionMultiMap();
+        List<Pair> testPairs = new ArrayList<>(fixture.testPairs);
+        testPairs.sort(Comparator.comparingLong((Pair pair) -> pair.subId).thenComparingLong(pair -> pair.objId));
+        for (Pair testPair : testPairs) {
+            if(queries.size() < BenchmarkData.SAMPLE_SIZE && evaluator.subIndex.containsKey(testPair.subId))
+                queries.add(testPair);
+        }
+    }
+
+    @Benchmark
+    public void rankCandidates(Blackhole blackhole) {
+        for (Pair query : queries) {
+            blackhole.consume(evaluator.rankCandidates(evaluator.subIndex.get(query.subId), ruleMap));
+        }
+    }
+
+    @Benchmark
+    public void selectTopCandidates(Blackhole blackhole) {
+        for (Pair query : queries) {
+            Pair[] answers = evaluator.sortedAccess(evaluator.subIndex.get(query.subId));
+            blackhole.consume(evaluator.selectTopCandidates(answers, query, Settings.TOP_K));
+            blackhole.consume(evaluator.rankOf(query, answers));
+        }
+    }
+}
@@ -6,8 +6,10 @@ import org.json.JSONObject;
 import uk.ac.ncl.core.Engine;
 import uk.ac.ncl.core.Evaluator;
 import uk.ac.ncl.model.RH;
+import uk.ac.ncl.utils.BinaryPredictions;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.IO;
+import uk.ac.ncl.utils.SyntheticGraph;
 import uk.ac.ncl.validations.ValidRuleEvalEfficiency;
 import uk.ac.ncl.validations.ValidRuleQuality;
 
@@ -27,12 +29,18 @@ public class Run {
         options.addOption(Option.builder("sg").longOpt("splitGraph")
                 .desc("Create training/test/validation splits from a graph database.").build());
 
+        options.addOption(Option.builder("sy").longOpt("synthetic")
+                .desc("Generate training/test/validation triple files of a synthetic graph with planted rules.").build());
+
         options.addOption(Option.builder("sf").longOpt("splitFiles")
                 .desc("Create new training/test/validation splits from existing training/test/validation files.").build());
 
         options.addOption(Option.builder("r").longOpt("run")
                 .desc("Learn, apply and evaluate rules for link prediction.").build());
 
+        options.addOption(Option.builder("rs").longOpt("resume")
+                .desc("With -r or -co, skip the targets finished by an earlier run and rebuild the outputs from their segments.").build());
+
         options.addOption(Option.builder("ver").longOpt("verbose").hasArg().argName("INTEGER")
                 .desc("Set the verbosity level of the system.").build());
 
@@ -45,12 +53,27 @@ public class Run {
         options.addOption(Option.builder("ea").longOpt("evalAnyburl").hasArg().argName("FILE")
                 .desc("Evaluate prediction files produced by AnyBURL.").build());
 
+        options.addOption(Option.builder("bt").longOpt("binaryToText").hasArg().argName("FILE")
+                .desc("Convert a binary prediction file to the text format.").build());
+
 //        options.addOption(Option.builder("l").longOpt("learn")
 //                .desc("Learn rules.").build());
 
         options.addOption(Option.builder("a").longOpt("apply")
                 .desc("Apply rules.").build());
 
+        options.addOption(Option.builder("co").longOpt("coordinate").hasArg().argName("INTEGER")
+                .desc("Learn, apply and evaluate rules with targets shared out to the given number of local worker processes.").build());
+
+        options.addOption(Option.builder("sw").longOpt("sweep")
+                .desc("Learn, apply and evaluate rules under every combination of the settings listed in \"sweep\" of the configuration file.").build());
+
+        options.addOption(Option.builder("df").longOpt("differential")
+                .desc("Check that the in-memory grounding engine and the top-k query answering agree with the Neo4j engine and the full ranking.").build());
+
+        options.addOption(Option.builder("w").longOpt("worker").hasArg().argName("ID")
+                .desc("Run as a worker taking targets from a coordinator sharing the output folder.").build());
+
         options.addOption(Option.builder("sbg").longOpt("singleBuild").hasArg().argName("FILE")
                 .desc("Bulid a Neo4j Graph Database from a single triple file.").build());
 
@@ -109,6 +132,12 @@ public class Run {
             if (cmd.hasOption("ea"))
                 Evaluator.evalAnyBURL(cmd.getOptionValue("ea"));
 
+            if (cmd.hasOption("bt")) {
+                File predictionFile = new File(cmd.getOptionValue("bt"));
+                BinaryPredictions.toText(predictionFile, new File(predictionFile.getParentFile()
+                        , predictionFile.getName().replaceAll("\\.bin$", "") + ".txt"));
+            }
+
             if (cmd.hasOption("or"))
                 IO.orderRules(new File(cmd.getOptionValue("or")));
 
@@ -138,6 +167,9 @@ public class Run {
                     eval.evalPrecision();
                 }
 
+                if (cmd.hasOption("sy"))
+                    SyntheticGraph.generate(config);
+
                 if (cmd.hasOption("bg"))
                     Engine.buildGraph(home).shutdown();
 
@@ -158,7 +190,28 @@ public class Run {
 
                 if (cmd.hasOption("r")) {
                     RH system = new RH(config, "log");
-                    system.run();
+                    system.run(cmd.hasOption("rs"));
+                }
+
+                if (cmd.hasOption("co")) {
+                    RH system = new RH(config, "log");
+                    system.coordinate(config, Integer.parseInt(cmd.getOptionValue("co")), cmd.hasOption("rs"));
+                }
+
+                if (cmd.hasOption("sw")) {
+                    RH system = new RH(config, "sweep_log");
+                    system.sweep();
+                }
+
+                if (cmd.hasOption("df")) {
+                    RH system = new RH(config, "differential_log");
+                    system.differential();
+                }
+
+                if (cmd.hasOption("w")) {
+                    String worker = cmd.getOptionValue("w");
+                    RH system = new RH(config, "workers/" + worker);
+                    system.work(worker);
                 }
 
                 if (cmd.hasOption("rha")) {
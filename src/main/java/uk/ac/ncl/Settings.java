@@ -101,11 +101,53 @@ public class Settings {
      */
     public static int TOP_K = 10;
 
+    /**
+     * If write predictions in the binary format (predictions.bin) instead of text. Use option -bt
+     * to convert a binary prediction file to text.
+     */
+    public static boolean BINARY_PREDICTIONS = false;
+
     /**
      * Thread number for multi-threading works.
      */
     public static int THREAD_NUMBER = 4;
 
+    /**
+     * The number of targets learned concurrently, at most THREAD_NUMBER. Threads are shared out among
+     * the running targets, so each target gets THREAD_NUMBER / TARGET_PARALLELISM threads.
+     */
+    public static int TARGET_PARALLELISM = 1;
+
+    /**
+     * If overlap the phases of consecutive targets, e.g. generalize the next target while the current
+     * one is in rule application. Workers of all phases share the THREAD_NUMBER budget.
+     */
+    public static boolean PIPELINE = false;
+
+    /**
+     * If reuse the outputs of generalization and specialization cached under home/cache by earlier runs
+     * with the same data and the settings the phase depends on.
+     */
+    public static boolean PHASE_CACHE = true;
+
+    /**
+     * Seconds between exports of the metrics to [out]/metrics.json and [out]/metrics.prom. When = 0,
+     * the metrics are only exported when the run ends.
+     */
+    public static int METRICS_INTERVAL = 60;
+
+    /**
+     * The number of most expensive templates whose costs in specialization and rule application are
+     * written to [out]/profiles for each target. When = 0, templates are not profiled.
+     */
+    public static int PROFILE_TEMPLATES = 0;
+
+    /**
+     * If record the activity of the threads of the run and write it to [out]/trace.json in the
+     * Chrome Trace Event format.
+     */
+    public static boolean TRACE = false;
+
     /**
      * Logging and debugging print priority.
      * = 1, print only timer and memory usage
@@ -126,6 +168,14 @@ public class Settings {
      */
     public static int BATCH_SIZE = 20000;
 
+    /**
+     * Seed of the path sampling in generalization. When set, every producer samples from a stream of
+     * its own derived from the seed and the batches of the producers are merged in a fixed order, so
+     * that runs with the same settings learn the same abstract rules, unless cut by GEN_TIME.
+     * When = 0, the sampling is not seeded.
+     */
+    public static long SEED = 0;
+
     /**
      * Specify how many relationship types one wants to learn rules for.
      * When = 0, the system will learn rules for all of the types discovered in the knowledge graph.
@@ -160,12 +210,5 @@ public class Settings {
      */
     public static boolean RULE_GRAPH = false;
 
-    /**
-     * Legacy setting. Now serve as a static variable storing current learning target.
-     */
-    public static String TARGET = null;
-
-    public static boolean TARGET_FUNCTIONAL = false;
-
     //###############End#################
 }
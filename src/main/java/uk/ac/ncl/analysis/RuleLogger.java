@@ -1,10 +1,13 @@
 package uk.ac.ncl.analysis;
 
-import uk.ac.ncl.Settings;
+import org.json.JSONObject;
+import uk.ac.ncl.core.Context;
 import uk.ac.ncl.utils.MathUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,11 +23,11 @@ public class RuleLogger {
     public static Map<String, Integer> ARs = new HashMap<>();
 
     public static synchronized void updateARs(int size) {
-        ARs.put(Settings.TARGET, size);
+        ARs.put(target(), size);
     }
 
     public static synchronized int getARs() {
-        return ARs.get(Settings.TARGET);
+        return ARs.get(target());
     }
 
     /**
@@ -35,14 +38,14 @@ public class RuleLogger {
     public static Map<String, Integer> unqualifiedARs = new HashMap<>();
 
     public static synchronized void updateUnqualifiedARs() {
-        if(!unqualifiedARs.containsKey(Settings.TARGET))
-            unqualifiedARs.put(Settings.TARGET, 1);
+        if(!unqualifiedARs.containsKey(target()))
+            unqualifiedARs.put(target(), 1);
         else
-            unqualifiedARs.put(Settings.TARGET, unqualifiedARs.get(Settings.TARGET) + 1);
+            unqualifiedARs.put(target(), unqualifiedARs.get(target()) + 1);
     }
 
     public static synchronized int getUnqualifiedARs() {
-        return unqualifiedARs.get(Settings.TARGET) == null ? 0 : unqualifiedARs.get(Settings.TARGET);
+        return unqualifiedARs.get(target()) == null ? 0 : unqualifiedARs.get(target());
     }
 
     /**
@@ -51,14 +54,14 @@ public class RuleLogger {
     public static Map<String, Integer> qualifiedIRs = new HashMap<>();
 
     public static synchronized void updateQualifiedIRs() {
-        if (!qualifiedIRs.containsKey(Settings.TARGET))
-            qualifiedIRs.put(Settings.TARGET, 1);
+        if (!qualifiedIRs.containsKey(target()))
+            qualifiedIRs.put(target(), 1);
         else
-            qualifiedIRs.put(Settings.TARGET, qualifiedIRs.get(Settings.TARGET) + 1);
+            qualifiedIRs.put(target(), qualifiedIRs.get(target()) + 1);
     }
 
     public static synchronized int getQualifiedIRs() {
-        return qualifiedIRs.get(Settings.TARGET) == null ? 0 : qualifiedIRs.get(Settings.TARGET);
+        return qualifiedIRs.get(target()) == null ? 0 : qualifiedIRs.get(target());
     }
 
     /**
@@ -67,14 +70,14 @@ public class RuleLogger {
     public static Map<String, Integer> qualifiedARs = new HashMap<>();
 
     public static synchronized void updateQualifiedARs() {
-        if(!qualifiedARs.containsKey(Settings.TARGET))
-            qualifiedARs.put(Settings.TARGET, 1);
+        if(!qualifiedARs.containsKey(target()))
+            qualifiedARs.put(target(), 1);
         else
-            qualifiedARs.put(Settings.TARGET, qualifiedARs.get(Settings.TARGET) + 1);
+            qualifiedARs.put(target(), qualifiedARs.get(target()) + 1);
     }
 
     public static synchronized int getQualifiedARs() {
-        return qualifiedARs.get(Settings.TARGET) == null ? 0 : qualifiedARs.get(Settings.TARGET);
+        return qualifiedARs.get(target()) == null ? 0 : qualifiedARs.get(target());
     }
 
 
@@ -83,14 +86,14 @@ public class RuleLogger {
      */
     public static Map<String, Integer> unqualifiedIRs = new HashMap<>();
     public static synchronized void updateUnqualifiedIRs() {
-        if(!unqualifiedIRs.containsKey(Settings.TARGET))
-            unqualifiedIRs.put(Settings.TARGET, 1);
+        if(!unqualifiedIRs.containsKey(target()))
+            unqualifiedIRs.put(target(), 1);
         else
-            unqualifiedIRs.put(Settings.TARGET, unqualifiedIRs.get(Settings.TARGET) + 1);
+            unqualifiedIRs.put(target(), unqualifiedIRs.get(target()) + 1);
     }
 
     public static synchronized int getUnqualifiedIRs() {
-        return unqualifiedIRs.get(Settings.TARGET) == null ? 0 : unqualifiedIRs.get(Settings.TARGET);
+        return unqualifiedIRs.get(target()) == null ? 0 : unqualifiedIRs.get(target());
     }
 
     /**
@@ -98,13 +101,13 @@ public class RuleLogger {
      */
     public static Map<String, Integer> priorPrunedARs = new HashMap<>();
     public static synchronized void updatePriorPrunedARs(int pruned) {
-        if(!priorPrunedARs.containsKey(Settings.TARGET))
-            priorPrunedARs.put(Settings.TARGET, pruned);
+        if(!priorPrunedARs.containsKey(target()))
+            priorPrunedARs.put(target(), pruned);
         else
-            priorPrunedARs.put(Settings.TARGET, priorPrunedARs.get(Settings.TARGET) + pruned);
+            priorPrunedARs.put(target(), priorPrunedARs.get(target()) + pruned);
     }
     public static synchronized int getPriorPrunedARs() {
-        return priorPrunedARs.get(Settings.TARGET) == null ? 0 : priorPrunedARs.get(Settings.TARGET);
+        return priorPrunedARs.get(target()) == null ? 0 : priorPrunedARs.get(target());
     }
 
     /**
@@ -112,13 +115,13 @@ public class RuleLogger {
      */
     public static Map<String, Integer> postPrunedIRs = new HashMap<>();
     public static synchronized void updatePostPrunedIRs() {
-        if(!postPrunedIRs.containsKey(Settings.TARGET))
-            postPrunedIRs.put(Settings.TARGET, 1);
+        if(!postPrunedIRs.containsKey(target()))
+            postPrunedIRs.put(target(), 1);
         else
-            postPrunedIRs.put(Settings.TARGET, postPrunedIRs.get(Settings.TARGET) + 1);
+            postPrunedIRs.put(target(), postPrunedIRs.get(target()) + 1);
     }
     public static synchronized int getPostPrunedIRs() {
-        return postPrunedIRs.get(Settings.TARGET) == null ? 0 : postPrunedIRs.get(Settings.TARGET);
+        return postPrunedIRs.get(target()) == null ? 0 : postPrunedIRs.get(target());
     }
 
     public static double reportAvg(Map<String, Integer> map) {
@@ -131,19 +134,19 @@ public class RuleLogger {
 
     public static Map<String, Integer> IRs = new HashMap<>();
 
-    public static int getIRs() {
-        IRs.put(Settings.TARGET, getQualifiedIRs() + getUnqualifiedIRs() + getPostPrunedIRs());
-        return IRs.get(Settings.TARGET);
+    public static synchronized int getIRs() {
+        IRs.put(target(), getQualifiedIRs() + getUnqualifiedIRs() + getPostPrunedIRs());
+        return IRs.get(target());
     }
 
     static Map<String, Boolean> constraintsTriggered = new HashMap<>();
 
-    public static boolean isConstraintsTriggered() {
-        constraintsTriggered.put(Settings.TARGET, getARs() != getQualifiedARs() + getUnqualifiedARs() + getPriorPrunedARs());
-        return constraintsTriggered.get(Settings.TARGET);
+    public static synchronized boolean isConstraintsTriggered() {
+        constraintsTriggered.put(target(), getARs() != getQualifiedARs() + getUnqualifiedARs() + getPriorPrunedARs());
+        return constraintsTriggered.get(target());
     }
 
-    public static String constraintsTriggeredCount() {
+    public static synchronized String constraintsTriggeredCount() {
         int count = 0;
         for (Boolean value : constraintsTriggered.values()) {
             if(value)
@@ -158,8 +161,59 @@ public class RuleLogger {
     public static Map<String, Integer> specializedARs = new HashMap<>();
 
     public static synchronized int getSpecializedARs() {
-        specializedARs.put(Settings.TARGET, getQualifiedARs() + getUnqualifiedARs() + getPriorPrunedARs());
-        return specializedARs.get(Settings.TARGET);
+        specializedARs.put(target(), getQualifiedARs() + getUnqualifiedARs() + getPriorPrunedARs());
+        return specializedARs.get(target());
     }
 
+    /**
+     * Forgets the counts of the target, e.g. before learning it again under other settings.
+     */
+    public static synchronized void clear(String target) {
+        for (Map<String, ?> map : Arrays.asList(ARs, unqualifiedARs, qualifiedIRs, qualifiedARs, unqualifiedIRs
+                , priorPrunedARs, postPrunedIRs, IRs, constraintsTriggered, specializedARs)) {
+            map.remove(target);
+        }
+    }
+
+    /**
+     * @return the counts of the target that the others are derived from, keyed by name. A count
+     * is left out if it has not been updated for the target, as it is then not averaged over.
+     */
+    public static synchronized JSONObject counts(String target) {
+        JSONObject counts = new JSONObject();
+        for (Map.Entry<String, Map<String, Integer>> entry : countMaps().entrySet()) {
+            Integer count = entry.getValue().get(target);
+            if(count != null)
+                counts.put(entry.getKey(), count);
+        }
+        return counts;
+    }
+
+    /**
+     * Sets the counts of the target to ones taken by {@link #counts}, e.g. when its rules are reused
+     * from an earlier run.
+     */
+    public static synchronized void restore(String target, JSONObject counts) {
+        clear(target);
+        for (Map.Entry<String, Map<String, Integer>> entry : countMaps().entrySet()) {
+            if(counts.has(entry.getKey()))
+                entry.getValue().put(target, counts.getInt(entry.getKey()));
+        }
+    }
+
+    private static Map<String, Map<String, Integer>> countMaps() {
+        Map<String, Map<String, Integer>> maps = new LinkedHashMap<>();
+        maps.put("ARs", ARs);
+        maps.put("unqualifiedARs", unqualifiedARs);
+        maps.put("qualifiedIRs", qualifiedIRs);
+        maps.put("qualifiedARs", qualifiedARs);
+        maps.put("unqualifiedIRs", unqualifiedIRs);
+        maps.put("priorPrunedARs", priorPrunedARs);
+        maps.put("postPrunedIRs", postPrunedIRs);
+        return maps;
+    }
+
+    private static String target() {
+        return Context.current().getTarget();
+    }
 }
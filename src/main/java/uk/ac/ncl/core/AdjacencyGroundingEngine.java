@@ -0,0 +1,150 @@
+package uk.ac.ncl.core;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import uk.ac.ncl.Settings;
+import uk.ac.ncl.structure.Atom;
+import uk.ac.ncl.structure.CountedSet;
+import uk.ac.ncl.structure.InstantiatedRule;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.structure.SimpleInsRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Grounds rules by a DFS over node ids, with the neighbours of a node by predicate and direction
+ * kept in arrays once read from the graph. This avoids the node and relationship proxies and the
+ * path copies of {@link GraphOps#bodyGroundingCoreAPI} on every step. Relationships and neighbours
+ * are kept in the order the graph returns them, so the paths are visited in the same order and
+ * capped groundings are the same.
+ * <p>
+ * The arrays are filled on first use and kept for the lifetime of the engine, so the engine must
+ * not outlive changes to the graph.
+ */
+public class AdjacencyGroundingEngine implements GroundingEngine {
+    private final static long[] EMPTY = new long[0];
+
+    private final Map<String, long[]> relationships = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, long[]>> neighbours = new ConcurrentHashMap<>();
+
+    @Override
+    public CountedSet<Pair> bodyGroundings(GraphDatabaseService graph, Rule pattern, boolean application
+            , Supplier<Boolean> stoppingCondition) {
+        CountedSet<Pair> pairs = new CountedSet<>();
+
+        boolean checkTail = false;
+        if(pattern instanceof InstantiatedRule || pattern instanceof SimpleInsRule) {
+            int type = pattern.getType();
+            if(type == 1 || type == 2) checkTail = true;
+        }
+        Search search = new Search(graph, pattern, pairs, checkTail
+                , application ? Settings.APPLY_GROUNDINGS : Settings.LEARN_GROUNDINGS, stoppingCondition);
+
+        Atom first = pattern.getBodyAtom(0);
+        boolean outgoing = first.direction.equals(Direction.OUTGOING);
+        long[] ends = relationships(graph, first.getBasePredicate());
+        for (int i = 0; i < ends.length; i += 2) {
+            if(search.stop || stoppingCondition.get()) break;
+            search.path[0] = outgoing ? ends[i] : ends[i + 1];
+            search.path[1] = outgoing ? ends[i + 1] : ends[i];
+            search.ground(1);
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the start and end nodes of the relationships of the predicate, in the order of
+     * {@link GraphOps#getRelationshipsAPI}.
+     */
+    private long[] relationships(GraphDatabaseService graph, String predicate) {
+        return relationships.computeIfAbsent(predicate, k -> {
+            List<Relationship> list = new ArrayList<>(GraphOps.getRelationshipsAPI(graph, k));
+            long[] ends = new long[list.size() * 2];
+            for (int i = 0; i < list.size(); i++) {
+                ends[i * 2] = list.get(i).getStartNodeId();
+                ends[i * 2 + 1] = list.get(i).getEndNodeId();
+            }
+            return ends;
+        });
+    }
+
+    private long[] neighbours(GraphDatabaseService graph, Atom atom, long node) {
+        return neighbours.computeIfAbsent(atom.predicate + "|" + atom.direction, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(node, k -> {
+                    Node start = graph.getNodeById(k);
+                    List<Long> list = new ArrayList<>();
+                    for (Relationship relationship : start.getRelationships(atom.direction, RelationshipType.withName(atom.predicate))) {
+                        list.add(relationship.getOtherNodeId(k));
+                    }
+                    if(list.isEmpty())
+                        return EMPTY;
+                    long[] ids = new long[list.size()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = list.get(i);
+                    }
+                    return ids;
+                });
+    }
+
+    /**
+     * State of the search for the groundings of a rule, where path holds the nodes of the current path.
+     */
+    private class Search {
+        final GraphDatabaseService graph;
+        final Rule pattern;
+        final CountedSet<Pair> pairs;
+        final boolean checkTail;
+        final int cap;
+        final Supplier<Boolean> stoppingCondition;
+        final long[] path;
+        boolean stop = false;
+
+        Search(GraphDatabaseService graph, Rule pattern, CountedSet<Pair> pairs, boolean checkTail, int cap
+                , Supplier<Boolean> stoppingCondition) {
+            this.graph = graph;
+            this.pattern = pattern;
+            this.pairs = pairs;
+            this.checkTail = checkTail;
+            this.cap = cap;
+            this.stoppingCondition = stoppingCondition;
+            this.path = new long[pattern.length() + 1];
+        }
+
+        /**
+         * Extends the path of the given length, whose nodes are path[0..length].
+         */
+        void ground(int length) {
+            if(length >= pattern.length()) {
+                if(checkTail && pattern.getTailAnchoring() != path[length]) return;
+                pairs.add(new Pair(path[0], path[length]));
+                if(pairs.size() >= cap)
+                    stop = true;
+                return;
+            }
+            for (long next : neighbours(graph, pattern.getBodyAtom(length), path[length])) {
+                if(stoppingCondition.get()) break;
+
+                if(!visited(next, length)) {
+                    path[length + 1] = next;
+                    ground(length + 1);
+                    if(stop) break;
+                }
+            }
+        }
+
+        private boolean visited(long node, int length) {
+            for (int i = 0; i <= length; i++) {
+                if(path[i] == node) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,24 +1,50 @@
 package uk.ac.ncl.core;
 
 import com.google.common.collect.*;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import uk.ac.ncl.Settings;
 import uk.ac.ncl.structure.Atom;
+import uk.ac.ncl.structure.CountedSet;
+import uk.ac.ncl.structure.FilterSet;
 import uk.ac.ncl.structure.Pair;
 import uk.ac.ncl.structure.Rule;
 import uk.ac.ncl.structure.Template;
 import uk.ac.ncl.utils.IO;
+import uk.ac.ncl.utils.Metrics;
+import uk.ac.ncl.utils.Tracer;
 
 import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Learning state of a single target. Nothing here is shared between targets, so that several
+ * targets can be learned concurrently. Code without access to the context of its target, such as
+ * rule measures and loggers, reads it through {@link #current()}, which is inherited by the worker
+ * threads created after the context is attached to the driver thread.
+ */
 public class Context {
-    private static BiMap<Integer, Rule> indexRule = HashBiMap.create();
-    public Map<Rule, Integer> ruleFrequency = new HashMap<>();
+    private final static InheritableThreadLocal<Context> current = new InheritableThreadLocal<>();
+
+    private final String target;
+    private boolean targetFunctional = false;
+    private FilterSet filterSet;
+    private int threadNumber = Settings.THREAD_NUMBER;
+    private GroundingCache groundingCache;
+    private GroundingEngine groundingEngine = GroundingEngine.NEO4J;
+    private final TemplateProfiler profiler = new TemplateProfiler();
+
+    long genStartTime = 0;
+    long specStartTime = 0;
+    long essentialStartTime = 0;
+
+    private BiMap<Integer, Rule> indexRule = HashBiMap.create();
+    public Map<Rule, Integer> ruleFrequency = new ConcurrentHashMap<>();
 
     private List<Rule> refinedRules = new ArrayList<>();
     private List<Rule> specializedRules = new ArrayList<>();
@@ -27,10 +53,100 @@ public class Context {
     private ConcurrentHashMap<Pair, List<Rule>> predictionMap;
     public Multimap<Rule, Pair> rulePredictionMap = MultimapBuilder.hashKeys().hashSetValues().build();
 
-    private static int index = 0;
+    private int index = 0;
     private int totalInsRules = 0;
     private int essentialRules = 0;
 
+    public Context(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Binds the context to the calling thread and the threads it creates from now on.
+     */
+    public Context attach() {
+        current.set(this);
+        return this;
+    }
+
+    public static void detach() {
+        current.remove();
+    }
+
+    public static Context current() {
+        return current.get();
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isTargetFunctional() {
+        return targetFunctional;
+    }
+
+    public void setTargetFunctional(boolean targetFunctional) {
+        this.targetFunctional = targetFunctional;
+    }
+
+    public FilterSet getFilterSet() {
+        return filterSet;
+    }
+
+    public void setFilterSet(FilterSet filterSet) {
+        this.filterSet = filterSet;
+    }
+
+    /**
+     * @return number of worker threads available to each phase of this target.
+     */
+    public int getThreadNumber() {
+        return threadNumber;
+    }
+
+    public void setThreadNumber(int threadNumber) {
+        this.threadNumber = Math.max(1, threadNumber);
+    }
+
+    public TemplateProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Shares the groundings of the rules with other contexts of the same target.
+     */
+    public void setGroundingCache(GroundingCache groundingCache) {
+        this.groundingCache = groundingCache;
+    }
+
+    public void setGroundingEngine(GroundingEngine groundingEngine) {
+        this.groundingEngine = groundingEngine;
+    }
+
+    public CountedSet<Pair> learningGroundings(GraphDatabaseService graph, Rule rule) {
+        long s = System.nanoTime();
+        CountedSet<Pair> groundings = groundingCache == null
+                ? groundingEngine.bodyGroundings(graph, rule, false, GlobalTimer::stopSpec)
+                : groundingCache.learning(graph, rule, groundingEngine);
+        recordGroundings("learning", rule, groundings, s);
+        return groundings;
+    }
+
+    public CountedSet<Pair> applicationGroundings(GraphDatabaseService graph, Rule rule) {
+        long s = System.nanoTime();
+        CountedSet<Pair> groundings = groundingCache == null
+                ? groundingEngine.bodyGroundings(graph, rule, true, this::checkSuggestionCap)
+                : groundingCache.application(graph, rule, this, groundingEngine);
+        recordGroundings("application", rule, groundings, s);
+        return groundings;
+    }
+
+    private static void recordGroundings(String phase, Rule rule, CountedSet<Pair> groundings, long start) {
+        String length = String.valueOf(rule.length());
+        Metrics.histogram("rh_grounding_seconds", "phase", phase, "length", length).recordSince(start);
+        Metrics.counter("rh_groundings_total", "phase", phase, "length", length).add(groundings.size());
+    }
+
     public Multimap<Pair, Rule> getPredictionMultiMap() {
         Multimap<Pair, Rule> candidateMap = MultimapBuilder.hashKeys().hashSetValues().build();
         for (Map.Entry<Pair, List<Rule>> entry : predictionMap.entrySet()) {
@@ -44,7 +160,7 @@ public class Context {
     }
 
     public void initConcurrentMaps() {
-        predictionMap = new ConcurrentHashMap<>((int) (Settings.SUGGESTION_CAP * 0.3), 0.8f, Settings.THREAD_NUMBER);
+        predictionMap = new ConcurrentHashMap<>((int) (Settings.SUGGESTION_CAP * 0.3), 0.8f, threadNumber);
     }
 
     public boolean checkInsRuleCap() {
@@ -55,7 +171,15 @@ public class Context {
         return predictionMap.size() > Settings.SUGGESTION_CAP;
     }
 
-    public synchronized void putInPredictionMap(Pair pair, Rule rule) {
+    public void putInPredictionMap(Pair pair, Rule rule) {
+        long s = Tracer.begin();
+        synchronized (this) {
+            Tracer.waited(s, "context lock");
+            addPrediction(pair, rule);
+        }
+    }
+
+    private void addPrediction(Pair pair, Rule rule) {
         if(Settings.RULE_GRAPH) {
             if (rule.getValidPrecision() > 0.01 || rule.getQuality() > 0.01 || rule.getLocalF1() > 0.01)
                 rulePredictionMap.put(rule, pair);
@@ -129,6 +253,17 @@ public class Context {
         return new Template(head, bodyAtoms);
     }
 
+    /**
+     * @return the template abstracted from the current path of the walk.
+     */
+    public static Rule createTemplate(GraphDatabaseService graph, Pair pair, PathSampler.Walk walk) {
+        List<Atom> bodyAtoms = Lists.newArrayList();
+        for (int i = 0; i < walk.length; i++) {
+            bodyAtoms.add(new Atom(graph.getNodeById(walk.nodes[i]), graph.getRelationshipById(walk.relationships[i])));
+        }
+        return new Template(new Atom(pair), bodyAtoms);
+    }
+
     public synchronized void updateFreqAndIndex(Rule rule) {
         if(ruleFrequency.containsKey(rule))
             ruleFrequency.put(rule, ruleFrequency.get(rule) + 1);
@@ -138,6 +273,36 @@ public class Context {
         }
     }
 
+    /**
+     * Adds the counts of templates sampled by a thread to their frequencies. Only templates new to
+     * the context take the lock, to be given an index, so threads merge their counts concurrently.
+     *
+     * @param added the templates added recently, which are added to and not counted as known
+     * @return the number of templates known before, not counting those in added
+     */
+    public int mergeFrequencies(ObjectIntHashMap<Rule> counts, Set<Rule> added) {
+        int[] known = new int[1];
+        counts.forEachKeyValue((rule, count) -> {
+            if(ruleFrequency.merge(rule, count, Integer::sum) == count) {
+                added.add(rule);
+                synchronized (this) {
+                    indexRule.put(index++, rule);
+                }
+            } else if(!added.contains(rule))
+                known[0]++;
+        });
+        return known[0];
+    }
+
+    /**
+     * Adds an abstract rule sampled by an earlier run with its frequency.
+     */
+    public synchronized void restoreAbstractRule(Rule rule, int frequency) {
+        if(!ruleFrequency.containsKey(rule))
+            indexRule.put(index++, rule);
+        ruleFrequency.put(rule, frequency);
+    }
+
     public Integer getIndex(Rule rule) {
         Integer r = indexRule.inverse().get(rule);
         if(r == null) {
@@ -0,0 +1,379 @@
+package uk.ac.ncl.core;
+
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.neo4j.graphdb.GraphDatabaseService;
+import uk.ac.ncl.structure.CountedSet;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.structure.SimpleInsRule;
+import uk.ac.ncl.structure.Template;
+import uk.ac.ncl.utils.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that a candidate grounding engine, and the threshold algorithm answering queries, are
+ * equivalent to the reference: the Neo4j DFS of {@link GraphOps#bodyGroundingCoreAPI} and the full
+ * ranking of {@link Evaluator#rankCandidates}. The two sides are run on the same graph and the same
+ * abstract rules, and compared on the body groundings of every template, the rule stats of the
+ * templates, the rule index files and the answers of every query. Every divergence is recorded
+ * with the template it comes from. Divergences of a stage carry over to the later stages, so the
+ * smallest failing template of the earliest diverging stage, the shortest with the fewest reference
+ * groundings, is reported as the one to start debugging from. The time of both sides is recorded
+ * for every stage.
+ * <p>
+ * Answers with equal quality lists are tied and may be ranked in any order by both algorithms,
+ * so the answers of a query are compared up to the order of ties.
+ */
+public class DifferentialHarness {
+    private final static int MAX_DIVERGENCES = 1000;
+    private final static int MAX_DETAILS = 5;
+    private final static List<String> STAGES = Arrays.asList("learning groundings", "application groundings"
+            , "rule stats", "rule index", "tail query", "head query");
+
+    private final GroundingEngine reference;
+    private final GroundingEngine candidate;
+    private final String candidateName;
+    private final List<Divergence> divergences = new ArrayList<>();
+    private final Map<String, long[]> times = new LinkedHashMap<>();
+    private final Map<String, Integer> compared = new LinkedHashMap<>();
+
+    public DifferentialHarness(GroundingEngine reference, GroundingEngine candidate, String candidateName) {
+        this.reference = reference;
+        this.candidate = candidate;
+        this.candidateName = candidateName;
+    }
+
+    public GroundingEngine getReference() {
+        return reference;
+    }
+
+    public GroundingEngine getCandidate() {
+        return candidate;
+    }
+
+    /**
+     * Adds the time taken by a stage on one side.
+     */
+    public synchronized void time(String stage, boolean candidate, long nanos) {
+        times.computeIfAbsent(stage, k -> new long[2])[candidate ? 1 : 0] += nanos;
+    }
+
+    /**
+     * Compares the groundings of the templates by both engines, for learning and for application.
+     * Both engines are timed on every template.
+     */
+    public void compareGroundings(GraphDatabaseService graph, Collection<Rule> templates) {
+        for (Rule template : templates) {
+            for (boolean application : new boolean[]{false, true}) {
+                String stage = application ? "application groundings" : "learning groundings";
+                long s = System.nanoTime();
+                CountedSet<Pair> expected = reference.bodyGroundings(graph, template, application, () -> false);
+                time(stage, false, System.nanoTime() - s);
+                s = System.nanoTime();
+                CountedSet<Pair> actual = candidate.bodyGroundings(graph, template, application, () -> false);
+                time(stage, true, System.nanoTime() - s);
+                count(stage);
+
+                List<String> details = new ArrayList<>();
+                for (Pair pair : expected) {
+                    if(actual.get(pair) != expected.get(pair))
+                        details.add(MessageFormat.format("{0}: {1} vs {2}", pair, expected.get(pair), actual.get(pair)));
+                }
+                for (Pair pair : actual) {
+                    if(expected.get(pair) == -1)
+                        details.add(MessageFormat.format("{0}: -1 vs {1}", pair, actual.get(pair)));
+                }
+                if(!details.isEmpty())
+                    diverged(stage, template, expected.size(), MessageFormat.format("{0} vs {1} groundings; {2}"
+                            , expected.size(), actual.size(), summarize(details)));
+            }
+        }
+    }
+
+    /**
+     * Compares the stats of the templates specialized in the reference and the candidate context.
+     */
+    public void compareRuleStats(Context expected, Context actual) {
+        Map<String, Rule> actualRules = new HashMap<>();
+        for (Rule rule : actual.getAbstractRules()) {
+            actualRules.put(rule.toString(), rule);
+        }
+        for (Rule rule : expected.getAbstractRules()) {
+            count("rule stats");
+            Rule other = actualRules.get(rule.toString());
+            if(other == null)
+                diverged("rule stats", rule, rule.stats.support, "missing from the candidate");
+            else if(!stats(rule).equals(stats(other)))
+                diverged("rule stats", rule, rule.stats.support, stats(rule) + " vs " + stats(other));
+        }
+    }
+
+    private static String stats(Rule rule) {
+        return rule.stats.toIndexString(",") + " | quality " + rule.getQuality();
+    }
+
+    /**
+     * Compares two ordered rule index files. Templates are matched by rule, and the instantiated
+     * rules of a template are compared as sets, since they are written by several threads.
+     */
+    public void compareIndexFiles(File expected, File actual) {
+        Map<String, Set<String>> expectedBlocks = readIndex(expected);
+        Map<String, Set<String>> actualBlocks = readIndex(actual);
+        for (Map.Entry<String, Set<String>> entry : expectedBlocks.entrySet()) {
+            count("rule index");
+            Set<String> other = actualBlocks.get(entry.getKey());
+            Template template = new Template(entry.getKey());
+            if(other == null) {
+                diverged("rule index", template, Integer.MAX_VALUE, "template missing from the candidate index");
+                continue;
+            }
+            if(!other.equals(entry.getValue())) {
+                List<String> details = new ArrayList<>();
+                for (String line : entry.getValue()) {
+                    if(!other.contains(line)) details.add("- " + line);
+                }
+                for (String line : other) {
+                    if(!entry.getValue().contains(line)) details.add("+ " + line);
+                }
+                diverged("rule index", template, Integer.MAX_VALUE, summarize(details));
+            }
+        }
+        for (String key : actualBlocks.keySet()) {
+            if(!expectedBlocks.containsKey(key))
+                diverged("rule index", new Template(key), Integer.MAX_VALUE, "template missing from the reference index");
+        }
+    }
+
+    /**
+     * @return the stats of every template in the index and its instantiated rules, by the line of the
+     * template.
+     */
+    private static Map<String, Set<String>> readIndex(File file) {
+        Map<String, Set<String>> blocks = new LinkedHashMap<>();
+        try(LineIterator l = FileUtils.lineIterator(file)) {
+            Set<String> block = null;
+            while(l.hasNext()) {
+                String line = l.nextLine();
+                if(line.startsWith("ABS: ")) {
+                    String[] words = line.split("ABS: ")[1].split("\t", 4);
+                    block = new HashSet<>();
+                    block.add(words.length > 3 ? words[3] : "");
+                    blocks.put(String.join("\t", words[0], words[1], words[2]), block);
+                } else if(block != null && !line.isEmpty()) {
+                    block.addAll(Arrays.asList(line.split("\t")));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return blocks;
+    }
+
+    /**
+     * Compares the top answers of every test query, ranked by {@link Evaluator#rankCandidates} over the
+     * predictions of the reference, with those selected by the threshold algorithm over the
+     * predictions of the candidate, and the rank of the correct answer on both sides.
+     */
+    public void compareRankings(Evaluator expected, Evaluator actual, Collection<Pair> testPairs, int k) {
+        Multimap<Pair, Rule> ruleMap = MultimapBuilder.hashKeys().hashSetValues().build();
+        for (Map.Entry<Pair, List<Rule>> entry : expected.candidates.entrySet()) {
+            ruleMap.putAll(entry.getKey(), entry.getValue());
+        }
+        for (Pair testPair : testPairs) {
+            compareQuery("tail query", expected, actual, ruleMap, testPair, k
+                    , expected.subIndex.get(testPair.subId), actual.subIndex.get(testPair.subId));
+            compareQuery("head query", expected, actual, ruleMap, testPair, k
+                    , expected.objIndex.get(testPair.objId), actual.objIndex.get(testPair.objId));
+        }
+    }
+
+    private void compareQuery(String stage, Evaluator expected, Evaluator actual, Multimap<Pair, Rule> ruleMap
+            , Pair testPair, int k, Collection<Pair> expectedAnswers, Collection<Pair> actualAnswers) {
+        count(stage);
+        long s = System.nanoTime();
+        List<Pair> filtered = expectedAnswers.stream()
+                .filter(answer -> !expected.isFiltered(answer, testPair)).collect(Collectors.toList());
+        List<Pair> ranked = expected.rankCandidates(filtered, ruleMap);
+        time("queries", false, System.nanoTime() - s);
+        s = System.nanoTime();
+        Pair[] sorted = actual.sortedAccess(actualAnswers);
+        List<Pair> top = actual.selectTopCandidates(sorted, testPair, k);
+        int rank = actual.rankOf(testPair, sorted);
+        time("queries", true, System.nanoTime() - s);
+
+        String query = stage + " " + testPair;
+        if(top.size() != Math.min(k, ranked.size())) {
+            diverged(stage, firstDifferingRule(expected, actual, ranked, top), Integer.MAX_VALUE
+                    , MessageFormat.format("{0}: {1} vs {2} answers", query, Math.min(k, ranked.size()), top.size()));
+            return;
+        }
+        for (int i = 0; i < top.size(); i++) {
+            if(!qualities(expected, ranked.get(i)).equals(qualities(actual, top.get(i)))) {
+                diverged(stage, firstDifferingRule(expected, actual, ranked, top), Integer.MAX_VALUE
+                        , MessageFormat.format("{0}: answer {1} is {2} {3} vs {4} {5}", query, i + 1
+                                , ranked.get(i), summarize(qualities(expected, ranked.get(i)))
+                                , top.get(i), summarize(qualities(actual, top.get(i)))));
+                return;
+            }
+        }
+
+        int position = ranked.indexOf(testPair);
+        int lowest = 0, highest = 0;
+        if(position != -1) {
+            List<Double> testQualities = qualities(expected, testPair);
+            lowest = position + 1;
+            highest = position + 1;
+            while(lowest > 1 && qualities(expected, ranked.get(lowest - 2)).equals(testQualities)) lowest--;
+            while(highest < ranked.size() && qualities(expected, ranked.get(highest)).equals(testQualities)) highest++;
+        }
+        if(rank < lowest || rank > highest)
+            diverged(stage, null, Integer.MAX_VALUE, MessageFormat.format("{0}: rank {1} to {2} vs {3}"
+                    , query, lowest, highest, rank));
+    }
+
+    private static List<Double> qualities(Evaluator evaluator, Pair answer) {
+        List<Rule> rules = evaluator.candidates.get(answer);
+        if(rules == null)
+            return Collections.emptyList();
+        return rules.stream().map(Rule::getQuality).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the template of the first rule predicting an answer of the query on one side only or
+     * with a different quality, or null if both sides predict the answers with the same rules.
+     */
+    private static Rule firstDifferingRule(Evaluator expected, Evaluator actual, List<Pair> ranked, List<Pair> top) {
+        Set<Pair> answers = new LinkedHashSet<>(ranked);
+        answers.addAll(top);
+        for (Pair answer : answers) {
+            Map<String, Double> expectedRules = rules(expected, answer);
+            Map<String, Double> actualRules = rules(actual, answer);
+            for (String rule : union(expectedRules.keySet(), actualRules.keySet())) {
+                if(!Objects.equals(expectedRules.get(rule), actualRules.get(rule)))
+                    return template(expected, actual, answer, rule);
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, Double> rules(Evaluator evaluator, Pair answer) {
+        Map<String, Double> rules = new HashMap<>();
+        for (Rule rule : evaluator.candidates.getOrDefault(answer, Collections.emptyList())) {
+            rules.put(rule.toString(), rule.getQuality());
+        }
+        return rules;
+    }
+
+    private static Rule template(Evaluator expected, Evaluator actual, Pair answer, String rule) {
+        for (Evaluator evaluator : new Evaluator[]{expected, actual}) {
+            for (Rule candidate : evaluator.candidates.getOrDefault(answer, Collections.emptyList())) {
+                if(candidate.toString().equals(rule))
+                    return candidate instanceof SimpleInsRule ? ((SimpleInsRule) candidate).base : candidate;
+            }
+        }
+        return null;
+    }
+
+    private static Set<String> union(Set<String> left, Set<String> right) {
+        Set<String> union = new TreeSet<>(left);
+        union.addAll(right);
+        return union;
+    }
+
+    private synchronized void count(String stage) {
+        compared.merge(stage, 1, Integer::sum);
+    }
+
+    private synchronized void diverged(String stage, Rule template, double size, String detail) {
+        if(divergences.size() < MAX_DIVERGENCES)
+            divergences.add(new Divergence(stage, template, size, detail));
+    }
+
+    private static String summarize(List<?> details) {
+        String summary = details.stream().limit(MAX_DETAILS).map(String::valueOf).collect(Collectors.joining("; "));
+        return details.size() > MAX_DETAILS ? summary + "; ... " + (details.size() - MAX_DETAILS) + " more" : summary;
+    }
+
+    public synchronized boolean isEquivalent() {
+        return divergences.isEmpty();
+    }
+
+    /**
+     * @return the divergence of the earliest stage with the shortest template and the fewest reference
+     * groundings, or null if no divergence comes from a template.
+     */
+    public synchronized Divergence minimalDivergence() {
+        return divergences.stream().filter(divergence -> divergence.template != null)
+                .min(Comparator.comparingInt((Divergence divergence) -> STAGES.indexOf(divergence.stage))
+                        .thenComparingInt(divergence -> divergence.template.length())
+                        .thenComparingDouble(divergence -> divergence.size)
+                        .thenComparing(divergence -> divergence.template.toString()))
+                .orElse(null);
+    }
+
+    /**
+     * Writes the comparisons, the times of both sides and the divergences to the file, and logs the summary.
+     */
+    public synchronized void report(File file) {
+        DecimalFormat f = new DecimalFormat("####.###");
+        StringBuilder sb = new StringBuilder(MessageFormat.format("# Differential: neo4j vs {0}\n", candidateName));
+        sb.append("# Compared: ").append(compared.entrySet().stream()
+                .map(entry -> entry.getKey() + " = " + entry.getValue()).collect(Collectors.joining(" | "))).append("\n");
+        for (Map.Entry<String, long[]> entry : times.entrySet()) {
+            long[] time = entry.getValue();
+            sb.append(MessageFormat.format("# Time of {0}: reference = {1}s | candidate = {2}s | speedup = {3}x\n"
+                    , entry.getKey(), f.format(time[0] / 1e9), f.format(time[1] / 1e9)
+                    , time[1] == 0 ? "-" : f.format((double) time[0] / time[1])));
+        }
+        sb.append("# Divergences: ").append(divergences.size())
+                .append(divergences.size() >= MAX_DIVERGENCES ? " (capped)" : "").append("\n");
+        Divergence minimal = minimalDivergence();
+        if(minimal != null)
+            sb.append("# Minimal Failing Template: ").append(minimal.template).append("\n# ").append(minimal).append("\n");
+        Logger.println(sb.toString(), 1);
+
+        try(PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.print(sb);
+            for (Divergence divergence : divergences) {
+                writer.println(divergence);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    public static class Divergence {
+        final String target;
+        final String stage;
+        final Rule template;
+        final double size;
+        final String detail;
+
+        Divergence(String stage, Rule template, double size, String detail) {
+            Context context = Context.current();
+            this.target = context == null ? "" : context.getTarget();
+            this.stage = stage;
+            this.template = template;
+            this.size = size;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format("{0} | {1} | {2} | {3}", target, stage, template == null ? "-" : template, detail);
+        }
+    }
+}
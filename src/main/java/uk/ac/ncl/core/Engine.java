@@ -4,6 +4,7 @@ import com.google.common.collect.*;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.json.JSONArray;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
 import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Traverser;
@@ -12,22 +13,29 @@ import uk.ac.ncl.analysis.AnalysisUtils;
 import uk.ac.ncl.analysis.RuleLogger;
 import uk.ac.ncl.structure.*;
 import uk.ac.ncl.utils.GraphBuilder;
+import uk.ac.ncl.utils.AsyncWriter;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.IO;
 import uk.ac.ncl.utils.Logger;
+import uk.ac.ncl.utils.Metrics;
+import uk.ac.ncl.utils.PhaseCache;
+import uk.ac.ncl.utils.Tracer;
 import uk.ac.ncl.validations.ValidRuleQuality;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public abstract class Engine {
@@ -49,9 +57,18 @@ public abstract class Engine {
     protected File verificationFile;
     protected File ruleIndexHome;
     protected File graphFile;
+    protected File logFile;
 
     protected Set<String> targets = new HashSet<>();
     protected int globalTargetCounter = 1;
+    protected PhaseCache phaseCache;
+    // Name of the worker process, which commits the segments of its claims itself.
+    protected String worker;
+
+    protected final static String GENERALIZATION = "Generalization";
+    protected final static String SPECIALIZATION = "Specialization";
+    private final static String SEGMENT_MARKER = "finished";
+    private final static String ABSTRACT_RULES = "abstract_rules.txt";
 
     protected Engine(File config, String logName) {
         args = Helpers.buildJSONObject( config );
@@ -59,7 +76,9 @@ public abstract class Engine {
         out = new File(home, args.getString("out"));
         out.mkdir();
 
-        Logger.init(new File(out, logName + ".txt"), false);
+        logFile = new File(out, logName + ".txt");
+        logFile.getParentFile().mkdirs();
+        Logger.init(logFile, false);
         Logger.println("# Augmented GPFL System with Hierarchical Rule Pruning\n" +
                 "# Version: " + Settings.VERSION +  " | Date: " + Settings.DATE, 1);
         Logger.println(MessageFormat.format("# Cores: {0} | JVM RAM: {1}GB | Physical RAM: {2}GB"
@@ -67,14 +86,40 @@ public abstract class Engine {
                 , Helpers.JVMRam()
                 , Helpers.systemRAM()), 1);
 
+        readSettings();
+
+        Metrics.start(out, Settings.METRICS_INTERVAL);
+        HeapSampler.start(new File(out, "heap.json"));
+        if(Settings.TRACE)
+            Tracer.start(new File(out, "trace.json"));
+        phaseCache = new PhaseCache(new File(home, "cache"));
+        Settings.RULE_GRAPH = Helpers.readSetting(args, "rule_graph", Settings.RULE_GRAPH);
+        if(Settings.RULE_GRAPH) {
+            Logger.println("# Initialize Rule Graph at: " + (new File(out, "RuleGraph/databases/graph.db")).getPath(), 1);
+            ruleGraph = GraphOps.createEmptyGraph(new File( out, "RuleGraph"));
+        }
+    }
+
+    /**
+     * Reads the settings from the configuration into {@link Settings}.
+     */
+    protected void readSettings() {
         Settings.CONFIDENCE_OFFSET = Helpers.readSetting(args, "conf_offset", Settings.CONFIDENCE_OFFSET);
         Settings.TOP_K = Helpers.readSetting(args, "top_k", Settings.TOP_K);
+        Settings.BINARY_PREDICTIONS = Helpers.readSetting(args, "binary_predictions", Settings.BINARY_PREDICTIONS);
         Settings.THREAD_NUMBER = Helpers.readSetting(args, "thread_number", Settings.THREAD_NUMBER);
+        Settings.TARGET_PARALLELISM = Helpers.readSetting(args, "target_parallelism", Settings.TARGET_PARALLELISM);
+        Settings.PIPELINE = Helpers.readSetting(args, "pipeline", Settings.PIPELINE);
+        Settings.PHASE_CACHE = Helpers.readSetting(args, "phase_cache", Settings.PHASE_CACHE);
+        Settings.METRICS_INTERVAL = Helpers.readSetting(args, "metrics_interval", Settings.METRICS_INTERVAL);
+        Settings.PROFILE_TEMPLATES = Helpers.readSetting(args, "profile_templates", Settings.PROFILE_TEMPLATES);
+        Settings.TRACE = Helpers.readSetting(args, "trace", Settings.TRACE);
         Settings.VERBOSITY = Helpers.readSetting(args, "verbosity", Settings.VERBOSITY);
         Settings.MIN_INSTANCES = Helpers.readSetting(args, "min_instances", Settings.MIN_INSTANCES);
         Settings.MAX_INSTANCES = Helpers.readSetting(args, "max_instances", Settings.MAX_INSTANCES);
         Settings.SATURATION = Helpers.readSetting(args, "saturation", Settings.SATURATION);
         Settings.BATCH_SIZE = Helpers.readSetting(args, "batch_size", Settings.BATCH_SIZE);
+        Settings.SEED = Helpers.readSetting(args, "seed", Settings.SEED);
         Settings.NEO4J_IDENTIFIER = Helpers.readSetting(args, "neo4j_identifier", Settings.NEO4J_IDENTIFIER);
         Settings.VERIFY_RULE_SIZE = Helpers.readSetting(args, "verify_rule_size", Settings.VERIFY_RULE_SIZE);
         Settings.VERIFY_PREDICTION_SIZE = Helpers.readSetting(args, "verify_prediction_size", Settings.VERIFY_PREDICTION_SIZE);
@@ -102,12 +147,6 @@ public abstract class Engine {
         Settings.APPLY_GROUNDINGS = Helpers.readSettingConditionMax(args, "apply_groundings", Settings.APPLY_GROUNDINGS);
         Settings.SUGGESTION_CAP = Helpers.readSettingConditionMax(args, "suggestion_cap", Settings.SUGGESTION_CAP);
         Settings.INS_RULE_CAP = Helpers.readSettingConditionMax(args, "ins_rule_cap", Settings.INS_RULE_CAP);
-
-        Settings.RULE_GRAPH = Helpers.readSetting(args, "rule_graph", Settings.RULE_GRAPH);
-        if(Settings.RULE_GRAPH) {
-            Logger.println("# Initialize Rule Graph at: " + (new File(out, "RuleGraph/databases/graph.db")).getPath(), 1);
-            ruleGraph = GraphOps.createEmptyGraph(new File( out, "RuleGraph"));
-        }
     }
 
     public static GraphDatabaseService buildGraph(String home) {
@@ -610,6 +649,7 @@ public abstract class Engine {
     }
 
     public void populateTargets() {
+        registerPredicates();
         if(testFile != null)
             targets = IO.readTargets(testFile);
         else {
@@ -637,27 +677,323 @@ public abstract class Engine {
             int randomSelect = args.getInt("randomly_selected_relations");
             if(randomSelect != 0) {
                 List<String> targetList = new ArrayList<>(targets);
-                Collections.shuffle(targetList);
+                Collections.sort(targetList);
+                Collections.shuffle(targetList, Settings.SEED != 0 ? new Random(Settings.SEED) : new Random());
                 targets = new HashSet<>(targetList.subList(0, Math.min(randomSelect, targetList.size())));
             }
         }
     }
 
+    /**
+     * Gives the predicates of the graph their ids in the order of their names, before any target is
+     * learned. Templates are hashed by the ids, so the ids must not depend on the order in which
+     * threads first see the predicates for runs to be reproducible.
+     */
+    private void registerPredicates() {
+        if(graph == null)
+            return;
+        List<String> predicates = new ArrayList<>();
+        try(Transaction tx = graph.beginTx()) {
+            for (RelationshipType type : graph.getAllRelationshipTypes())
+                predicates.add(type.name());
+            tx.success();
+        }
+        Collections.sort(predicates);
+        predicates.forEach(Atom::predicateId);
+    }
+
+    /**
+     * Runs the stage for every target, see {@link #forEachTarget(List, List)}.
+     */
+    protected void forEachTarget(List<String> targets, BiConsumer<Context, Integer> stage) {
+        forEachTarget(targets, Collections.singletonList(stage));
+    }
+
+    /**
+     * Runs the stages for every target with TARGET_PARALLELISM targets in flight. Each target gets its
+     * own context, attached to the threads running its stages, and an equal share of the THREAD_NUMBER
+     * budget. With PIPELINE, every stage has its own lanes, so a target enters a stage as soon as the
+     * previous target leaves it and the phases of consecutive targets overlap. Stages running at once
+     * draw their workers from the slots of {@link Worker}, so a stage can use the slots left free by
+     * the others without more than THREAD_NUMBER workers running in total. When several targets
+     * are in flight, the log of each target is held back until it is done. The segment of a target
+     * is committed once all its stages are done, except in a worker process.
+     *
+     * @param stages accept the context of a target and the position of the target in the list
+     */
+    protected void forEachTarget(List<String> targets, List<BiConsumer<Context, Integer>> stages) {
+        int parallelism = Math.max(1, Math.min(Math.min(Settings.TARGET_PARALLELISM, targets.size())
+                , Settings.THREAD_NUMBER));
+        int threadNumber = Settings.THREAD_NUMBER / parallelism;
+        boolean pipeline = Settings.PIPELINE && stages.size() > 1;
+        boolean capture = parallelism > 1 || (pipeline && targets.size() > 1);
+
+        ExecutorService[] lanes = new ExecutorService[pipeline ? stages.size() : 1];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = Executors.newFixedThreadPool(parallelism);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            int id = i;
+            Context context = new Context(targets.get(id));
+            context.setThreadNumber(threadNumber);
+            Logger.Capture log = capture ? new Logger.Capture() : null;
+            CompletableFuture<Void> future = null;
+            for (int j = 0; j < lanes.length; j++) {
+                List<BiConsumer<Context, Integer>> laneStages = pipeline
+                        ? Collections.singletonList(stages.get(j)) : stages;
+                Runnable stage = () -> {
+                    context.attach();
+                    if(log != null)
+                        Logger.capture(log);
+                    long s = Tracer.begin();
+                    try {
+                        for (BiConsumer<Context, Integer> task : laneStages) {
+                            task.accept(context, id);
+                        }
+                    } finally {
+                        Tracer.end(s, "target", context.getTarget());
+                        Logger.suspend();
+                        Context.detach();
+                    }
+                };
+                future = future == null ? CompletableFuture.runAsync(stage, lanes[j])
+                        : future.thenRunAsync(stage, lanes[j]);
+            }
+            if(worker == null)
+                future = future.thenRun(() -> commitSegment(targets.get(id)));
+            if(log != null)
+                future = future.thenRun(() -> Logger.release(log));
+            futures.add(future);
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Creates an empty working directory for the output files of the target. The files are written
+     * there and only become the segment of the target when it is committed, so a segment is either
+     * complete or absent whenever the run stops.
+     */
+    protected File createSegment(String target) {
+        File segment = partialSegment(target);
+        try {
+            if(segment.exists())
+                FileUtils.deleteDirectory(segment);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        segment.mkdirs();
+        return segment;
+    }
+
+    /**
+     * @return the working directory of the target created by {@link #createSegment}. Every worker has
+     * its own, as a target can be claimed again while an earlier claimant is still writing.
+     */
+    protected File partialSegment(String target) {
+        return new File(segmentHome(), segmentName(target) + (worker == null ? "" : "." + worker) + ".partial");
+    }
+
+    protected File segment(String target) {
+        return new File(segmentHome(), segmentName(target));
+    }
+
+    /**
+     * Marks the target as finished and atomically moves its working directory in place of the segment.
+     * The marker records the configuration the segment was produced with.
+     */
+    protected void commitSegment(String target) {
+        File partial = partialSegment(target);
+        if(!partial.exists())
+            return;
+        try {
+            FileUtils.writeStringToFile(new File(partial, SEGMENT_MARKER), args.toString(), StandardCharsets.UTF_8);
+            File segment = segment(target);
+            if(segment.exists())
+                FileUtils.deleteDirectory(segment);
+            Files.move(partial.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    protected boolean isFinished(String target) {
+        return new File(segment(target), SEGMENT_MARKER).exists();
+    }
+
+    /**
+     * @return the targets without a committed segment or whose segment was produced with another
+     * configuration, or all targets if not resuming, in which case the segments of earlier runs are
+     * removed. Targets rerun after a configuration change take their unchanged phases from the phase cache.
+     */
+    protected List<String> remainingTargets(List<String> targets, boolean resume) {
+        if(!resume) {
+            try {
+                FileUtils.deleteDirectory(segmentHome());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            return targets;
+        }
+
+        List<String> remaining = new ArrayList<>();
+        for (String target : targets) {
+            if(!isFinished(target)) {
+                remaining.add(target);
+                continue;
+            }
+            try {
+                String config = FileUtils.readFileToString(new File(segment(target), SEGMENT_MARKER), StandardCharsets.UTF_8);
+                if(!new JSONObject(config).similar(args)) {
+                    Logger.println("# Target " + target + " was finished with a different configuration, rerun.", 1);
+                    remaining.add(target);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+        Logger.println(MessageFormat.format("\n# Resume: {0} Finished Targets | {1} Remaining Targets"
+                , targets.size() - remaining.size(), remaining.size()), 1);
+        return remaining;
+    }
+
+    /**
+     * Concatenates the segment files of the targets into the global output files in target order.
+     * The segments are kept, so that a resumed run can rebuild the outputs.
+     */
+    protected void mergeSegments(List<String> targets, File... outputs) {
+        List<File> segments = targets.stream().map(this::segment).collect(Collectors.toList());
+        for (File output : outputs) {
+            IO.concatSegments(segments, output);
+        }
+    }
+
+    /**
+     * Writes the profiles of the most expensive templates of the target recorded in the phase to
+     * [out]/profiles/[target]_[phase].csv.
+     */
+    protected void writeProfiles(Context context, boolean application) {
+        if(Settings.PROFILE_TEMPLATES == 0)
+            return;
+        File file = new File(out, "profiles/" + segmentName(context.getTarget())
+                + (application ? "_application.csv" : "_specialization.csv"));
+        context.getProfiler().write(file, application, Settings.PROFILE_TEMPLATES);
+        Logger.println("# Template Profiles: " + file.getPath(), 2);
+    }
+
+    private File segmentHome() {
+        return new File(out, "segments");
+    }
+
+    private static String segmentName(String target) {
+        return target.replaceAll("[:/<>]", "_");
+    }
+
+    /**
+     * @return the inputs the abstract rules of the target depend on: the data and the sampling settings.
+     */
+    protected Map<String, Object> generalizationInputs(String target) {
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put("target", target);
+        for (File file : new File[]{trainFile, validFile, testFile}) {
+            if(file != null)
+                inputs.put(file.getName(), PhaseCache.fingerprint(file));
+        }
+        inputs.put("ins_depth", Settings.INS_DEPTH);
+        inputs.put("car_depth", Settings.CAR_DEPTH);
+        inputs.put("saturation", Settings.SATURATION);
+        inputs.put("batch_size", Settings.BATCH_SIZE);
+        inputs.put("random_walkers", Settings.RANDOM_WALKERS);
+        inputs.put("gen_time", Settings.GEN_TIME);
+        inputs.put("neo4j_identifier", Settings.NEO4J_IDENTIFIER);
+        if(Settings.SEED != 0)
+            inputs.put("seed", Settings.SEED);
+        return inputs;
+    }
+
+    /**
+     * @return the inputs the rule index of the target depends on: the abstract rules and the settings
+     * used to evaluate and prune rules.
+     */
+    protected Map<String, Object> specializationInputs(String target) {
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put("target", target);
+        inputs.put(GENERALIZATION, PhaseCache.key(generalizationInputs(target)));
+        inputs.put("support", Settings.SUPPORT);
+        inputs.put("conf", Settings.CONF);
+        inputs.put("head_coverage", Settings.HEAD_COVERAGE);
+        inputs.put("quality_measure", Settings.QUALITY_MEASURE);
+        inputs.put("conf_offset", Settings.CONFIDENCE_OFFSET);
+        inputs.put("use_sigmoid", Settings.USE_SIGMOID);
+        inputs.put("overfitting_factor", Settings.OVERFITTING_FACTOR);
+        inputs.put("valid_precision", Settings.VALID_PRECISION);
+        inputs.put("learn_groundings", Settings.LEARN_GROUNDINGS);
+        inputs.put("spec_time", Settings.SPEC_TIME);
+        inputs.put("essential_time", Settings.ESSENTIAL_TIME);
+        inputs.put("ins_rule_cap", Settings.INS_RULE_CAP);
+        inputs.put("allow_ins_reverse", Settings.ALLOW_INS_REVERSE);
+        inputs.put("prior_filtering", Settings.PRIOR_FILTERING);
+        // The rule index keeps raw counts since this format, entries of earlier formats can not be read.
+        inputs.put("rule_index", "counts");
+        return inputs;
+    }
+
+    /**
+     * Generalization that takes the abstract rules and their frequencies from the phase cache if
+     * they have been sampled before with the same inputs, and caches them otherwise.
+     */
+    public void cachedGeneralization(Set<Pair> trainPairs, Context context) {
+        if(!Settings.PHASE_CACHE) {
+            generalization(trainPairs, context);
+            return;
+        }
+        Map<String, Object> inputs = generalizationInputs(context.getTarget());
+        String key = PhaseCache.key(inputs);
+        File entry = phaseCache.lookup(GENERALIZATION, key);
+        if(entry != null) {
+            IO.readAbstractRules(new File(entry, ABSTRACT_RULES), context);
+            phaseCache.recordReused(GENERALIZATION);
+            Logger.println("# Generalization: Reused " + key, 1);
+            Logger.println(Context.analyzeRuleComposition("# Generated Abstract Rules"
+                    , context.getAbstractRules()), 1);
+            RuleLogger.updateARs(context.getAbstractRules().size());
+        } else {
+            generalization(trainPairs, context);
+            File partial = phaseCache.begin(GENERALIZATION, key);
+            IO.writeAbstractRules(new File(partial, ABSTRACT_RULES), context);
+            phaseCache.commit(GENERALIZATION, key, partial, inputs);
+            phaseCache.recordComputed(GENERALIZATION);
+        }
+    }
+
     public void generalizationSequential(Set<Pair> trainPairs, Context context) {
         long s = System.currentTimeMillis();
+        HeapSampler.Phase phase = HeapSampler.begin("generalization");
         List<Pair> trainPairList = new ArrayList<>(trainPairs);
         Set<Pair> visitedTrainPairs = new HashSet<>();
         Set<Rule> previousBatch = new HashSet<>();
         Set<Rule> currentBatch = new HashSet<>();
         double saturation = 0d;
         int pathCount = 0;
-        Random rand = new Random();
+        Random rand = Settings.SEED != 0 ? new Random(Settings.SEED) : new Random();
 
         try(Transaction tx = graph.beginTx()) {
             do {
                 Pair pair = trainPairList.get(rand.nextInt(trainPairs.size()));
                 visitedTrainPairs.add(pair);
-                Traverser traverser = GraphOps.buildStandardTraverser(graph, pair, Settings.RANDOM_WALKERS);
+                Traverser traverser = GraphOps.buildStandardTraverser(graph, pair, Settings.RANDOM_WALKERS, rand);
                 for (Path path : traverser) {
                     if (++pathCount % Settings.BATCH_SIZE == 0) {
                         int overlap = 0;
@@ -671,6 +1007,7 @@ public abstract class Engine {
                     }
                     Rule abstractRule = context.abstraction(path, pair);
                     currentBatch.add(abstractRule);
+                    RuleProducer.sampledPaths.increment();
                 }
             } while (saturation < Settings.SATURATION);
             tx.success();
@@ -682,6 +1019,8 @@ public abstract class Engine {
                 , trainPairs.size()
                 , new DecimalFormat("###.##").format(((double) visitedTrainPairs.size() / trainPairs.size()) * 100f)
                 , pathCount));
+        HeapSampler.retained("ruleFrequency", HeapSampler.sizeOfRuleFrequency(context.ruleFrequency));
+        HeapSampler.end(phase);
         GlobalTimer.updateTemplateGenStats(Helpers.timerAndMemory(s, "# Generalization"));
         Logger.println(Context.analyzeRuleComposition("# Generated Templates"
                 , context.getAbstractRules()), 1);
@@ -689,19 +1028,23 @@ public abstract class Engine {
 
     public void generalization(Set<Pair> trainPairs, Context context) {
         long s = System.currentTimeMillis();
-        BlockingQueue<Rule> ruleQueue = new LinkedBlockingDeque<>(Settings.BATCH_SIZE * 2);
-        Set<Pair> visitedTrainPairs = new HashSet<>();
-
-        RuleProducer[] producers = new RuleProducer[Settings.THREAD_NUMBER];
-        RuleConsumer consumer = new RuleConsumer(0, ruleQueue, context);
+        HeapSampler.Phase phase = HeapSampler.begin("generalization");
+        Set<Pair> visitedTrainPairs = ConcurrentHashMap.newKeySet();
+
+        GlobalTimer.setGenStartTime(System.currentTimeMillis());
+        RuleProducer[] producers = new RuleProducer[context.getThreadNumber()];
+        Saturation saturation = new Saturation(context, visitedTrainPairs
+                , Settings.SEED != 0 ? producers.length : 0);
+        PathSampler sampler = new PathSampler(graph, Settings.DEPTH, Settings.RANDOM_WALKERS);
+        SplittableRandom random = Settings.SEED != 0 ? new SplittableRandom(Settings.SEED) : new SplittableRandom();
         for (int i = 0; i < producers.length; i++) {
-            producers[i] = new RuleProducer(i, ruleQueue, trainPairs, visitedTrainPairs, graph, consumer);
+            producers[i] = new RuleProducer(i, trainPairs, graph, saturation
+                    , sampler.walk(random.split()), Math.max(1, Settings.BATCH_SIZE / producers.length));
         }
         try {
             for (RuleProducer producer : producers) {
                 producer.join();
             }
-            consumer.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(-1);
@@ -712,117 +1055,195 @@ public abstract class Engine {
                 , visitedTrainPairs.size()
                 , trainPairs.size()
                 , new DecimalFormat("###.##").format(((double) visitedTrainPairs.size() / trainPairs.size()) * 100f)
-                , consumer.getPathCount()
-                , new DecimalFormat("###.##").format(consumer.getSaturation() * 100f))
+                , saturation.getPathCount()
+                , new DecimalFormat("###.##").format(saturation.getSaturation() * 100f))
         );
+        HeapSampler.retained("ruleFrequency", HeapSampler.sizeOfRuleFrequency(context.ruleFrequency));
+        HeapSampler.end(phase);
         GlobalTimer.updateTemplateGenStats(Helpers.timerAndMemory(s, "# Generalization"));
         Logger.println(Context.analyzeRuleComposition("# Generated Abstract Rules"
                 , context.getAbstractRules()), 1);
         RuleLogger.updateARs(context.getAbstractRules().size());
     }
 
-    static class RuleProducer extends Thread {
+    /**
+     * Samples paths from random training pairs and counts their templates in a map of its own. Every
+     * mergeInterval paths, the counts are merged into the frequencies of the context and added to
+     * the saturation, until the templates are saturated or the generalization time is up.
+     */
+    static class RuleProducer extends Worker {
+        final static LongAdder sampledPaths = Metrics.counter("rh_paths_sampled_total");
         int id;
         List<Pair> trainPairs;
-        BlockingQueue<Rule> ruleQueue;
         GraphDatabaseService graph;
-        Thread consumer;
-        Set<Pair> visitedTrainPairs;
-
-        RuleProducer(int id, BlockingQueue<Rule> ruleQueue, Set<Pair> trainPairs, Set<Pair> visitedTrainPairs
-                , GraphDatabaseService graph, Thread consumer) {
+        Saturation saturation;
+        PathSampler.Walk walk;
+        int mergeInterval;
+        ObjectIntHashMap<Rule> counts = new ObjectIntHashMap<>();
+        Set<Pair> visited = new HashSet<>();
+        Map<TemplateKey, Rule> templates = new HashMap<>();
+        TemplateKey key = new TemplateKey();
+        Pair pair;
+        int paths = 0;
+
+        RuleProducer(int id, Set<Pair> trainPairs, GraphDatabaseService graph
+                , Saturation saturation, PathSampler.Walk walk, int mergeInterval) {
             super("RuleProducer-" + id);
             this.id = id;
-            this.ruleQueue = ruleQueue;
             this.trainPairs = new ArrayList<>(trainPairs);
             this.graph = graph;
-            this.consumer = consumer;
-            this.visitedTrainPairs = visitedTrainPairs;
+            this.saturation = saturation;
+            this.walk = walk;
+            this.mergeInterval = mergeInterval;
             start();
         }
 
         @Override
-        public void run() {
-            Random rand = new Random();
+        protected void work() {
             try(Transaction tx = graph.beginTx()) {
-                while(consumer.isAlive()) {
-                    Pair pair = trainPairs.get(rand.nextInt(trainPairs.size()));
-                    addVisitedPair(pair);
-                    Traverser traverser = GraphOps.buildStandardTraverser(graph, pair, Settings.RANDOM_WALKERS);
-                    for (Path path : traverser) {
-                        Rule rule = Context.createTemplate(path, pair);
-                        while (consumer.isAlive()) {
-                            if (ruleQueue.offer(rule, 100, TimeUnit.MILLISECONDS))
-                                break;
-                        }
-                        if (!consumer.isAlive())
-                            break;
+                while(!saturation.isDone()) {
+                    // Checked for every pair, as pairs with few or no paths may never reach a merge.
+                    if(GlobalTimer.stopGen()) {
+                        saturation.stop();
+                        break;
                     }
+                    pair = trainPairs.get(walk.random().nextInt(trainPairs.size()));
+                    visited.add(pair);
+                    walk.sample(pair, this::count);
                 }
                 tx.success();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                System.exit(-1);
             }
+            saturation.merge(id, counts, visited, paths);
         }
 
-        private synchronized void addVisitedPair(Pair pair) {
-            visitedTrainPairs.add(pair);
+        /**
+         * Counts the template of the current path of the walk.
+         *
+         * @return false if the templates are saturated
+         */
+        private boolean count(PathSampler.Walk walk) {
+            key.set(pair, walk.nodes, walk.codes, walk.length);
+            if(key.isClosed() ? key.length() <= Settings.CAR_DEPTH : key.length() <= Settings.INS_DEPTH) {
+                Rule rule = templates.get(key);
+                if(rule == null) {
+                    rule = Context.createTemplate(graph, pair, walk);
+                    templates.put(((Template) rule).getKey(), rule);
+                }
+                counts.addToValue(rule, 1);
+            }
+            sampledPaths.increment();
+            if(++paths == mergeInterval) {
+                saturation.merge(id, counts, visited, paths);
+                counts.clear();
+                visited.clear();
+                paths = 0;
+                return !saturation.isDone();
+            }
+            return true;
         }
     }
 
-    static class RuleConsumer extends Thread {
-        int id;
-        BlockingQueue<Rule> ruleQueue;
-        Context context;
-        int pathCount = 0;
+    /**
+     * Saturation of the templates over windows of BATCH_SIZE sampled paths: the ratio of the templates
+     * merged in a window that were already added in an earlier window. Generalization is done once
+     * the saturation of a window reaches SATURATION, a window has no templates within the depths, or
+     * the generalization time is up.
+     */
+    static class Saturation {
+        final Context context;
+        final Set<Pair> visitedTrainPairs;
+        final int producers;
+        final Set<Rule> added = ConcurrentHashMap.newKeySet();
+        int turn = 0;
+        long pathCount = 0;
+        long windowPaths = 0;
+        int windowRules = 0;
+        int windowKnown = 0;
         double saturation = 0d;
+        volatile boolean done = false;
 
-        RuleConsumer(int id, BlockingQueue<Rule> ruleQueue, Context context) {
-            super("RuleConsumer-" + id);
-            this.id = id;
-            this.ruleQueue = ruleQueue;
+        /**
+         * @param producers the number of producers if their batches are merged in turn, or 0 if
+         *                  batches are merged as they come
+         */
+        Saturation(Context context, Set<Pair> visitedTrainPairs, int producers) {
             this.context = context;
-            GlobalTimer.setGenStartTime(System.currentTimeMillis());
-            start();
+            this.visitedTrainPairs = visitedTrainPairs;
+            this.producers = producers;
         }
 
-        @Override
-        public void run() {
-            Set<Rule> currentBatch = new HashSet<>();
-            do {
-                if(pathCount % Settings.BATCH_SIZE == 0) {
-                    int overlaps = 0;
-                    if(currentBatch.isEmpty() && pathCount != 0)
-                        break;
-
-                    for (Rule rule : currentBatch) {
-                        if(context.getAbstractRules().contains(rule))
-                            overlaps++;
-                        else
-                            context.updateFreqAndIndex(rule);
+        /**
+         * Merges the counts of a producer into the frequencies of the context. When batches are merged
+         * in turn, the producer waits for its turn, and batches are dropped once generalization is done,
+         * so that the merged batches only depend on the streams of the producers.
+         *
+         * @param visited the training pairs sampled for the counts
+         * @param paths the paths sampled for the counts
+         */
+        void merge(int producer, ObjectIntHashMap<Rule> counts, Set<Pair> visited, int paths) {
+            if(producers != 0) {
+                long s = Tracer.begin();
+                synchronized (this) {
+                    while(turn != producer && !done) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                            System.exit(-1);
+                        }
                     }
-
-                    saturation = currentBatch.isEmpty() ? 0d : (double) overlaps / currentBatch.size();
-                    currentBatch.clear();
                 }
-                Rule rule = ruleQueue.poll();
-                if(rule != null) {
-                    if(rule.isClosed() ? rule.length() <= Settings.CAR_DEPTH : rule.length() <= Settings.INS_DEPTH)
-                        currentBatch.add(rule);
-                    pathCount++;
+                Tracer.waited(s, "merge turn");
+                if(done)
+                    return;
+            }
+            long s = Tracer.begin();
+            int known = context.mergeFrequencies(counts, added);
+            visitedTrainPairs.addAll(visited);
+            Tracer.end(s, "generalization", "merge", context.getTarget());
+            synchronized (this) {
+                pathCount += paths;
+                windowPaths += paths;
+                windowRules += counts.size();
+                windowKnown += known;
+                if(windowPaths >= Settings.BATCH_SIZE) {
+                    if(windowRules == 0)
+                        done = true;
+                    else {
+                        saturation = (double) windowKnown / windowRules;
+                        done = saturation >= Settings.SATURATION;
+                    }
+                    windowPaths = 0;
+                    windowRules = 0;
+                    windowKnown = 0;
+                    added.clear();
+                }
+                if(GlobalTimer.stopGen())
+                    done = true;
+                if(producers != 0) {
+                    turn = (turn + 1) % producers;
+                    notifyAll();
                 }
-            } while (saturation < Settings.SATURATION && !GlobalTimer.stopGen());
-            for (Rule rule : currentBatch) {
-                context.updateFreqAndIndex(rule);
             }
         }
 
-        public int getPathCount() {
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Ends generalization, releasing the producers waiting for their turn.
+         */
+        synchronized void stop() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized long getPathCount() {
             return pathCount;
         }
 
-        public double getSaturation() {
+        synchronized double getSaturation() {
             return saturation;
         }
     }
@@ -830,6 +1251,7 @@ public abstract class Engine {
     public void specialization(Context context, Set<Pair> trainPairs, Set<Pair> validPairs, File ruleIndexFile) {
         NumberFormat f = NumberFormat.getNumberInstance(Locale.US);
         long s = System.currentTimeMillis();
+        HeapSampler.Phase phase = HeapSampler.begin("specialization");
 
         Multimap<Long, Long> objOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
         Multimap<Long, Long> subOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
@@ -848,28 +1270,32 @@ public abstract class Engine {
         BlockingQueue<Rule> abstractRuleQueue = new LinkedBlockingDeque<>(context.sortTemplates());
         BlockingQueue<String> tempFileContents = new LinkedBlockingDeque<>(1000000);
         BlockingQueue<String> ruleFileContents = new LinkedBlockingDeque<>(1000000);
+        Metrics.track(abstractRuleQueue, "rh_queue_depth", "queue", "specialization");
 
         GlobalTimer.setSpecStartTime(System.currentTimeMillis());
-        SpecializationTask[] tasks = new SpecializationTask[Settings.THREAD_NUMBER];
+        SpecializationTask[] tasks = new SpecializationTask[context.getThreadNumber()];
         for (int i = 0; i < tasks.length; i++) {
             tasks[i] = new SpecializationTask(i, graph, abstractRuleQueue
                     , trainPairs, validPairs, objOriginalMap, subOriginalMap, validObjToSub, validSubToObj
                     , context, tempFileContents, ruleFileContents);
         }
-        RuleWriter tempFileWriter = new RuleWriter(0, tasks, ruleIndexFile, tempFileContents, true);
-        RuleWriter ruleFileWriter = new RuleWriter(0, tasks, ruleFile, ruleFileContents, true);
+        AsyncWriter<String> tempFileWriter = AsyncWriter.text("RuleWriter-0", ruleIndexFile, tempFileContents, true, true);
+        AsyncWriter<String> ruleFileWriter = AsyncWriter.text("RuleWriter-1", ruleFile, ruleFileContents, true, true);
         try {
             for (SpecializationTask task : tasks) {
                 task.join();
             }
-            tempFileWriter.join();
-            ruleFileWriter.join();
+            tempFileWriter.close();
+            ruleFileWriter.close();
         } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(-1);
         }
 
+        Metrics.untrack(abstractRuleQueue, "rh_queue_depth", "queue", "specialization");
+        HeapSampler.end(phase);
         GlobalTimer.updateInsRuleStats(Helpers.timerAndMemory(s,"# Specialization"));
+        writeProfiles(context, false);
         Logger.println(Context.analyzeRuleComposition("# Specialized Templates", context.getSpecializedRules()), 1);
         Logger.println("# All Instantiated Rules: " + f.format(context.getTotalInsRules() + context.getEssentialRules()), 1);
     }
@@ -878,10 +1304,11 @@ public abstract class Engine {
         Logger.println("\n# Start Rule Application", 2);
         NumberFormat f = NumberFormat.getNumberInstance(Locale.US);
         long s = System.currentTimeMillis();
+        HeapSampler.Phase phase = HeapSampler.begin("application");
         context.initConcurrentMaps();
 
         BlockingQueue<Rule> abstractRuleQueue = new LinkedBlockingDeque<>(100000);
-        RuleApplicationTask[] tasks = new RuleApplicationTask[Settings.THREAD_NUMBER];
+        RuleApplicationTask[] tasks = new RuleApplicationTask[context.getThreadNumber()];
         RuleReader reader = new RuleReader(0, ruleIndexHome, abstractRuleQueue, context);
         for (int i = 0; i < tasks.length; i++) {
             tasks[i] = new RuleApplicationTask(i, graph, abstractRuleQueue, context, reader);
@@ -896,12 +1323,17 @@ public abstract class Engine {
             System.exit(-1);
         }
 
+        HeapSampler.retained("predictionMap", HeapSampler.sizeOfPredictionMap(context.getPredictionMap()));
+        if(Settings.RULE_GRAPH)
+            HeapSampler.retained("rulePredictionMap", HeapSampler.sizeOfRulePredictionMap(context.rulePredictionMap));
+        HeapSampler.end(phase);
         GlobalTimer.updateRuleApplyStats(Helpers.timerAndMemory(s,"# Rule Application"));
+        writeProfiles(context, true);
         Logger.println("# Predictions: " + f.format(context.predictionMapSize()), 2);
         Logger.println(Context.analyzeRuleComposition("# Applied Rules", context.getAppliedRules()), 2);
     }
 
-    static class SpecializationTask extends Thread {
+    static class SpecializationTask extends Worker {
         int id;
         GraphDatabaseService graph;
         BlockingQueue<Rule> abstractRuleQueue;
@@ -944,16 +1376,20 @@ public abstract class Engine {
         }
 
         @Override
-        public void run() {
+        protected void work() {
             try(Transaction tx = graph.beginTx()) {
                 while (!abstractRuleQueue.isEmpty() && !GlobalTimer.stopSpec() && context.getTotalInsRules() < Settings.INS_RULE_CAP) {
                     Template abstractRule = (Template) abstractRuleQueue.poll();
                     if(abstractRule != null) {
                         Multimap<Long, Long> anchoringToOriginalMap = abstractRule.isFromSubject() ? objOriginalMap : subOriginalMap;
                         Multimap<Long, Long> validOriginals = abstractRule.isFromSubject() ? validObjToSub : validSubToObj;
+                        long s = Tracer.begin();
+                        TemplateProfiler.Profile profile = context.getProfiler().start(abstractRule);
                         abstractRule.specialization(graph, trainPairs, validPairs
                                 , anchoringToOriginalMap, validOriginals, context
-                                , ruleFileContents, tempFileContents);
+                                , ruleFileContents, tempFileContents, profile);
+                        context.getProfiler().finish(profile);
+                        Tracer.end(s, "specialization", "template", abstractRule);
                     }
                 }
                 tx.success();
@@ -964,7 +1400,7 @@ public abstract class Engine {
         }
     }
 
-    static class RuleApplicationTask extends Thread {
+    static class RuleApplicationTask extends Worker {
         int id;
         GraphDatabaseService graph;
         BlockingQueue<Rule> abstractRuleQueue;
@@ -986,14 +1422,24 @@ public abstract class Engine {
         }
 
         @Override
-        public void run() {
+        protected void work() {
             try(Transaction tx = graph.beginTx()) {
+                long emptyStart = 0;
                 while ((ruleReader.isAlive() || !abstractRuleQueue.isEmpty())
                         && context.predictionMapSize() < Settings.SUGGESTION_CAP) {
                     Template abstractRule = (Template) abstractRuleQueue.poll();
-                    if (abstractRule != null) {
+                    if (abstractRule == null) {
+                        if(emptyStart == 0)
+                            emptyStart = Tracer.begin();
+                    } else {
+                        Tracer.waited(emptyStart, "queue empty");
+                        emptyStart = 0;
+                        long s = Tracer.begin();
                         context.addAppliedRule(abstractRule);
-                        abstractRule.applyRule(graph, context);
+                        TemplateProfiler.Profile profile = context.getProfiler().start(abstractRule);
+                        abstractRule.applyRule(graph, context, profile);
+                        context.getProfiler().finish(profile);
+                        Tracer.end(s, "application", "template", abstractRule);
                     }
                 }
                 tx.success();
@@ -1021,6 +1467,7 @@ public abstract class Engine {
 
         @Override
         public void run() {
+            long bytes = HeapSampler.threadStart();
             try (LineIterator l = FileUtils.lineIterator(file)) {
                 while(l.hasNext()) {
                     String line = l.nextLine();
@@ -1030,7 +1477,7 @@ public abstract class Engine {
                         if(rule == null) {
                             rule = new Template(line.split("ABS: ")[1]);
                         }
-                        if(!rule.head.predicate.equals(Settings.TARGET))
+                        if(!rule.head.predicate.equals(context.getTarget()))
                             continue;
                         if(!rule.isClosed()) {
                             String insRuleLine = l.nextLine();
@@ -1044,12 +1491,7 @@ public abstract class Engine {
                                 continue;
                         } else {
                             String[] words = line.split("ABS: ")[1].split("\t");
-                            rule.stats.setStandardConf(Double.parseDouble(words[3]));
-                            rule.stats.setSmoothedConf(Double.parseDouble(words[4]));
-                            rule.stats.setPcaConf(Double.parseDouble(words[5]));
-                            rule.stats.setApcaConf(Double.parseDouble(words[6]));
-                            rule.stats.setHeadCoverage(Double.parseDouble(words[7]));
-                            rule.stats.setValidPrecision(Double.parseDouble(words[8]));
+                            rule.stats.readIndexString(words, 3);
                             if(ValidRuleQuality.overfitting(rule))
                                 continue;
                         }
@@ -1060,48 +1502,7 @@ public abstract class Engine {
                 e.printStackTrace();
                 System.exit(-1);
             }
-        }
-    }
-
-    static protected class RuleWriter extends Thread {
-        Thread[] threads;
-        File file;
-        BlockingQueue<String> contentQueue;
-        boolean append;
-        int id;
-
-        public RuleWriter(int id, Thread[] threads, File file, BlockingQueue<String> contents, boolean append) {
-            super("RuleWriter-" + id);
-            this.append = append;
-            this.id = id;
-            this.file = file;
-            this.contentQueue = contents;
-            this.threads = threads;
-            start();
-        }
-
-        @Override
-        public void run() {
-            boolean stop = false;
-            try(PrintWriter writer = new PrintWriter(new FileWriter(file, append))) {
-                while(!stop || !contentQueue.isEmpty()) {
-                    String line = contentQueue.poll();
-                    if(line != null) {
-                        writer.println(line);
-                    }
-                    boolean flag = true;
-                    for (Thread producer : threads) {
-                        if (producer.isAlive()) {
-                            flag = false;
-                            break;
-                        }
-                    }
-                    if(flag) stop = true;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(-1);
-            }
+            HeapSampler.threadEnd(bytes);
         }
     }
 
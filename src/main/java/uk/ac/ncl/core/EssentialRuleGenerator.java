@@ -8,14 +8,12 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import uk.ac.ncl.Settings;
 import uk.ac.ncl.structure.*;
+import uk.ac.ncl.utils.AsyncWriter;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.Logger;
 import uk.ac.ncl.utils.SemaphoredThreadPool;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Collection;
@@ -30,6 +28,7 @@ public class EssentialRuleGenerator {
             , Context context, GraphDatabaseService graph
             , File tempFile, File ruleFile) {
         long s = System.currentTimeMillis();
+        HeapSampler.Phase phase = HeapSampler.begin("essential");
         NumberFormat f = NumberFormat.getNumberInstance(Locale.US);
         GlobalTimer.setEssentialStartTime(System.currentTimeMillis());
 
@@ -57,9 +56,9 @@ public class EssentialRuleGenerator {
             validSubToObj.put(validPair.subId, validPair.objId);
         }
 
-        ExecutorService executors = new SemaphoredThreadPool(Settings.THREAD_NUMBER);
-        RuleWriter tempFileWriter = new RuleWriter(0, executors, tempFile, tempFileContents, true);
-        RuleWriter ruleFileWriter = new RuleWriter(0, executors, ruleFile, ruleFileContents, true);
+        ExecutorService executors = new SemaphoredThreadPool(context.getThreadNumber());
+        AsyncWriter<String> tempFileWriter = AsyncWriter.text("EssentialRule-RuleWriter-0", tempFile, tempFileContents, true, true);
+        AsyncWriter<String> ruleFileWriter = AsyncWriter.text("EssentialRule-RuleWriter-1", ruleFile, ruleFileContents, true, true);
         Set<Rule> specializedRules = new HashSet<>();
 
         try {
@@ -112,63 +111,26 @@ public class EssentialRuleGenerator {
                     rule.stats.compute();
                     tempFileContents.put("ABS: " + context.getIndex(rule) + "\t"
                             + ((Template) rule).toRuleIndexString() + "\t"
-                            + f.format(rule.getStandardConf()) + "\t"
-                            + f.format(rule.getSmoothedConf()) + "\t"
-                            + f.format(rule.getPcaConf()) + "\t"
-                            + f.format(rule.getApcaConf()) + "\t"
-                            + f.format(rule.getHeadCoverage()) + "\t"
-                            + f.format(rule.getValidPrecision()) + "\n"
+                            + rule.stats.toIndexString("\t") + "\n"
                             + String.join("\t", contents) + "\n");
                 }
             }
 
             executors.shutdown();
             executors.awaitTermination(1L, TimeUnit.MINUTES);
-            tempFileWriter.join();
-            ruleFileWriter.join();
+            tempFileWriter.close();
+            ruleFileWriter.close();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
         }
 
+        HeapSampler.end(phase);
         GlobalTimer.updateGenEssentialStats(Helpers.timerAndMemory(s, "# Generate Essentials"));
         Logger.println("# Specialized Essential Templates: " + f.format(specializedRules.size()) + " | " +
                 "Generated Essential Rules: " + f.format(context.getEssentialRules()), 1);
     }
 
-    private static class RuleWriter extends Thread {
-        int id;
-        ExecutorService service;
-        File file;
-        BlockingQueue<String> contents;
-        boolean append;
-
-        RuleWriter(int id, ExecutorService service, File file, BlockingQueue<String> contents, boolean append) {
-            super("EssentialRule-RuleWriter-" + id);
-            this.id = id;
-            this.service = service;
-            this.file = file;
-            this.contents = contents;
-            this.append = append;
-            start();
-        }
-
-        @Override
-        public void run() {
-            try(PrintWriter writer = new PrintWriter(new FileWriter(file, append))) {
-                while(!service.isTerminated() || !contents.isEmpty()) {
-                    String line = contents.poll();
-                    if(line != null) {
-                        writer.println(line);
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(-1);
-            }
-        }
-    }
-
     private static class CreateBAR implements Runnable {
         Rule base;
         Pair candidate;
@@ -227,12 +189,7 @@ public class EssentialRuleGenerator {
                         tempFileContents.put("2" + ","
                                 + rule.getHeadAnchoring() + ","
                                 + rule.getTailAnchoring() + ","
-                                + f.format(rule.getStandardConf()) + ","
-                                + f.format(rule.getSmoothedConf()) + ","
-                                + f.format(rule.getPcaConf()) + ","
-                                + f.format(rule.getApcaConf()) + ","
-                                + f.format(rule.getHeadCoverage()) + ","
-                                + f.format(rule.getValidPrecision()));
+                                + rule.stats.toIndexString(","));
                         ruleFileContents.put(rule.toString() + "\t"
                                 + f.format(rule.getQuality()) + "\t"
                                 + f.format(rule.getHeadCoverage()) + "\t"
@@ -305,12 +262,7 @@ public class EssentialRuleGenerator {
                         updateBaseStats(rule);
                         tempFileContents.put("0" + ","
                                 + rule.getHeadAnchoring() + ","
-                                + f.format(rule.getStandardConf()) + ","
-                                + f.format(rule.getSmoothedConf()) + ","
-                                + f.format(rule.getPcaConf()) + ","
-                                + f.format(rule.getApcaConf()) + ","
-                                + f.format(rule.getHeadCoverage()) + ","
-                                + f.format(rule.getValidPrecision()));
+                                + rule.stats.toIndexString(","));
                         ruleFileContents.put(rule.toString() + "\t"
                                 + f.format(rule.getQuality()) + "\t"
                                 + f.format(rule.getHeadCoverage()) + "\t"
@@ -5,23 +5,36 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Transaction;
 import uk.ac.ncl.Settings;
+import uk.ac.ncl.structure.FilterIndex;
 import uk.ac.ncl.structure.Pair;
 import uk.ac.ncl.structure.Rule;
 import uk.ac.ncl.structure.Triple;
+import uk.ac.ncl.utils.AsyncWriter;
+import uk.ac.ncl.utils.BinaryPredictions;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.IO;
+import uk.ac.ncl.utils.LatencyHistogram;
 import uk.ac.ncl.utils.Logger;
+import uk.ac.ncl.utils.MappedChunks;
+import uk.ac.ncl.utils.Metrics;
+import uk.ac.ncl.utils.Tracer;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
@@ -31,19 +44,23 @@ public class Evaluator {
     final private BlockingQueue<Pair> testPairs;
     Multimap<Long, Pair> subIndex = MultimapBuilder.hashKeys().hashSetValues().build();
     Multimap<Long, Pair> objIndex = MultimapBuilder.hashKeys().hashSetValues().build();
+    Map<Long, Pair[]> sortedSubIndex = new ConcurrentHashMap<>();
+    Map<Long, Pair[]> sortedObjIndex = new ConcurrentHashMap<>();
 
     GraphDatabaseService graph;
     BlockingQueue<String> predictionContentQueue = new LinkedBlockingDeque<>(100000);
     BlockingQueue<String> verificationContentQueue = new LinkedBlockingDeque<>(100000);
+    BlockingQueue<ByteBuffer> binaryContentQueue = new LinkedBlockingDeque<>(100000);
+    Map<Long, String> names = new ConcurrentHashMap<>();
     File predictionFile;
     File verificationFile;
-    Multimap<Pair, Rule> candidates;
+    Map<Pair, List<Rule>> candidates;
     Set<Pair> filterSet;
+    final String target;
+    final int threadNumber;
 
     static DecimalFormat f = new DecimalFormat("####.#####");
-    static Multimap<String, Integer> rankMap;
-    static Multimap<String, Integer> headMap;
-    static Multimap<String, Integer> tailMap;
+    final static long SCORE_CHUNK_SIZE = 1 << 23;
 
     public Evaluator(Set<Pair> testPairs
             , Set<Pair> filterSet
@@ -54,9 +71,11 @@ public class Evaluator {
         this.testPairs = new LinkedBlockingDeque<>(testPairs);
         this.predictionFile = predictionFile;
         this.verificationFile = verificationFile;
-        this.candidates = context.getPredictionMultiMap();
+        this.candidates = context.getPredictionMap();
         this.graph = graph;
         this.filterSet = filterSet;
+        this.target = context.getTarget();
+        this.threadNumber = context.getThreadNumber();
 
         for (Pair pair : candidates.keySet()) {
             subIndex.put(pair.subId, pair);
@@ -66,39 +85,71 @@ public class Evaluator {
 
     public void createQueries() {
         long s = System.currentTimeMillis();
-        Thread[] queryCreators = new QueryCreator[Settings.THREAD_NUMBER];
+        HeapSampler.Phase phase = HeapSampler.begin("queries");
+        Metrics.track(testPairs, "rh_queue_depth", "queue", "queries");
+        Thread[] queryCreators = new QueryCreator[threadNumber];
         for (int i = 0; i < queryCreators.length; i++) {
             queryCreators[i] = new QueryCreator(i);
         }
-        WriterTask predictionWriter = new WriterTask(queryCreators, predictionFile, predictionContentQueue);
-        WriterTask verificationWriter = new WriterTask(queryCreators, verificationFile, verificationContentQueue);
+        AsyncWriter<?> predictionWriter = Settings.BINARY_PREDICTIONS ?
+                AsyncWriter.binary("PredictionWriter", predictionFile, binaryContentQueue, true)
+                : AsyncWriter.text("PredictionWriter", predictionFile, predictionContentQueue, true, false);
+        AsyncWriter<String> verificationWriter = AsyncWriter.text("VerificationWriter", verificationFile
+                , verificationContentQueue, true, false);
         try {
             for (Thread thread : queryCreators) {
                 thread.join();
             }
-            predictionWriter.join();
-            verificationWriter.join();
+            predictionWriter.close();
+            verificationWriter.close();
         } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(-1);
         }
+        Metrics.untrack(testPairs, "rh_queue_depth", "queue", "queries");
+        if(Settings.BINARY_PREDICTIONS)
+            writeDictionary();
+        HeapSampler.end(phase);
         Helpers.timerAndMemory(s, "# Create Queries");
     }
 
+    private void writeDictionary() {
+        try(PrintWriter writer = new PrintWriter(new FileWriter(BinaryPredictions.dictionaryFile(predictionFile), true))) {
+            names.forEach((id, name) -> writer.println(id + "\t" + name));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private String name(long id) {
+        return names.computeIfAbsent(id, k -> (String) graph.getNodeById(k).getProperty(Settings.NEO4J_IDENTIFIER));
+    }
+
+    private StringBuilder appendQueryString(StringBuilder sb, Pair pair) {
+        return sb.append("(").append(pair.subId).append("|").append(name(pair.subId))
+                .append(", ").append(target).append(", ")
+                .append(pair.objId).append("|").append(name(pair.objId)).append(")");
+    }
+
+    private StringBuilder appendVerificationString(StringBuilder sb, Pair pair) {
+        return sb.append(name(pair.subId)).append("\t").append(target).append("\t").append(name(pair.objId));
+    }
+
     static public void evalAnyBURL(String home) {
         Logger.init(new File(home, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = buildFilterMap(home);
-        scoreAnyBURL(filterMap, new File(home, "predictions.txt"));
+        FilterIndex filterIndex = buildFilterIndex(home);
+        scoreAnyBURL(filterIndex, new File(home, "predictions.txt"));
     }
 
-    static public Multimap<String, Triple> buildFilterMap(String home) {
-        Multimap<String, Triple> filterMap = MultimapBuilder.hashKeys().arrayListValues().build();
+    static public FilterIndex buildFilterIndex(String home) {
+        FilterIndex filterIndex = new FilterIndex();
         if(Settings.POST_FILTERING) {
-            readTriples(new File(home, "data/train.txt")).forEach(triple -> filterMap.put(triple.pred, triple));
-            readTriples(new File(home, "data/test.txt")).forEach(triple -> filterMap.put(triple.pred, triple));
-            readTriples(new File(home, "data/valid.txt")).forEach(triple -> filterMap.put(triple.pred, triple));
+            readTriples(new File(home, "data/train.txt")).forEach(filterIndex::add);
+            readTriples(new File(home, "data/test.txt")).forEach(filterIndex::add);
+            readTriples(new File(home, "data/valid.txt")).forEach(filterIndex::add);
         }
-        return filterMap;
+        return filterIndex;
     }
 
     static public Set<Triple> readTriples(File f) {
@@ -114,48 +165,116 @@ public class Evaluator {
         return triples;
     }
 
-    static private void scoreAnyBURL(Multimap<String, Triple> filterMap, File file) {
-        rankMap = MultimapBuilder.hashKeys().arrayListValues().build();
-        headMap = MultimapBuilder.hashKeys().arrayListValues().build();
-        tailMap = MultimapBuilder.hashKeys().arrayListValues().build();
+    static private void scoreAnyBURL(FilterIndex filterIndex, File file) {
+        reportResults(scorePredictionFile(file, MappedChunks.split(file, SCORE_CHUNK_SIZE
+                , line -> !line.startsWith("Heads: ") && !line.startsWith("Tails: "))
+                , lines((l, ranks) -> {
+                    Triple testTriple = new Triple(l.nextLine(), 0);
+                    int headRank = readAnyBURLRank(filterIndex, testTriple, l.nextLine());
+                    int tailRank = readAnyBURLRank(filterIndex, testTriple, l.nextLine());
+                    RankHistogram[] histograms = ranks.computeIfAbsent(testTriple.pred, k -> newHistograms());
+                    histograms[0].add(headRank);
+                    histograms[1].add(tailRank);
+                })));
+    }
 
-        try(LineIterator l = FileUtils.lineIterator(file)) {
-            while(l.hasNext()) {
-                Triple testTriple = new Triple(l.nextLine(), 0);
-                int headRank = readAnyBURLRank(filterMap.get(testTriple.pred), testTriple, l.nextLine());
-                int tailRank = readAnyBURLRank(filterMap.get(testTriple.pred), testTriple, l.nextLine());
-                rankMap.put(testTriple.pred, headRank);
-                rankMap.put(testTriple.pred, tailRank);
-                headMap.put(testTriple.pred, headRank);
-                tailMap.put(testTriple.pred, tailRank);
+    /**
+     * Scores a prediction file in parallel. The file is split into chunks at query block
+     * boundaries, and each chunk is memory-mapped and scored by a {@link ScoreTask} into
+     * its own per-predicate histograms, which are merged at the end.
+     * @return predicate -> {head ranks, tail ranks}
+     */
+    static private Map<String, RankHistogram[]> scorePredictionFile(File file, List<long[]> chunkList, ChunkScorer scorer) {
+        BlockingQueue<long[]> chunks = new LinkedBlockingDeque<>(chunkList);
+        ScoreTask[] tasks = new ScoreTask[Settings.THREAD_NUMBER];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new ScoreTask(i, file, chunks, scorer);
+        }
+        Map<String, RankHistogram[]> ranks = new HashMap<>();
+        try {
+            for (ScoreTask task : tasks) {
+                task.join();
+                task.ranks.forEach((predicate, histograms) -> {
+                    RankHistogram[] merged = ranks.computeIfAbsent(predicate, k -> newHistograms());
+                    merged[0].merge(histograms[0]);
+                    merged[1].merge(histograms[1]);
+                });
             }
-        } catch (IOException e) {
+        } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(-1);
         }
+        return ranks;
+    }
+
+    static private RankHistogram[] newHistograms() {
+        return new RankHistogram[]{new RankHistogram(), new RankHistogram()};
+    }
+
+    static private ChunkScorer lines(BlockScorer scorer) {
+        return (channel, chunk, ranks) -> {
+            MappedChunks.Lines l = MappedChunks.map(channel, chunk);
+            while(l.hasNext())
+                scorer.score(l, ranks);
+        };
+    }
+
+    interface ChunkScorer {
+        void score(FileChannel channel, long[] chunk, Map<String, RankHistogram[]> ranks) throws IOException;
+    }
+
+    interface BlockScorer {
+        /**
+         * Consumes one query block from the lines and records its rank(s).
+         */
+        void score(MappedChunks.Lines l, Map<String, RankHistogram[]> ranks);
+    }
+
+    static class ScoreTask extends Thread {
+        File file;
+        BlockingQueue<long[]> chunks;
+        ChunkScorer scorer;
+        Map<String, RankHistogram[]> ranks = new HashMap<>();
+
+        ScoreTask(int id, File file, BlockingQueue<long[]> chunks, ChunkScorer scorer) {
+            super("ScoreTask-" + id);
+            this.file = file;
+            this.chunks = chunks;
+            this.scorer = scorer;
+            start();
+        }
 
-        reportResults();
+        @Override
+        public void run() {
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long[] chunk;
+                while((chunk = chunks.poll()) != null)
+                    scorer.score(channel, chunk, ranks);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
     }
 
-    static private void reportResults() {
+    static private void reportResults(Map<String, RankHistogram[]> ranks) {
         Multimap<String, Double> perPredicateResults = MultimapBuilder.hashKeys().arrayListValues().build();
-        for (String predicate : rankMap.keySet()) {
-            printResultsSinglePredicate(predicate, new ArrayList<>(headMap.get(predicate))
-                    , new ArrayList<>(tailMap.get(predicate))
-                    , new ArrayList<>(rankMap.get(predicate))
-                    , 3, perPredicateResults, true);
+        RankHistogram allHeads = new RankHistogram();
+        RankHistogram allTails = new RankHistogram();
+        for (Map.Entry<String, RankHistogram[]> entry : ranks.entrySet()) {
+            RankHistogram heads = entry.getValue()[0];
+            RankHistogram tails = entry.getValue()[1];
+            printResultsSinglePredicate(entry.getKey(), heads, tails, 3, perPredicateResults, true);
+            allHeads.merge(heads);
+            allTails.merge(tails);
         }
         if(Settings.EVAL_PROTOCOL.equals("TransE")) {
-            printResultsSinglePredicate("TransE Protocol - All Targets", new ArrayList<>(headMap.values())
-                    , new ArrayList<>(tailMap.values())
-                    , new ArrayList<>(rankMap.values())
+            printResultsSinglePredicate("TransE Protocol - All Targets", allHeads, allTails
                     , 1, perPredicateResults, false);
         } else if(Settings.EVAL_PROTOCOL.equals("GPFL")) {
             printAverageResults(perPredicateResults);
         } else if(Settings.EVAL_PROTOCOL.equals("All")) {
-            printResultsSinglePredicate("TransE Protocol - All Targets", new ArrayList<>(headMap.values())
-                    , new ArrayList<>(tailMap.values())
-                    , new ArrayList<>(rankMap.values())
+            printResultsSinglePredicate("TransE Protocol - All Targets", allHeads, allTails
                     , 1, perPredicateResults, false);
             printAverageResults(perPredicateResults);
         } else {
@@ -200,19 +319,22 @@ public class Evaluator {
         Logger.println(sb.toString(), 1);
     }
 
-    static private void printResultsSinglePredicate(String predicate, List<Integer> headRanks, List<Integer> tailRanks
-            , List<Integer> allRanks, int verb, Multimap<String, Double> perPredicateResults, boolean add) {
+    static private void printResultsSinglePredicate(String predicate, RankHistogram headRanks, RankHistogram tailRanks
+            , int verb, Multimap<String, Double> perPredicateResults, boolean add) {
+        RankHistogram allRanks = new RankHistogram();
+        allRanks.merge(headRanks);
+        allRanks.merge(tailRanks);
         DecimalFormat f = new DecimalFormat("###.####");
         double headScore, tailScore, allScore;
         f.setMinimumFractionDigits(4);
         int[] ns = new int[]{1,3};
         StringBuilder sb = new StringBuilder("# " + predicate + ":\n#           Head     Tail     All\n");
         for (int n : ns) {
-            headScore = hitsAt(headRanks, n);
+            headScore = headRanks.hitsAt(n);
             if(add) perPredicateResults.put(predicate, headScore);
-            tailScore = hitsAt(tailRanks, n);
+            tailScore = tailRanks.hitsAt(n);
             if(add) perPredicateResults.put(predicate, tailScore);
-            allScore = hitsAt(allRanks, n);
+            allScore = allRanks.hitsAt(n);
             if(add) perPredicateResults.put(predicate, allScore);
 
             sb.append("# hits@" + n + ":   ");
@@ -221,22 +343,22 @@ public class Evaluator {
             sb.append((allRanks.isEmpty() ? "No Records\n" : f.format(allScore) + "\n"));
 
         }
-        headScore = hitsAt(headRanks, 10);
+        headScore = headRanks.hitsAt(10);
         if(add) perPredicateResults.put(predicate, headScore);
-        tailScore = hitsAt(tailRanks, 10);
+        tailScore = tailRanks.hitsAt(10);
         if(add) perPredicateResults.put(predicate, tailScore);
-        allScore = hitsAt(allRanks, 10);
+        allScore = allRanks.hitsAt(10);
         if(add) perPredicateResults.put(predicate, allScore);
         sb.append("# hits@10:  ");
         sb.append((headRanks.isEmpty() ? "No Records\t" : f.format(headScore) + "   "));
         sb.append((tailRanks.isEmpty() ? "No Records\t" : f.format(tailScore) + "   "));
         sb.append((allRanks.isEmpty() ? "No Records\n" : f.format(allScore) + "\n"));
 
-        headScore = mrr(headRanks);
+        headScore = headRanks.mrr();
         if(add) perPredicateResults.put(predicate, headScore);
-        tailScore = mrr(tailRanks);
+        tailScore = tailRanks.mrr();
         if(add) perPredicateResults.put(predicate, tailScore);
-        allScore = mrr(allRanks);
+        allScore = allRanks.mrr();
         if(add) perPredicateResults.put(predicate, allScore);
         sb.append("# MRR:      ");
         sb.append((headRanks.isEmpty() ? "No Records\t" : f.format(headScore) + "   "));
@@ -245,101 +367,103 @@ public class Evaluator {
         Logger.println(sb.toString(), verb);
     }
 
-    static private int readAnyBURLRank(Collection<Triple> filterSet, Triple testTriple, String line) {
+    static private int readAnyBURLRank(FilterIndex filterIndex, Triple testTriple, String line) {
         boolean headQuery = line.startsWith("Heads: ");
         String[] splits = headQuery ? line.split("Heads: ") : line.split("Tails: ");
         if(splits.length <= 1) return 0;
         String[] words = splits[1].split("\t");
 
-        List<Triple> currentAnswers = new ArrayList<>();
-        for (int i = 0; i < words.length; i++) {
-            if(i % 2 == 0) {
-                if(headQuery)
-                    currentAnswers.add(new Triple(words[i], testTriple.pred, testTriple.obj));
-                else
-                    currentAnswers.add(new Triple(testTriple.sub, testTriple.pred, words[i]));
-            }
-        }
+        String correctAnswer = headQuery ? testTriple.sub : testTriple.obj;
         int filterCount = 0;
-        int rank = 0;
-        for (Triple currentAnswer : currentAnswers) {
-            if(filterSet.contains(currentAnswer) && !currentAnswer.equals(testTriple))
+        for (int i = 0; i < words.length; i += 2) {
+            if(words[i].equals(correctAnswer))
+                return i / 2 - filterCount + 1;
+            boolean known = headQuery ? filterIndex.contains(words[i], testTriple.pred, testTriple.obj)
+                    : filterIndex.contains(testTriple.sub, testTriple.pred, words[i]);
+            if(known)
                 filterCount++;
-            if(currentAnswer.equals(testTriple)) {
-                rank = currentAnswers.indexOf(currentAnswer);
-                return rank - filterCount + 1;
-            }
         }
-        return rank;
+        return 0;
     }
 
     static public void evalGPFL(String home) {
         Logger.init(new File(home, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = Evaluator.buildFilterMap(home);
-        scoreGPFL(filterMap, new File(home, "predictions.txt"));
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home);
+        File binaryFile = new File(home, "predictions.bin");
+        File textFile = new File(home, "predictions.txt");
+        // Folders written before the other format was deleted on creation may hold both files.
+        boolean binary = binaryFile.exists() && (!textFile.exists() || binaryFile.lastModified() > textFile.lastModified());
+        scoreGPFL(filterIndex, binary ? binaryFile : textFile);
     }
 
-    static public void scoreGPFL(Multimap<String, Triple> filterMap, File predictionFile) {
-        rankMap = MultimapBuilder.hashKeys().arrayListValues().build();
-        headMap = MultimapBuilder.hashKeys().arrayListValues().build();
-        tailMap = MultimapBuilder.hashKeys().arrayListValues().build();
-
-        try(LineIterator l = FileUtils.lineIterator(predictionFile)) {
-            while(l.hasNext()) {
-                String line = l.nextLine();
-                boolean headQuery = line.startsWith("Head Query: ");
-                Triple testTriple = headQuery ? new Triple(line.split("Head Query: ")[1], 1) :
-                        new Triple(line.split("Tail Query: ")[1], 1);
-                List<Triple> currentAnswers = new ArrayList<>();
-                while(l.hasNext()) {
-                    String predictionLine = l.nextLine();
-                    if(!predictionLine.equals("")) {
-                        currentAnswers.add(new Triple(predictionLine.split("\t")[0], 1));
-                    }
-                    else break;
-                }
-                int rank = 0;
-                int filterCount = 0;
-                Collection<Triple> filterSet = filterMap.get(testTriple.pred);
-                for (Triple currentAnswer : currentAnswers) {
-                    if(currentAnswer.equals(testTriple)) {
-                        rank = currentAnswers.indexOf(currentAnswer) - filterCount + 1;
-                        break;
-                    }
-                    if(filterSet.contains(currentAnswer))
-                        filterCount++;
-                }
-                rankMap.put(testTriple.pred, rank);
-                if(headQuery)
-                    headMap.put(testTriple.pred, rank);
-                else
-                    tailMap.put(testTriple.pred, rank);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(-1);
-        }
-
-        reportResults();
-    }
-
-    static private double hitsAt(List<Integer> ranks, int n) {
-        int sum = 0;
-        for (Integer rank : ranks) {
-            if(rank != 0 && rank <= n) sum++;
+    static public void scoreGPFL(FilterIndex filterIndex, File predictionFile) {
+        if(predictionFile.getName().endsWith(".bin")) {
+            scoreBinary(filterIndex, predictionFile);
+            return;
         }
-        return sum == 0 ? 0 : (double) sum / ranks.size();
+        reportResults(scorePredictionFile(predictionFile, MappedChunks.split(predictionFile, SCORE_CHUNK_SIZE
+                , line -> line.startsWith("Head Query: ") || line.startsWith("Tail Query: "))
+                , lines((l, ranks) -> {
+                    String line = l.nextLine();
+                    if(line.equals("")) return;
+                    boolean headQuery = line.startsWith("Head Query: ");
+                    Triple testTriple = headQuery ? new Triple(line.split("Head Query: ")[1], 1) :
+                            new Triple(line.split("Tail Query: ")[1], 1);
+                    int rank = 0;
+                    int position = 0;
+                    int filterCount = 0;
+                    while(l.hasNext()) {
+                        String predictionLine = l.nextLine();
+                        if(predictionLine.equals("")) break;
+                        if(rank != 0) continue;
+                        position++;
+                        Triple currentAnswer = new Triple(predictionLine.split("\t")[0], 1);
+                        if(currentAnswer.equals(testTriple))
+                            rank = position - filterCount;
+                        else if(filterIndex.contains(currentAnswer))
+                            filterCount++;
+                    }
+                    ranks.computeIfAbsent(testTriple.pred, k -> newHistograms())[headQuery ? 0 : 1].add(rank);
+                })));
     }
 
-    static private double mrr(List<Integer> ranks) {
-        double sum = 0;
-        for (Integer rank : ranks) {
-            sum += rank == 0 ? 0 : (double) 1 / rank;
-        }
-        return sum == 0 ? 0 : sum / ranks.size();
+    /**
+     * Scores a binary prediction file. Answers are compared by entity id, and filter checks
+     * work on filter dictionary codes resolved once per entity of the prediction dictionary.
+     */
+    static private void scoreBinary(FilterIndex filterIndex, File predictionFile) {
+        LongIntHashMap codes = new LongIntHashMap();
+        BinaryPredictions.readDictionary(BinaryPredictions.dictionaryFile(predictionFile))
+                .forEachKeyValue((id, name) -> codes.put(id, filterIndex.code(name)));
+        reportResults(scorePredictionFile(predictionFile, BinaryPredictions.split(predictionFile, SCORE_CHUNK_SIZE)
+                , (channel, chunk, ranks) -> {
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                    BinaryPredictions.Query query = new BinaryPredictions.Query();
+                    while(buffer.hasRemaining()) {
+                        BinaryPredictions.read(buffer, query);
+                        long correctAnswer = query.correctAnswer();
+                        int fixedCode = codes.getIfAbsent(query.headQuery ? query.objId : query.subId, -1);
+                        int rank = 0;
+                        int filterCount = 0;
+                        for (int i = 0; i < query.k; i++) {
+                            if(query.answers[i] == correctAnswer) {
+                                rank = i + 1 - filterCount;
+                                break;
+                            }
+                            int answerCode = codes.getIfAbsent(query.answers[i], -1);
+                            boolean known = query.headQuery ? filterIndex.contains(answerCode, query.predicate, fixedCode)
+                                    : filterIndex.contains(fixedCode, query.predicate, answerCode);
+                            if(known)
+                                filterCount++;
+                        }
+                        ranks.computeIfAbsent(query.predicate, k -> newHistograms())[query.headQuery ? 0 : 1].add(rank);
+                    }
+                }));
     }
 
-    class QueryCreator extends Thread {
+    class QueryCreator extends Worker {
+        final LatencyHistogram tailQueries = Metrics.histogram("rh_query_seconds", "query", "tail");
+        final LatencyHistogram headQueries = Metrics.histogram("rh_query_seconds", "query", "head");
         int id;
 
         QueryCreator(int id) {
@@ -349,17 +473,21 @@ public class Evaluator {
         }
 
         @Override
-        public void run() {
+        protected void work() {
             try(Transaction tx = graph.beginTx()) {
                 while (!testPairs.isEmpty()) {
                     Pair testPair = testPairs.poll();
                     if (testPair != null) {
-                        Collection<Pair> tailAnswers = Settings.PRIOR_FILTERING ?
-                                filter(subIndex.get(testPair.subId), testPair) : subIndex.get(testPair.subId);
-                        predictionContentQueue.put(createQueryAnswers("Tail Query: ", testPair, tailAnswers));
-                        Collection<Pair> headAnswers = Settings.PRIOR_FILTERING ?
-                                filter(objIndex.get(testPair.objId), testPair) : objIndex.get(testPair.objId);
-                        predictionContentQueue.put(createQueryAnswers("Head Query: ", testPair, headAnswers));
+                        long s = System.nanoTime();
+                        Pair[] tailAnswers = sortedSubIndex.computeIfAbsent(testPair.subId, k -> sortedAccess(subIndex.get(k)));
+                        createQueryAnswers("Tail Query: ", testPair, tailAnswers);
+                        tailQueries.recordSince(s);
+                        Tracer.end(s, "query", "tail query", testPair);
+                        s = System.nanoTime();
+                        Pair[] headAnswers = sortedObjIndex.computeIfAbsent(testPair.objId, k -> sortedAccess(objIndex.get(k)));
+                        createQueryAnswers("Head Query: ", testPair, headAnswers);
+                        headQueries.recordSince(s);
+                        Tracer.end(s, "query", "head query", testPair);
                     }
                 }
                 tx.success();
@@ -369,98 +497,161 @@ public class Evaluator {
             }
         }
 
-        private String createQueryAnswers(String header, Pair testPair, Collection<Pair> answers) {
-            String content = header + testPair.toQueryString(graph) + "\n";
-            List<Pair> rankedAnswers = new ArrayList<>();
-            if(!answers.isEmpty()) {
-                rankedAnswers = rankCandidates(answers, candidates);
-                for (Pair answer : rankedAnswers.subList(0, Math.min(rankedAnswers.size(), Settings.TOP_K))) {
-                    content += answer.toQueryString(graph) + "\t" + f.format(answer.scores[0]) + "\n";
+        private void createQueryAnswers(String header, Pair testPair, Pair[] answers) throws InterruptedException {
+            List<Pair> topAnswers = selectTopCandidates(answers, testPair
+                    , Math.max(Settings.TOP_K, Settings.VERIFY_PREDICTION_SIZE));
+            List<Pair> predictions = topAnswers.subList(0, Math.min(topAnswers.size(), Settings.TOP_K));
+            if(Settings.BINARY_PREDICTIONS) {
+                boolean headQuery = header.startsWith("Head");
+                long[] ids = new long[predictions.size()];
+                double[] scores = new double[predictions.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    Pair answer = predictions.get(i);
+                    ids[i] = headQuery ? answer.subId : answer.objId;
+                    scores[i] = topScore(answer);
+                    name(ids[i]);
+                }
+                name(testPair.subId);
+                name(testPair.objId);
+                binaryContentQueue.put(BinaryPredictions.encode(headQuery, testPair.subId, testPair.objId
+                        , target.getBytes(StandardCharsets.UTF_8), ids, scores, ids.length));
+            } else {
+                StringBuilder content = appendQueryString(new StringBuilder(header), testPair).append("\n");
+                for (Pair answer : predictions) {
+                    appendQueryString(content, answer).append("\t").append(f.format(topScore(answer))).append("\n");
                 }
+                predictionContentQueue.put(content.append("\n").toString());
             }
-            populateVerification(header, testPair, rankedAnswers);
-            content += "\n";
-            return content;
+            populateVerification(header, testPair, topAnswers, answers);
         }
 
-        private void populateVerification(String header, Pair testPair, List<Pair> rankedAnswers) {
-            int topAnswers = Settings.VERIFY_PREDICTION_SIZE;
+        private void populateVerification(String header, Pair testPair, List<Pair> topAnswers, Pair[] answers) {
+            int topPredictions = Settings.VERIFY_PREDICTION_SIZE;
             int topRules = Settings.VERIFY_RULE_SIZE;
 
-            String verificationContent = header + testPair.toVerificationString(graph) + "\n";
-            if(rankedAnswers.isEmpty()) {
-                verificationContent += "\n";
-                verificationContentQueue.add(verificationContent);
+            StringBuilder verificationContent = appendVerificationString(new StringBuilder(header), testPair).append("\n");
+            if(topAnswers.isEmpty()) {
+                verificationContent.append("\n");
+                verificationContentQueue.add(verificationContent.toString());
                 return;
             }
 
             int count = 1;
-            for (Pair pair : rankedAnswers.subList(0, Math.min(topAnswers, rankedAnswers.size()))) {
-                verificationContent += "Top Answer: " + count + "\t" + pair.toVerificationString(graph) + "\n";
-                List<Rule> rules = new ArrayList<>(candidates.get(pair));
-                rules.sort(IO.ruleComparatorBySC());
-                for (Rule rule : rules.subList(0, Math.min(topRules, rules.size()))) {
-                    verificationContent += rule + "\t" + f.format(rule.getQuality()) + "\n";
-                }
-                verificationContent += "\n";
+            for (Pair pair : topAnswers.subList(0, Math.min(topPredictions, topAnswers.size()))) {
+                verificationContent.append("Top Answer: ").append(count).append("\t");
+                appendVerificationString(verificationContent, pair).append("\n");
+                appendRules(verificationContent, candidates.get(pair), topRules);
                 count++;
             }
 
-            if(rankedAnswers.contains(testPair)) {
-                verificationContent += "Correct Answer: " + (rankedAnswers.indexOf(testPair) + 1) +  "\t" + testPair.toVerificationString(graph) + "\n";
-                List<Rule> rules = new ArrayList<>(candidates.get(testPair));
-                rules.sort(IO.ruleComparatorBySC());
-                for (Rule rule : rules.subList(0, Math.min(topRules, rules.size()))) {
-                    verificationContent += rule + "\t" + f.format(rule.getQuality()) + "\n";
-                }
-                verificationContent += "\n";
+            int rank = rankOf(testPair, answers);
+            if(rank != 0) {
+                verificationContent.append("Correct Answer: ").append(rank).append("\t");
+                appendVerificationString(verificationContent, testPair).append("\n");
+                appendRules(verificationContent, candidates.get(testPair), topRules);
             } else {
-                verificationContent += "No Correct Answer\n\n";
+                verificationContent.append("No Correct Answer\n\n");
             }
 
-            verificationContentQueue.add(verificationContent);
+            verificationContentQueue.add(verificationContent.toString());
         }
 
-        private Set<Pair> filter(Collection<Pair> answers, Pair testPair) {
-            Set<Pair> filtered = new HashSet<>();
-            for (Pair answer : answers) {
-                if(!filterSet.contains(answer) || answer.equals(testPair))
-                    filtered.add(answer);
+        private void appendRules(StringBuilder sb, List<Rule> rules, int topRules) {
+            for (Rule rule : rules.subList(0, Math.min(topRules, rules.size()))) {
+                sb.append(rule).append("\t").append(f.format(rule.getQuality())).append("\n");
             }
-            return filtered;
+            sb.append("\n");
         }
     }
 
-    class WriterTask extends Thread {
-        Thread[] threads;
-        File file;
-        BlockingQueue<String> contentQueue;
+    /**
+     * Orders the candidates of a query by their best rule quality. This is the sorted access
+     * list of the threshold algorithm and is built once per entity, then shared by all queries
+     * on that entity.
+     */
+    Pair[] sortedAccess(Collection<Pair> answers) {
+        Pair[] ar = answers.toArray(new Pair[0]);
+        Arrays.sort(ar, Comparator.comparingDouble((Pair pair) -> -topScore(pair))
+                .thenComparingLong(pair -> pair.subId)
+                .thenComparingLong(pair -> pair.objId));
+        return ar;
+    }
 
-        public WriterTask(Thread[] threads, File file, BlockingQueue<String> contentQueue) {
-            this.threads = threads;
-            this.file = file;
-            this.contentQueue = contentQueue;
-            start();
+    /**
+     * Threshold algorithm over the sorted access list: candidates are ranked by their quality
+     * lists in lexicographic order (max-aggregation), and the scan stops as soon as the best
+     * quality of the next candidate falls below that of the current k-th answer, as no later
+     * candidate can then enter the top-k. The rule lists in the prediction map are kept
+     * sorted, so quality lists are consumed lazily and only as deep as needed to break ties.
+     */
+    protected List<Pair> selectTopCandidates(Pair[] answers, Pair testPair, int k) {
+        List<Pair> top = new ArrayList<>(k + 1);
+        if(k <= 0) return top;
+        for (Pair answer : answers) {
+            if(isFiltered(answer, testPair))
+                continue;
+            if(top.size() == k && topScore(answer) < topScore(top.get(k - 1)))
+                break;
+            int i = top.size();
+            while(i > 0 && compareCandidates(answer, top.get(i - 1)) < 0)
+                i--;
+            if(i < k) {
+                top.add(i, answer);
+                if(top.size() > k) top.remove(k);
+            }
         }
+        return top;
+    }
 
-        @Override
-        public void run() {
-            boolean stop = false;
-            try(PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
-                while(!stop || !contentQueue.isEmpty()) {
-                    String line = contentQueue.poll();
-                    if(line != null) writer.print(line);
-                    boolean flag = true;
-                    for (Thread producer : threads) {
-                        if(producer.isAlive()) flag = false;
-                    }
-                    if(flag) stop = true;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(-1);
+    /**
+     * @return the 1-based rank of the test pair among the candidates in the same order as
+     * {@link #selectTopCandidates}, or 0 if the test pair is not suggested by any rule.
+     */
+    protected int rankOf(Pair testPair, Pair[] answers) {
+        if(!candidates.containsKey(testPair))
+            return 0;
+        double testScore = topScore(testPair);
+        int rank = 1;
+        boolean passed = false;
+        for (Pair answer : answers) {
+            if(topScore(answer) < testScore)
+                break;
+            if(answer.equals(testPair)) {
+                passed = true;
+                continue;
             }
+            if(isFiltered(answer, testPair))
+                continue;
+            int result = compareCandidates(answer, testPair);
+            if(result < 0 || (result == 0 && !passed))
+                rank++;
+        }
+        return rank;
+    }
+
+    boolean isFiltered(Pair answer, Pair testPair) {
+        return Settings.PRIOR_FILTERING && filterSet.contains(answer) && !answer.equals(testPair);
+    }
+
+    private double topScore(Pair pair) {
+        return candidates.get(pair).get(0).getQuality();
+    }
+
+    /**
+     * Compares two candidates by their descending rule quality lists, where a longer list
+     * wins if the shared prefix is equal.
+     * @return a negative value if the left candidate ranks higher than the right one.
+     */
+    private int compareCandidates(Pair left, Pair right) {
+        List<Rule> leftRules = candidates.get(left);
+        List<Rule> rightRules = candidates.get(right);
+        int length = Math.min(leftRules.size(), rightRules.size());
+        for (int i = 0; i < length; i++) {
+            int result = Double.compare(rightRules.get(i).getQuality(), leftRules.get(i).getQuality());
+            if(result != 0)
+                return result;
         }
+        return rightRules.size() - leftRules.size();
     }
 
     protected List<Pair> rankCandidates(Collection<Pair> answers, Multimap<Pair, Rule> ruleMap) {
@@ -4,6 +4,7 @@ import uk.ac.ncl.Settings;
 import uk.ac.ncl.structure.Stamp;
 import uk.ac.ncl.utils.Logger;
 import uk.ac.ncl.utils.MathUtils;
+import uk.ac.ncl.utils.Metrics;
 
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
@@ -14,10 +15,6 @@ import java.util.List;
 public class GlobalTimer {
     static DecimalFormat f = new DecimalFormat("####.###");
 
-    private static long specStartTime = 0;
-    private static long genStartTime = 0;
-    private static long essentialStartTime = 0;
-
     public static long programStartTime = 0;
 
     public static List<Double> generalizationTime = new ArrayList<>();
@@ -31,41 +28,51 @@ public class GlobalTimer {
     public static List<Double> allMem = new ArrayList<>();
     public static List<Double> allTime = new ArrayList<>();
 
-    public static void updateGenEssentialStats(Stamp stamp) {
+    public static synchronized void updateGenEssentialStats(Stamp stamp) {
         genEssentialTime.add(stamp.time);
         genEssentialMem.add(stamp.mem);
         allTime.add(stamp.time);
         allMem.add(stamp.mem);
+        recordPhase("essential", stamp);
     }
 
-    public static void updateTemplateGenStats(Stamp stamp) {
+    public static synchronized void updateTemplateGenStats(Stamp stamp) {
         generalizationTime.add(stamp.time);
         generalizationMem.add(stamp.mem);
         allTime.add(stamp.time);
         allMem.add(stamp.mem);
+        recordPhase("generalization", stamp);
     }
 
-    public static void updateInsRuleStats(Stamp stamp) {
+    public static synchronized void updateInsRuleStats(Stamp stamp) {
         specializationTime.add(stamp.time);
         specializationMem.add(stamp.mem);
         allTime.add(stamp.time);
         allMem.add(stamp.mem);
+        recordPhase("specialization", stamp);
     }
 
-    public static void updateRuleApplyStats(Stamp stamp) {
+    public static synchronized void updateRuleApplyStats(Stamp stamp) {
         ruleApplyTime.add(stamp.time);
         ruleApplyMem.add(stamp.mem);
         allTime.add(stamp.time);
         allMem.add(stamp.mem);
+        recordPhase("rule_application", stamp);
+    }
+
+    private static void recordPhase(String phase, Stamp stamp) {
+        Metrics.histogram("rh_phase_seconds", "phase", phase).record((long) (stamp.time * 1e9));
     }
 
-    public static void reportMaxMemoryUsed() {
+    public static synchronized void reportMaxMemoryUsed() {
         allMem.sort(Comparator.reverseOrder());
         double value = allMem.isEmpty() ? 0 : allMem.get(0);
-        Logger.println("# Memory Usage: " + f.format(value) + "mb");
+        double[] peaks = HeapSampler.peaks();
+        Logger.println("# Memory Usage: " + f.format(value) + "mb | Peak Heap: " + f.format(peaks[0])
+                + "mb | Peak Live Heap: " + f.format(peaks[1]) + "mb");
     }
 
-    public static void reportTime() {
+    public static synchronized void reportTime() {
         double totalRuntime = (double) (System.currentTimeMillis() - programStartTime) / 1000;
         Logger.println(MessageFormat.format("# Runtime: Total = {0}s | Avg per Target = {1}s\n" +
                 "# Generalization: Total = {2}s | Avg per Target = {3}s\n" +
@@ -83,31 +90,31 @@ public class GlobalTimer {
     public static boolean stopSpec() {
         if(Settings.SPEC_TIME == 0)
             return false;
-        return ((double) (System.currentTimeMillis() - specStartTime) / 1000d) > Settings.SPEC_TIME;
+        return ((double) (System.currentTimeMillis() - Context.current().specStartTime) / 1000d) > Settings.SPEC_TIME;
     }
 
     public static void setSpecStartTime(long insStartTime) {
-        GlobalTimer.specStartTime = insStartTime;
+        Context.current().specStartTime = insStartTime;
     }
 
     public static void setEssentialStartTime(long startTime) {
-        GlobalTimer.essentialStartTime = startTime;
+        Context.current().essentialStartTime = startTime;
     }
 
     public static boolean stopEssential() {
         if(Settings.ESSENTIAL_TIME == 0)
             return false;
-        return ((double) (System.currentTimeMillis() - essentialStartTime) / 1000d) > Settings.ESSENTIAL_TIME;
+        return ((double) (System.currentTimeMillis() - Context.current().essentialStartTime) / 1000d) > Settings.ESSENTIAL_TIME;
     }
 
     public static void setGenStartTime(long genStartTime) {
-        GlobalTimer.genStartTime = genStartTime;
+        Context.current().genStartTime = genStartTime;
     }
 
     public static boolean stopGen() {
         if(Settings.GEN_TIME == 0)
             return false;
-        return ((double) (System.currentTimeMillis() - genStartTime) / 1000d) > Settings.GEN_TIME;
+        return ((double) (System.currentTimeMillis() - Context.current().genStartTime) / 1000d) > Settings.GEN_TIME;
     }
 
 }
@@ -57,7 +57,7 @@ public class GraphOps {
                     aggPred[counter.count] = rule.stats.totalPredictions;
                     counter.tick();
                 });
-                Relationship strengthRelationship = startNode.createRelationshipTo(endNode, RelationshipType.withName(Settings.TARGET));
+                Relationship strengthRelationship = startNode.createRelationshipTo(endNode, RelationshipType.withName(Context.current().getTarget()));
                 strengthRelationship.setProperty("Mean Confidence", Helpers.formatDouble(format, MathUtils.arrayMean(aggConf)));
                 strengthRelationship.setProperty("Confidences", aggConf);
 
@@ -305,13 +305,20 @@ public class GraphOps {
     }
 
     public static Traverser buildStandardTraverser(GraphDatabaseService graph, Pair pair, int randomWalkers){
+        return buildStandardTraverser(graph, pair, randomWalkers, new Random());
+    }
+
+    /**
+     * @param random picks the relationships followed by the random walker
+     */
+    public static Traverser buildStandardTraverser(GraphDatabaseService graph, Pair pair, int randomWalkers, Random random){
         Traverser traverser;
         Node startNode = graph.getNodeById(pair.subId);
         Node endNode = graph.getNodeById(pair.objId);
         traverser = graph.traversalDescription()
                 .uniqueness(Uniqueness.NODE_PATH)
                 .order(BranchingPolicy.PreorderBFS())
-                .expand(standardRandomWalker(randomWalkers))
+                .expand(standardRandomWalker(randomWalkers, random))
                 .evaluator(toDepthNoTrivial(Settings.DEPTH, pair))
                 .traverse(startNode, endNode);
         return traverser;
@@ -400,14 +407,17 @@ public class GraphOps {
     }
 
     public static PathExpander standardRandomWalker(int randomWalkers) {
-        return new PathExpander() {
+        return standardRandomWalker(randomWalkers, new Random());
+    }
+
+    public static <STATE> PathExpander<STATE> standardRandomWalker(int randomWalkers, Random rand) {
+        return new PathExpander<STATE>() {
             @Override
-            public Iterable<Relationship> expand(Path path, BranchState state) {
+            public Iterable<Relationship> expand(Path path, BranchState<STATE> state) {
                 Set<Relationship> results = Sets.newHashSet();
                 List<Relationship> candidates = Lists.newArrayList( path.endNode().getRelationships() );
                 if ( candidates.size() < randomWalkers || randomWalkers == 0 ) return candidates;
 
-                Random rand = new Random();
                 for ( int i = 0; i < randomWalkers; i++ ) {
                     int choice = rand.nextInt( candidates.size() );
                     results.add( candidates.get( choice ) );
@@ -418,7 +428,7 @@ public class GraphOps {
             }
 
             @Override
-            public PathExpander reverse() {
+            public PathExpander<STATE> reverse() {
                 return null;
             }
         };
@@ -0,0 +1,57 @@
+package uk.ac.ncl.core;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import uk.ac.ncl.Settings;
+import uk.ac.ncl.structure.CountedSet;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Body groundings of the abstract rules of a target, shared by the contexts learning the target
+ * under different settings. Groundings only depend on the rule and the grounding cap, so they are
+ * kept per rule and cap. Groundings cut short by a time or suggestion cap depend on the context
+ * and are not kept. The groundings are never modified once computed.
+ */
+public class GroundingCache {
+    private final Map<String, CountedSet<Pair>> learning = new ConcurrentHashMap<>();
+    private final Map<String, CountedSet<Pair>> application = new ConcurrentHashMap<>();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder computed = new LongAdder();
+
+    public CountedSet<Pair> learning(GraphDatabaseService graph, Rule rule, GroundingEngine engine) {
+        String key = Settings.LEARN_GROUNDINGS + "|" + rule;
+        CountedSet<Pair> groundings = learning.get(key);
+        if(groundings != null) {
+            reused.increment();
+            return groundings;
+        }
+        groundings = engine.bodyGroundings(graph, rule, false, GlobalTimer::stopSpec);
+        computed.increment();
+        if(!GlobalTimer.stopSpec())
+            learning.putIfAbsent(key, groundings);
+        return groundings;
+    }
+
+    public CountedSet<Pair> application(GraphDatabaseService graph, Rule rule, Context context, GroundingEngine engine) {
+        String key = Settings.APPLY_GROUNDINGS + "|" + rule;
+        CountedSet<Pair> groundings = application.get(key);
+        if(groundings != null) {
+            reused.increment();
+            return groundings;
+        }
+        groundings = engine.bodyGroundings(graph, rule, true, context::checkSuggestionCap);
+        computed.increment();
+        if(!context.checkSuggestionCap())
+            application.putIfAbsent(key, groundings);
+        return groundings;
+    }
+
+    public String report() {
+        return MessageFormat.format("# Shared Groundings: Reused = {0} | Computed = {1}", reused.sum(), computed.sum());
+    }
+}
@@ -0,0 +1,26 @@
+package uk.ac.ncl.core;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import uk.ac.ncl.structure.CountedSet;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+
+import java.util.function.Supplier;
+
+/**
+ * Finds the body groundings of a rule: the pairs of start and end nodes of the paths matching its
+ * body atoms, each counted by the number of its paths. Engines must agree with {@link #NEO4J} on
+ * the groundings and their counts, including which groundings are kept when capped, which is
+ * checked by {@link DifferentialHarness}.
+ */
+public interface GroundingEngine {
+    GroundingEngine NEO4J = GraphOps::bodyGroundingCoreAPI;
+
+    /**
+     * @param application if the rule is being applied, which caps the groundings at APPLY_GROUNDINGS
+     *                    instead of LEARN_GROUNDINGS
+     * @param stoppingCondition stops the search, keeping the groundings found so far
+     */
+    CountedSet<Pair> bodyGroundings(GraphDatabaseService graph, Rule pattern, boolean application
+            , Supplier<Boolean> stoppingCondition);
+}
@@ -0,0 +1,288 @@
+package uk.ac.ncl.core;
+
+import com.google.common.collect.Multimap;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.json.JSONObject;
+import uk.ac.ncl.Hierarchy.RuleHierarchy;
+import uk.ac.ncl.structure.Pair;
+import uk.ac.ncl.structure.Rule;
+import uk.ac.ncl.utils.Logger;
+import uk.ac.ncl.utils.Metrics;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the heap over the phases of the targets. Every GC reports the heap used before and after
+ * it, so the peak heap and the peak live heap of each phase are known without polling. The bytes
+ * allocated in a phase are summed over the driver thread and the threads it creates, which add
+ * their allocations when they end. The retained sizes of the big structures of a target are
+ * estimated from their entry counts.
+ * <p>
+ * The phases of all targets are written to [out]/heap.json when the process ends.
+ */
+public class HeapSampler {
+    private final static com.sun.management.ThreadMXBean threads = allocationBean();
+    private final static InheritableThreadLocal<Phase> current = new InheritableThreadLocal<>();
+    private final static Set<Phase> active = ConcurrentHashMap.newKeySet();
+    private final static List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+    private final static Map<String, Map<String, Long>> retained = new ConcurrentHashMap<>();
+    private final static LongAccumulator peakUsed = new LongAccumulator(Math::max, 0);
+    private final static LongAccumulator peakLive = new LongAccumulator(Math::max, 0);
+    private final static Set<String> heapPools = new HashSet<>();
+    private static File file;
+
+    /**
+     * Starts listening to the GCs. The phases are written to the file when the process ends.
+     */
+    public static synchronized void start(File file) {
+        if(HeapSampler.file == null) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if(pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool.getName());
+            }
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if(gc instanceof NotificationEmitter)
+                    ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                        if(notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                            collected(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+                    }, null, null);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(HeapSampler::write, "HeapSampler-Shutdown"));
+        }
+        HeapSampler.file = file;
+    }
+
+    /**
+     * Starts the phase of the target of the current context on the calling thread. The threads
+     * created by the calling thread until the phase ends are counted in the phase.
+     */
+    public static Phase begin(String name) {
+        Phase phase = new Phase(target(), name);
+        phase.startBytes = threadAllocatedBytes();
+        phase.peakUsed.accumulate(usedHeap());
+        active.add(phase);
+        current.set(phase);
+        return phase;
+    }
+
+    public static void end(Phase phase) {
+        phase.allocated.add(threadAllocatedBytes() - phase.startBytes);
+        phase.peakUsed.accumulate(usedHeap());
+        phase.time = System.currentTimeMillis() - phase.startTime;
+        active.remove(phase);
+        current.remove();
+        phases.add(phase);
+        DecimalFormat f = new DecimalFormat("####.###");
+        Logger.println(MessageFormat.format("# Heap: peak = {0}mb | peak live = {1}mb | allocated = {2}mb | GCs = {3}"
+                , f.format(mb(phase.peakUsed.get())), f.format(mb(phase.peakLive.get()))
+                , f.format(mb(phase.allocated.sum())), phase.collections.sum()), 3);
+    }
+
+    /**
+     * @return the bytes allocated so far by the calling thread, to be passed to {@link #threadEnd}.
+     */
+    public static long threadStart() {
+        return threadAllocatedBytes();
+    }
+
+    /**
+     * Adds the bytes allocated by the calling thread since start to the phase it was created in.
+     */
+    public static void threadEnd(long start) {
+        Phase phase = current.get();
+        if(phase != null)
+            phase.allocated.add(threadAllocatedBytes() - start);
+    }
+
+    /**
+     * Records the estimated retained size of a structure of the target of the current context.
+     */
+    public static void retained(String structure, long bytes) {
+        retained.computeIfAbsent(target(), k -> new ConcurrentHashMap<>()).merge(structure, bytes, Math::max);
+        Logger.println(MessageFormat.format("# Retained Size: {0} = {1}mb"
+                , structure, new DecimalFormat("####.###").format(mb(bytes))), 3);
+    }
+
+    /**
+     * @return the peak heap and the peak live heap of the run, in mb.
+     */
+    public static double[] peaks() {
+        return new double[]{mb(Math.max(peakUsed.get(), usedHeap())), mb(peakLive.get())};
+    }
+
+    /**
+     * @return the target of the current context, or "all" for the phases run over all targets.
+     */
+    private static String target() {
+        Context context = Context.current();
+        return context == null ? "all" : context.getTarget();
+    }
+
+    private static void collected(GarbageCollectionNotificationInfo info) {
+        GcInfo gc = info.getGcInfo();
+        long before = heap(gc.getMemoryUsageBeforeGc()), after = heap(gc.getMemoryUsageAfterGc());
+        peakUsed.accumulate(before);
+        peakLive.accumulate(after);
+        for (Phase phase : active) {
+            phase.peakUsed.accumulate(before);
+            phase.peakLive.accumulate(after);
+            phase.collections.increment();
+            phase.pauseTime.add(gc.getDuration());
+        }
+        Metrics.histogram("rh_gc_pause_seconds", "gc", info.getGcName()).record(gc.getDuration() * 1000000L);
+    }
+
+    private static long heap(Map<String, MemoryUsage> pools) {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> entry : pools.entrySet()) {
+            if(heapPools.contains(entry.getKey()))
+                used += entry.getValue().getUsed();
+        }
+        return used;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static synchronized void write() {
+        JSONObject targets = new JSONObject();
+        for (Phase phase : phases.toArray(new Phase[0])) {
+            if(!targets.has(phase.target))
+                targets.put(phase.target, new JSONObject().put("phases", new ArrayList<>()));
+            targets.getJSONObject(phase.target).getJSONArray("phases").put(new JSONObject()
+                    .put("phase", phase.name)
+                    .put("time_seconds", phase.time / 1000d)
+                    .put("peak_heap_mb", mb(phase.peakUsed.get()))
+                    .put("peak_live_heap_mb", mb(phase.peakLive.get()))
+                    .put("allocated_mb", mb(phase.allocated.sum()))
+                    .put("gc_count", phase.collections.sum())
+                    .put("gc_pause_seconds", phase.pauseTime.sum() / 1000d));
+        }
+        for (Map.Entry<String, Map<String, Long>> entry : retained.entrySet()) {
+            if(!targets.has(entry.getKey()))
+                targets.put(entry.getKey(), new JSONObject());
+            JSONObject sizes = new JSONObject();
+            entry.getValue().forEach((structure, bytes) -> sizes.put(structure, mb(bytes)));
+            targets.getJSONObject(entry.getKey()).put("retained_mb", sizes);
+        }
+        double[] peaks = peaks();
+        JSONObject json = new JSONObject()
+                .put("max_heap_mb", mb(Runtime.getRuntime().maxMemory()))
+                .put("peak_heap_mb", peaks[0])
+                .put("peak_live_heap_mb", peaks[1])
+                .put("targets", targets);
+        try {
+            Files.write(file.toPath(), json.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static long threadAllocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if(!threads.isThreadAllocatedMemorySupported())
+            return null;
+        if(!threads.isThreadAllocatedMemoryEnabled())
+            threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static double mb(double bytes) {
+        return Math.round(bytes / 1024d / 1024d * 1000d) / 1000d;
+    }
+
+    // Shallow sizes in bytes on a 64-bit JVM with compressed references, rounded to 8 bytes.
+    private final static int MAP_NODE = 32, MAP_SLOT = 6, ARRAY_LIST = 24, ARRAY = 16, REFERENCE = 4
+            , PAIR = 64, INTEGER = 16, RULE = 32, RULE_STATS = 120, ATOM = 48, TEMPLATE_KEY = 32, HASH_SET = 16
+            , HASH_MAP = 48, TREE_NODE = 32, BI_MAP_ENTRY = 56;
+
+    /**
+     * @return the estimated size of the prediction map: its entries, the predicted pairs, the rule
+     * lists and the instantiated rules, which are only referenced from the lists once applied.
+     */
+    public static long sizeOfPredictionMap(Map<Pair, List<Rule>> predictionMap) {
+        long size = 0;
+        Set<Rule> rules = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Rule> list : predictionMap.values()) {
+            size += MAP_NODE + MAP_SLOT + PAIR + ARRAY_LIST + ARRAY + (long) REFERENCE * capacity(list.size());
+            rules.addAll(list);
+        }
+        return size + (long) rules.size() * (RULE + RULE_STATS + 2 * 8 + 2 * REFERENCE);
+    }
+
+    /**
+     * @return the estimated size of the rule prediction map, whose rules and pairs are counted by the
+     * prediction map.
+     */
+    public static long sizeOfRulePredictionMap(Multimap<Rule, Pair> rulePredictionMap) {
+        return (long) rulePredictionMap.keySet().size() * (MAP_NODE + MAP_SLOT + HASH_SET + HASH_MAP + ARRAY + 16 * REFERENCE)
+                + (long) rulePredictionMap.size() * (MAP_NODE + MAP_SLOT);
+    }
+
+    /**
+     * @return the estimated size of the frequency map and of its abstract rules.
+     */
+    public static long sizeOfRuleFrequency(Map<Rule, Integer> ruleFrequency) {
+        long size = 0;
+        for (Rule rule : ruleFrequency.keySet()) {
+            size += MAP_NODE + MAP_SLOT + INTEGER + RULE + RULE_STATS + 2 * (ARRAY_LIST + ARRAY)
+                    + (long) REFERENCE * capacity(rule.length());
+            size += (rule.length() + 1) * (ATOM + 4L) + TEMPLATE_KEY + ARRAY;
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated size of the tree nodes of the hierarchy and of its query map once all
+     * nodes are queried. The rules are counted by the frequency map.
+     */
+    public static long sizeOfHierarchy(RuleHierarchy hierarchy) {
+        long nodes = hierarchy.size() + 1;
+        return nodes * (TREE_NODE + ARRAY_LIST + ARRAY + REFERENCE + BI_MAP_ENTRY);
+    }
+
+    private static int capacity(int size) {
+        int capacity = 10;
+        while(capacity < size) capacity += capacity >> 1;
+        return capacity;
+    }
+
+    public static class Phase {
+        final String target;
+        final String name;
+        final long startTime = System.currentTimeMillis();
+        final LongAccumulator peakUsed = new LongAccumulator(Math::max, 0);
+        final LongAccumulator peakLive = new LongAccumulator(Math::max, 0);
+        final LongAdder allocated = new LongAdder();
+        final LongAdder collections = new LongAdder();
+        final LongAdder pauseTime = new LongAdder();
+        long startBytes;
+        long time;
+
+        Phase(String target, String name) {
+            this.target = target;
+            this.name = name;
+        }
+    }
+}
@@ -68,9 +68,10 @@ public class ModelSelection {
         Set<Pair> inferredTriples = new HashSet<>();
         Map<Long, Long> entityIndexMap = new HashMap<>();
         Map<Pair, List<Rule>> predictionMap = context.getPredictionMap();
+        FilterSet filterSet = context.getFilterSet();
 
         for (Pair pair : predictionMap.keySet()) {
-            if(FilterSet.isKnownWithTest(pair)) knownTriples.add(pair);
+            if(filterSet.isKnownWithTest(pair)) knownTriples.add(pair);
         }
         for (Rule qualityRule : qualityRules) {
             for (Pair pair : context.rulePredictionMap.get(qualityRule)) {
@@ -82,9 +83,9 @@ public class ModelSelection {
         System.out.println(MessageFormat.format("\n# Build Rule Graph with {6} Quality Rules" +
                         "\n# Known: all={0} | explained={1} | ratio={2} " +
                         "\n# Inferred: all={3} | quality={4} | ratio={5}"
-                , FilterSet.size()
+                , filterSet.size()
                 , knownTriples.size()
-                , f.format((double) knownTriples.size() / FilterSet.size())
+                , f.format((double) knownTriples.size() / filterSet.size())
                 , predictionMap.keySet().size()
                 , inferredTriples.size()
                 , f.format((double) inferredTriples.size() / predictionMap.keySet().size())
@@ -119,7 +120,7 @@ public class ModelSelection {
                         entityIndexMap.put(current.objId, end.getId());
                     }
 
-                    Relationship rel = start.createRelationshipTo(end, RelationshipType.withName("known_" + Settings.TARGET));
+                    Relationship rel = start.createRelationshipTo(end, RelationshipType.withName("known_" + context.getTarget()));
                     rules.sort(IO.ruleComparatorBySC());
                     rel.setProperty("confidence", rules.get(0).getQuality());
                     rules.sort(IO.ruleComparatorByValidPrec());
@@ -175,7 +176,7 @@ public class ModelSelection {
                         entityIndexMap.put(current.objId, end.getId());
                     }
 
-                    Relationship rel = start.createRelationshipTo(end, RelationshipType.withName("inferred_" + Settings.TARGET));
+                    Relationship rel = start.createRelationshipTo(end, RelationshipType.withName("inferred_" + context.getTarget()));
                     rules.sort(IO.ruleComparatorBySC());
                     rel.setProperty("confidence", rules.get(0).getQuality());
                     rules.sort(IO.ruleComparatorByValidPrec());
@@ -217,7 +218,8 @@ public class ModelSelection {
             this.maxRuleSize = maxRuleSize;
             int testSupport = 0;
             int filteredPredictions = 0;
-            int groundTruths = FilterSet.testSetSize();
+            FilterSet filterSet = Context.current().getFilterSet();
+            int groundTruths = filterSet.testSetSize();
             this.header = header;
             rules = new ArrayList<>(map.keySet());
 
@@ -243,9 +245,9 @@ public class ModelSelection {
             for (Rule rule : rules) {
                 for (Pair pair : map.get(rule)) {
                     if(!visited.contains(pair)) {
-                        if(!FilterSet.isKnown(pair)) {
+                        if(!filterSet.isKnown(pair)) {
                             filteredPredictions++;
-                            if(FilterSet.inTestSet(pair)) {
+                            if(filterSet.inTestSet(pair)) {
                                 testSupport++;
                             } else {
                                 inferred++;
@@ -0,0 +1,211 @@
+package uk.ac.ncl.core;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import uk.ac.ncl.structure.Atom;
+import uk.ac.ncl.structure.Pair;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Samples the paths of training pairs as {@link GraphOps#buildStandardTraverser} does, without the
+ * traversal framework. The relationships of a node are read from the graph once and kept in arrays,
+ * and at each node of a path up to randomWalkers of them are picked by index, so a step copies no
+ * relationships and allocates nothing. Paths are node-unique and are included and pruned by the
+ * rules of {@link GraphOps#toDepthNoTrivial}. Paths of a pair are visited depth first instead of
+ * breadth first, which does not change the paths that can be sampled.
+ * <p>
+ * The arrays are shared by the threads sampling the same graph and must not outlive changes to it.
+ */
+public class PathSampler {
+    private final GraphDatabaseService graph;
+    private final int depth;
+    private final int randomWalkers;
+    private final Map<Long, Adjacency> adjacency = new ConcurrentHashMap<>();
+
+    public PathSampler(GraphDatabaseService graph, int depth, int randomWalkers) {
+        this.graph = graph;
+        this.depth = depth;
+        this.randomWalkers = randomWalkers;
+    }
+
+    /**
+     * @return the walk of a thread, which samples with the random of the thread.
+     */
+    public Walk walk(SplittableRandom random) {
+        return new Walk(random);
+    }
+
+    private Adjacency adjacency(long node) {
+        return adjacency.computeIfAbsent(node, k -> new Adjacency(graph.getNodeById(k)));
+    }
+
+    /**
+     * Relationships of a node in the order of Node.getRelationships(), each given by its id, the
+     * other node and the code of the atom it makes from the node, see {@link Atom#encode()}.
+     */
+    private static class Adjacency {
+        final long[] relationships;
+        final long[] others;
+        final int[] codes;
+
+        Adjacency(Node node) {
+            int degree = node.getDegree();
+            long[] relationships = new long[degree];
+            long[] others = new long[degree];
+            int[] codes = new int[degree];
+            int i = 0;
+            long id = node.getId();
+            for (Relationship relationship : node.getRelationships()) {
+                if(i == degree) {
+                    relationships = grow(relationships);
+                    others = grow(others);
+                    codes = Arrays.copyOf(codes, relationships.length);
+                }
+                boolean inverse = relationship.getEndNodeId() == id;
+                relationships[i] = relationship.getId();
+                others[i] = relationship.getOtherNodeId(id);
+                codes[i] = Atom.predicateId(relationship.getType().name()) << 1 | (inverse ? 1 : 0);
+                i++;
+            }
+            this.relationships = Arrays.copyOf(relationships, i);
+            this.others = Arrays.copyOf(others, i);
+            this.codes = Arrays.copyOf(codes, i);
+        }
+
+        private static long[] grow(long[] array) {
+            return Arrays.copyOf(array, Math.max(8, array.length * 2));
+        }
+    }
+
+    public interface Visitor {
+        /**
+         * @return false to stop sampling the pair.
+         */
+        boolean visit(Walk walk);
+    }
+
+    /**
+     * Sampling state of a thread. The current path is held by nodes[0..length], relationships and
+     * codes[0..length - 1], and is only valid during the visit.
+     */
+    public class Walk {
+        private final SplittableRandom random;
+        public final long[] nodes = new long[depth + 1];
+        public final long[] relationships = new long[depth];
+        public final int[] codes = new int[depth];
+        public int length;
+        private final int[][] picks = new int[depth][randomWalkers];
+        private Pair pair;
+        private int target;
+        private boolean stop;
+
+        Walk(SplittableRandom random) {
+            this.random = random;
+        }
+
+        public SplittableRandom random() {
+            return random;
+        }
+
+        /**
+         * Visits the sampled paths of the pair from its subject and then from its object.
+         */
+        public void sample(Pair pair, Visitor visitor) {
+            this.pair = pair;
+            this.target = Atom.predicateId(pair.type.name());
+            stop = false;
+            sample(pair.subId, visitor);
+            if(!stop)
+                sample(pair.objId, visitor);
+        }
+
+        private void sample(long start, Visitor visitor) {
+            nodes[0] = start;
+            length = 0;
+            expand(visitor);
+        }
+
+        private void expand(Visitor visitor) {
+            Adjacency from = adjacency(nodes[length]);
+            int degree = from.others.length;
+            int[] pick = picks[length];
+            int count = pick(degree, pick);
+            for (int j = 0; j < count && !stop; j++) {
+                int i = count == degree ? j : pick[j];
+                long next = from.others[i];
+                if(onPath(next)) continue;
+                nodes[length + 1] = next;
+                relationships[length] = from.relationships[i];
+                codes[length] = from.codes[i];
+                length++;
+                int evaluation = evaluate();
+                if((evaluation & INCLUDE) != 0 && !visitor.visit(this))
+                    stop = true;
+                if((evaluation & CONTINUE) != 0 && !stop)
+                    expand(visitor);
+                length--;
+            }
+        }
+
+        /**
+         * Picks the relationships to follow from a node as the standard random walker: all of them
+         * if there are fewer than randomWalkers, or else randomWalkers distinct ones by Floyd's algorithm.
+         *
+         * @return the number of relationships picked, which are all of them if it equals the degree
+         */
+        private int pick(int degree, int[] pick) {
+            if(degree < randomWalkers || randomWalkers == 0)
+                return degree;
+            int count = 0;
+            for (int j = degree - randomWalkers; j < degree; j++) {
+                int t = random.nextInt(j + 1);
+                pick[count] = contains(pick, count, t) ? j : t;
+                count++;
+            }
+            return count;
+        }
+
+        private boolean contains(int[] array, int size, int value) {
+            for (int i = 0; i < size; i++) {
+                if(array[i] == value) return true;
+            }
+            return false;
+        }
+
+        private boolean onPath(long node) {
+            for (int i = 0; i <= length; i++) {
+                if(nodes[i] == node) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Evaluates the current path as {@link GraphOps#toDepthNoTrivial}.
+         */
+        private int evaluate() {
+            boolean fromSource = pair.subId == nodes[0];
+            long end = nodes[length];
+            boolean closed = fromSource ? end == pair.objId : end == pair.subId;
+            boolean hasTargetRelation = codes[length - 1] >> 1 == target;
+            if(length == 1 && hasTargetRelation) {
+                boolean inverse = (codes[0] & 1) == 1;
+                long startNode = inverse ? nodes[1] : nodes[0];
+                long endNode = inverse ? nodes[0] : nodes[1];
+                if(startNode == pair.objId && endNode == pair.subId)
+                    return INCLUDE;
+                if(closed)
+                    return 0;
+            }
+            if(closed)
+                return fromSource ? INCLUDE : 0;
+            return (length <= depth ? INCLUDE : 0) | (length < depth ? CONTINUE : 0);
+        }
+    }
+
+    private final static int INCLUDE = 1, CONTINUE = 2;
+}
@@ -0,0 +1,52 @@
+package uk.ac.ncl.core;
+
+/**
+ * Constant-size summary of a list of ranks, sufficient for hits@n (n <= MAX_HITS) and MRR.
+ * A rank of 0 means the correct answer is not predicted.
+ */
+public class RankHistogram {
+    public final static int MAX_HITS = 10;
+
+    /**
+     * counts[0] holds misses, counts[1..MAX_HITS] exact ranks and counts[MAX_HITS + 1] all ranks beyond.
+     */
+    private final long[] counts = new long[MAX_HITS + 2];
+    private double reciprocalSum = 0;
+
+    public void add(int rank) {
+        counts[Math.min(rank, MAX_HITS + 1)]++;
+        if(rank != 0) reciprocalSum += 1d / rank;
+    }
+
+    public void merge(RankHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        reciprocalSum += other.reciprocalSum;
+    }
+
+    public long size() {
+        long size = 0;
+        for (long count : counts) {
+            size += count;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public double hitsAt(int n) {
+        assert n <= MAX_HITS;
+        long sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += counts[i];
+        }
+        return sum == 0 ? 0 : (double) sum / size();
+    }
+
+    public double mrr() {
+        return reciprocalSum == 0 ? 0 : reciprocalSum / size();
+    }
+}
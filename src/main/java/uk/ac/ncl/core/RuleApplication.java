@@ -18,8 +18,8 @@ import java.util.concurrent.TimeUnit;
 public class RuleApplication {
     public static void multiThreadApplication(BlockingQueue<Rule> ruleQueue, GraphDatabaseService graph, Context context) {
         context.initConcurrentMaps();
-        ExecutorService service = Executors.newFixedThreadPool(Settings.THREAD_NUMBER);
-        for (int i = 0; i < Settings.THREAD_NUMBER; i++) {
+        ExecutorService service = Executors.newFixedThreadPool(context.getThreadNumber());
+        for (int i = 0; i < context.getThreadNumber(); i++) {
             service.submit(new RuleConsumer(i, ruleQueue, graph, context));
         }
         try {
@@ -0,0 +1,108 @@
+package uk.ac.ncl.core;
+
+import uk.ac.ncl.Settings;
+import uk.ac.ncl.structure.Rule;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Cost profiles of the templates of a target, enabled when PROFILE_TEMPLATES > 0. A profile covers
+ * the specialization or application of one template by one thread: the time spent in total and in
+ * grounding, the groundings and anchorings, the HAR/BAR candidates tried and kept, and the bytes
+ * allocated by the thread. The profiles of a phase are written to a CSV file, most expensive first.
+ */
+public class TemplateProfiler {
+    private final Queue<Profile> profiles = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Starts the profile of the template on the calling thread. Profiles are always returned, so that
+     * callers can record into them unconditionally, but only kept if profiling is enabled.
+     */
+    public Profile start(Rule template) {
+        Profile profile = new Profile(template, Settings.PROFILE_TEMPLATES > 0);
+        if(profile.enabled) {
+            profile.startBytes = HeapSampler.threadAllocatedBytes();
+            profile.startNanos = System.nanoTime();
+        }
+        return profile;
+    }
+
+    public void finish(Profile profile) {
+        if(!profile.enabled)
+            return;
+        profile.totalNanos = System.nanoTime() - profile.startNanos;
+        profile.allocatedBytes = HeapSampler.threadAllocatedBytes() - profile.startBytes;
+        profiles.add(profile);
+    }
+
+    /**
+     * Writes the top most expensive profiles recorded since the last write and forgets all of them.
+     *
+     * @param application if the profiles are of rule application, where the HAR/BAR columns count
+     *                    the applied head and both anchored rules
+     */
+    public void write(File file, boolean application, int top) {
+        List<Profile> list = new ArrayList<>(profiles);
+        profiles.clear();
+        list.sort(Comparator.comparingLong((Profile profile) -> profile.totalNanos).reversed());
+        file.getParentFile().mkdirs();
+        DecimalFormat f = new DecimalFormat("####.###");
+        try(PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(application ?
+                    "rule,total_ms,grounding_ms,groundings,anchorings,har_applied,bar_applied,allocated_mb" :
+                    "rule,total_ms,grounding_ms,groundings,anchorings,har_tried,har_kept,bar_tried,bar_kept,allocated_mb");
+            for (Profile profile : list.subList(0, Math.min(top, list.size()))) {
+                StringBuilder sb = new StringBuilder("\"").append(profile.rule.replace("\"", "\"\"")).append("\"")
+                        .append(',').append(f.format(profile.totalNanos / 1e6))
+                        .append(',').append(f.format(profile.groundingNanos / 1e6))
+                        .append(',').append(profile.groundings)
+                        .append(',').append(profile.anchorings)
+                        .append(',').append(profile.harTried);
+                if(!application)
+                    sb.append(',').append(profile.harKept);
+                sb.append(',').append(profile.barTried);
+                if(!application)
+                    sb.append(',').append(profile.barKept);
+                sb.append(',').append(f.format(profile.allocatedBytes / 1024d / 1024d));
+                writer.println(sb);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Counts of a template, updated by the single thread specializing or applying it.
+     */
+    public static class Profile {
+        final String rule;
+        final boolean enabled;
+        long startNanos;
+        long startBytes;
+        long totalNanos;
+        long allocatedBytes;
+
+        public long groundingNanos;
+        public int groundings;
+        public int anchorings;
+        public int harTried;
+        public int harKept;
+        public int barTried;
+        public int barKept;
+
+        Profile(Rule template, boolean enabled) {
+            this.rule = enabled ? template.toString() : null;
+            this.enabled = enabled;
+        }
+    }
+}
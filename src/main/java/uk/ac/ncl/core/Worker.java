@@ -0,0 +1,43 @@
+package uk.ac.ncl.core;
+
+import uk.ac.ncl.Settings;
+import uk.ac.ncl.utils.Tracer;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Worker thread of a learning phase. Workers of all phases and targets share a budget of
+ * THREAD_NUMBER slots, and a worker waits for a free slot before doing its work. This way the
+ * phases of several targets can overlap, taking up the slots left free by single-threaded steps,
+ * without running more workers than there are threads.
+ */
+public abstract class Worker extends Thread {
+    private static Semaphore slots;
+
+    protected Worker(String name) {
+        super(name);
+    }
+
+    @Override
+    public final void run() {
+        Semaphore slots = slots();
+        long bytes = HeapSampler.threadStart();
+        long s = Tracer.begin();
+        slots.acquireUninterruptibly();
+        Tracer.waited(s, "thread slot");
+        try {
+            work();
+        } finally {
+            slots.release();
+            HeapSampler.threadEnd(bytes);
+        }
+    }
+
+    protected abstract void work();
+
+    private static synchronized Semaphore slots() {
+        if(slots == null)
+            slots = new Semaphore(Settings.THREAD_NUMBER, true);
+        return slots;
+    }
+}
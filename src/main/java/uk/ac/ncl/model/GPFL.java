@@ -1,11 +1,11 @@
 package uk.ac.ncl.model;
 
-import com.google.common.collect.Multimap;
 import org.neo4j.graphdb.Transaction;
 import uk.ac.ncl.Settings;
 import uk.ac.ncl.core.*;
+import uk.ac.ncl.structure.FilterIndex;
+import uk.ac.ncl.structure.FilterSet;
 import uk.ac.ncl.structure.Pair;
-import uk.ac.ncl.structure.Triple;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.IO;
 import uk.ac.ncl.utils.Logger;
@@ -28,7 +28,7 @@ public class GPFL extends Engine {
         validFile = new File(home, "data/annotated_valid.txt");
         testFile = new File(home, "data/annotated_test.txt");
         ruleFile = IO.createEmptyFile(new File(out, "rules.txt"));
-        predictionFile = IO.createEmptyFile(new File(out, "predictions.txt"));
+        predictionFile = IO.createPredictionFile(out);
         verificationFile = IO.createEmptyFile(new File(out, "verifications.txt"));
         ruleIndexHome = new File(out, "index");
         ruleIndexHome.mkdir();
@@ -39,20 +39,20 @@ public class GPFL extends Engine {
         for (String target : targets) {
             File ruleIndexFile = IO.createEmptyFile(new File(ruleIndexHome
                     , target.replaceAll("[:/]", "_") + ".txt"));
-            Settings.TARGET = target;
-            Context context = new Context();
+            Context context = new Context(target).attach();
             Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
                     globalTargetCounter++, targets.size(), target), 1);
 
             try (Transaction tx = graph.beginTx()) {
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
-                Settings.TARGET_FUNCTIONAL = IO.isTargetFunctional(trainPairs);
+                context.setTargetFunctional(IO.isTargetFunctional(trainPairs));
 
                 Set<Pair> validPairs = IO.readPair(graph, validFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
+                context.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
 
                 Logger.println(MessageFormat.format("# Functional: {0} | Train Size: {1} | Valid Size: {2} | Test Size: {3}"
-                        , Settings.TARGET_FUNCTIONAL, trainPairs.size(), validPairs.size(), testPairs.size()), 1);
+                        , context.isTargetFunctional(), trainPairs.size(), validPairs.size(), testPairs.size()), 1);
 
                 Set<Pair> filterSet = Helpers.combine(trainPairs, validPairs, testPairs);
                 generalization(trainPairs, context);
@@ -72,8 +72,8 @@ public class GPFL extends Engine {
         GlobalTimer.reportTime();
 
         Logger.init(new File(out, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = Evaluator.buildFilterMap(home.getPath());
-        Evaluator.scoreGPFL(filterMap, predictionFile);
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        Evaluator.scoreGPFL(filterIndex, predictionFile);
     }
 
     public void learn() {
@@ -92,14 +92,13 @@ public class GPFL extends Engine {
             File ruleIndexFile = IO.createEmptyFile(new File(ruleIndexHome
                     , target.replaceAll("[:/<>]", "_") + ".txt"));
 
-            Settings.TARGET = target;
-            Context context = new Context();
+            Context context = new Context(target).attach();
             Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
                     globalTargetCounter++, targets.size(), target), 1);
 
             try (Transaction tx = graph.beginTx()) {
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
-                Settings.TARGET_FUNCTIONAL = IO.isTargetFunctional(trainPairs);
+                context.setTargetFunctional(IO.isTargetFunctional(trainPairs));
                 Set<Pair> validPairs = IO.readPair(graph, validFile, target);
 
                 Logger.println(MessageFormat.format("# Train Size: {0}", trainPairs.size()), 1);
@@ -126,7 +125,7 @@ public class GPFL extends Engine {
         validFile = new File(home, "data/annotated_valid.txt");
         testFile = new File(home, "data/annotated_test.txt");
 
-        predictionFile = IO.createEmptyFile(new File(out, "predictions.txt"));
+        predictionFile = IO.createPredictionFile(out);
         verificationFile = IO.createEmptyFile(new File(out, "verifications.txt"));
         ruleIndexHome = new File(out, "index");
         populateTargets();
@@ -138,8 +137,7 @@ public class GPFL extends Engine {
             if(!ruleIndexFile.exists())
                 continue;
 
-            Settings.TARGET = target;
-            Context context = new Context();
+            Context context = new Context(target).attach();
             Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Applying Rules for Target: {2}",
                     globalTargetCounter++, targets.size(), target), 1);
 
@@ -147,6 +145,7 @@ public class GPFL extends Engine {
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
                 Set<Pair> validPairs = IO.readPair(graph, validFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
+                context.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
                 Set<Pair> filterSet = Helpers.combine(trainPairs, validPairs, testPairs);
                 Logger.println(MessageFormat.format("# Train Size: {0} | " + "Valid Size: {1} | " + "Test Size: {2}"
                         , trainPairs.size(), validPairs.size(), testPairs.size()), 1);
@@ -162,7 +161,7 @@ public class GPFL extends Engine {
         GlobalTimer.reportTime();
 
         Logger.init(new File(out, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = Evaluator.buildFilterMap(home.getPath());
-        Evaluator.scoreGPFL(filterMap, predictionFile);
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        Evaluator.scoreGPFL(filterIndex, predictionFile);
     }
 }
@@ -2,44 +2,77 @@ package uk.ac.ncl.model;
 
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Transaction;
 import uk.ac.ncl.Hierarchy.RuleHierarchy;
 import uk.ac.ncl.RHSettings;
+import uk.ac.ncl.Run;
 import uk.ac.ncl.Settings;
+import uk.ac.ncl.analysis.RuleLogger;
 import uk.ac.ncl.core.*;
 import uk.ac.ncl.structure.*;
+import uk.ac.ncl.utils.AsyncWriter;
+import uk.ac.ncl.utils.BinaryPredictions;
 import uk.ac.ncl.utils.Helpers;
 import uk.ac.ncl.utils.IO;
 import uk.ac.ncl.utils.Logger;
+import uk.ac.ncl.utils.Metrics;
+import uk.ac.ncl.utils.PhaseCache;
+import uk.ac.ncl.utils.TargetQueue;
+import uk.ac.ncl.utils.Tracer;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
-import java.util.Locale;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.BiConsumer;
 
 public class RH extends Engine {
+    private final static int MAX_WORKER_RESTARTS = 3;
+    private final static String RULE_ANALYSIS = "rule_analysis.json";
+    private final static Set<String> UNSWEEPABLE = new HashSet<>(Arrays.asList("home", "out", "target_relation"
+            , "randomly_selected_relations", "filter_unsolvable", "thread_number", "target_parallelism", "pipeline"
+            , "binary_predictions", "rule_graph", "phase_cache", "sweep"));
 
     public RH(File config, String logName) {
         super(config, logName);
+        Helpers.reportRHSettings();
+    }
+
+    @Override
+    protected void readSettings() {
+        super.readSettings();
         RHSettings.USE_PRIOR_PRUNE = Helpers.readSetting(args, "use_prior_prune", RHSettings.USE_PRIOR_PRUNE);
         RHSettings.PRIOR_PRUNE_TH = Helpers.readSetting(args, "prior_th", RHSettings.PRIOR_PRUNE_TH);
         RHSettings.USE_POST_PRUNE = Helpers.readSetting(args, "use_post_prune", RHSettings.USE_POST_PRUNE);
         RHSettings.FILTER_UNSOLVABLE = Helpers.readSetting(args, "filter_unsolvable", RHSettings.FILTER_UNSOLVABLE);
-        Helpers.reportRHSettings();
     }
 
     public void run() {
+        run(false);
+    }
+
+    /**
+     * @param resume skip the targets finished by an earlier run, whose outputs are taken from their segments
+     */
+    public void run(boolean resume) {
         graphFile = new File(home, "databases/graph.db");
         graph = IO.loadGraph(graphFile);
         trainFile = new File(home, "data/annotated_train.txt");
         validFile = new File(home, "data/annotated_valid.txt");
         testFile = new File(home, "data/annotated_test.txt");
         ruleFile = IO.createEmptyFile(new File(out, "rules.txt"));
-        predictionFile = IO.createEmptyFile(new File(out, "predictions.txt"));
+        predictionFile = IO.createPredictionFile(out);
         verificationFile = IO.createEmptyFile(new File(out, "verifications.txt"));
         ruleIndexHome = new File(out, "index");
         ruleIndexHome.mkdir();
@@ -49,52 +82,22 @@ public class RH extends Engine {
             IO.populateUnsolvable(trainFile, validFile, testFile);
         GlobalTimer.programStartTime = System.currentTimeMillis();
 
-        for (String target : targets) {
-            File ruleIndexFile = IO.createEmptyFile(new File(ruleIndexHome
-                    , target.replaceAll("[:/]", "_") + ".txt"));
-            Settings.TARGET = target;
-            Context context = new Context();
-            Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
-                    globalTargetCounter++, targets.size(), target), 1);
-
-            try (Transaction tx = graph.beginTx()) {
-                Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
-                Settings.TARGET_FUNCTIONAL = IO.isTargetFunctional(trainPairs);
-
-                Set<Pair> validPairs = IO.readPair(graph, validFile, target);
-                Set<Pair> testPairs = IO.readPair(graph, testFile, target);
-                FilterSet.initFilterSet(trainPairs, validPairs, testPairs);
-
-                Logger.println(MessageFormat.format("# Functional: {0} | Train Size: {1} | Valid Size: {2} | Test Size: {3}"
-                        , Settings.TARGET_FUNCTIONAL, trainPairs.size(), validPairs.size(), testPairs.size()), 1);
-
-                generalization(trainPairs, context);
-                RuleHierarchy inHierarchy = new RuleHierarchy(context.getAbstractRules());
-                specialization(context, trainPairs, validPairs, ruleIndexFile, inHierarchy);
-                Helpers.reportLocalRuleAnalysis();
-                IO.orderRuleIndexFile(ruleIndexFile);
-                ruleApplication(context, ruleIndexFile);
-
-                if(Settings.RULE_GRAPH) {
-                    ModelSelection.selectModel(args, context);
-                    ModelSelection.buildRuleGraph(ruleGraph, graph, context);
-                }
-
-                Evaluator evaluator = new Evaluator(testPairs, FilterSet.buildFilterSet()
-                        , context, predictionFile, verificationFile, graph);
-                evaluator.createQueries();
-                tx.success();
-            }
-        }
+        List<String> targetList = new ArrayList<>(targets);
+        List<String> remaining = remainingTargets(targetList, resume);
+        globalTargetCounter += targetList.size() - remaining.size();
+        forEachTarget(remaining, phases());
+        mergeSegments(targetList, outputFiles());
 
         Logger.println("\n# Global Analysis:");
         Helpers.reportGlobalRuleAnalysis();
+        if(Settings.PHASE_CACHE)
+            Logger.println(phaseCache.report(), 1);
         GlobalTimer.reportMaxMemoryUsed();
         GlobalTimer.reportTime();
 
         Logger.init(new File(out, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = Evaluator.buildFilterMap(home.getPath());
-        Evaluator.scoreGPFL(filterMap, predictionFile);
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        Evaluator.scoreGPFL(filterIndex, predictionFile);
     }
 
     public void learn() {
@@ -111,33 +114,35 @@ public class RH extends Engine {
             IO.populateUnsolvable(trainFile, validFile);
         GlobalTimer.programStartTime = System.currentTimeMillis();
 
-        for (String target : targets) {
-            File ruleIndexFile = IO.createEmptyFile(new File(ruleIndexHome
-                    , target.replaceAll("[:/]", "_") + ".txt"));
-            Settings.TARGET = target;
-            Context context = new Context();
+        List<String> targetList = new ArrayList<>(targets);
+        forEachTarget(remainingTargets(targetList, false), (context, id) -> {
+            String target = context.getTarget();
+            File ruleIndexFile = IO.createEmptyFile(ruleIndexFile(target));
+            File targetRuleFile = IO.createEmptyFile(new File(createSegment(target), ruleFile.getName()));
             Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
-                    globalTargetCounter++, targets.size(), target), 1);
+                    id + globalTargetCounter, targets.size(), target), 1);
 
             try (Transaction tx = graph.beginTx()) {
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
-                Settings.TARGET_FUNCTIONAL = IO.isTargetFunctional(trainPairs);
+                context.setTargetFunctional(IO.isTargetFunctional(trainPairs));
 
                 Set<Pair> validPairs = IO.readPair(graph, validFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
-                FilterSet.initFilterSet(trainPairs, validPairs, testPairs);
+                context.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
 
                 Logger.println(MessageFormat.format("# Functional: {0} | Train Size: {1} | Valid Size: {2} | Test Size: {3}"
-                        , Settings.TARGET_FUNCTIONAL, trainPairs.size(), validPairs.size(), testPairs.size()), 1);
+                        , context.isTargetFunctional(), trainPairs.size(), validPairs.size(), testPairs.size()), 1);
 
                 generalization(trainPairs, context);
                 RuleHierarchy inHierarchy = new RuleHierarchy(context.getAbstractRules());
-                specialization(context, trainPairs, validPairs, ruleIndexFile, inHierarchy);
+                HeapSampler.retained("hierarchy", HeapSampler.sizeOfHierarchy(inHierarchy));
+                specialization(context, trainPairs, validPairs, ruleIndexFile, targetRuleFile, inHierarchy);
                 Helpers.reportLocalRuleAnalysis();
                 IO.orderRuleIndexFile(ruleIndexFile);
                 tx.success();
             }
-        }
+        });
+        mergeSegments(targetList, ruleFile);
 
         Logger.println("\n# Global Analysis:");
         Helpers.reportGlobalRuleAnalysis();
@@ -152,7 +157,7 @@ public class RH extends Engine {
         validFile = new File(home, "data/annotated_valid.txt");
         testFile = new File(home, "data/annotated_test.txt");
 
-        predictionFile = IO.createEmptyFile(new File(out, "predictions.txt"));
+        predictionFile = IO.createPredictionFile(out);
         verificationFile = IO.createEmptyFile(new File(out, "verifications.txt"));
         ruleIndexHome = new File(out, "index");
         populateTargets();
@@ -160,53 +165,638 @@ public class RH extends Engine {
             IO.populateUnsolvable(trainFile, validFile, testFile);
         GlobalTimer.programStartTime = System.currentTimeMillis();
 
-        for (String target : targets) {
-            File ruleIndexFile = new File(ruleIndexHome
-                    , target.replaceAll("[:/]", "_") + ".txt");
-            if(!ruleIndexFile.exists())
-                continue;
+        List<String> targetList = new ArrayList<>(targets);
+        forEachTarget(remainingTargets(targetList, false), phases((context, id) -> {
+            String target = context.getTarget();
+            if(!ruleIndexFile(target).exists())
+                return;
 
-            Settings.TARGET = target;
-            Context context = new Context();
+            File segment = createSegment(target);
+            IO.createPredictionFile(segment);
+            IO.createEmptyFile(new File(segment, verificationFile.getName()));
             Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
-                    globalTargetCounter++, targets.size(), target), 1);
+                    id + globalTargetCounter, targets.size(), target), 1);
 
             try (Transaction tx = graph.beginTx()) {
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
+                context.setTargetFunctional(IO.isTargetFunctional(trainPairs));
+
                 Set<Pair> validPairs = IO.readPair(graph, validFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
-                FilterSet.initFilterSet(trainPairs, validPairs, testPairs);
+                context.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
 
                 Logger.println(MessageFormat.format("# Functional: {0} | Train Size: {1} | Valid Size: {2} | Test Size: {3}"
-                        , Settings.TARGET_FUNCTIONAL, trainPairs.size(), validPairs.size(), testPairs.size()), 1);
+                        , context.isTargetFunctional(), trainPairs.size(), validPairs.size(), testPairs.size()), 1);
+                tx.success();
+            }
+            // The index keeps raw counts, so the rules are ranked under the current quality measure.
+            IO.orderRuleIndexFile(ruleIndexFile(target));
+        }));
+        mergeSegments(targetList, outputFiles());
 
-                ruleApplication(context, ruleIndexFile);
-                if(Settings.RULE_GRAPH) {
-                    ModelSelection.selectModel(args, context);
-                    ModelSelection.buildRuleGraph(ruleGraph, graph, context);
+        Logger.println("\n# Global Analysis:");
+        GlobalTimer.reportMaxMemoryUsed();
+        GlobalTimer.reportTime();
+
+        Logger.init(new File(out, "eval_log.txt"), false);
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        Evaluator.scoreGPFL(filterIndex, predictionFile);
+    }
+
+    /**
+     * Runs the targets in worker processes. The targets are put in a queue under the output folder,
+     * from which workers claim them one at a time. Besides the local workers started here, workers
+     * started with option -w on other hosts sharing the output folder take part as well. The claims of
+     * a worker that stops renewing them, see {@link TargetQueue}, are put back to the queue, and local
+     * workers are restarted while targets wait in it. Once all targets are done, the outputs of the targets are merged and evaluated as in {@link #run()}.
+     *
+     * @param localWorkers the number of worker processes started on this host
+     */
+    public void coordinate(File config, int localWorkers, boolean resume) {
+        trainFile = new File(home, "data/annotated_train.txt");
+        validFile = new File(home, "data/annotated_valid.txt");
+        testFile = new File(home, "data/annotated_test.txt");
+        ruleFile = IO.createEmptyFile(new File(out, "rules.txt"));
+        predictionFile = IO.createPredictionFile(out);
+        verificationFile = IO.createEmptyFile(new File(out, "verifications.txt"));
+        ruleIndexHome = new File(out, "index");
+        ruleIndexHome.mkdir();
+
+        populateTargets();
+        GlobalTimer.programStartTime = System.currentTimeMillis();
+        List<String> targetList = new ArrayList<>(targets);
+        List<String> remaining = remainingTargets(targetList, resume);
+        TargetQueue queue = TargetQueue.create(new File(out, "queue"), remaining);
+        Logger.println(MessageFormat.format("\n# Coordinate {0} Targets with {1} Local Workers"
+                , remaining.size(), localWorkers), 1);
+
+        Map<String, Process> workers = new HashMap<>();
+        Map<String, Integer> restarts = new HashMap<>();
+        for (int i = 0; i < localWorkers; i++) {
+            String worker = "w" + i;
+            workers.put(worker, startWorker(config, worker));
+        }
+
+        int finished = 0;
+        while(!queue.isFinished()) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            for (String worker : queue.requeueExpired(TargetQueue.LEASE)) {
+                Logger.println(MessageFormat.format("# Claim of worker {0} has expired and is put back to the queue"
+                        , worker), 1);
+            }
+            boolean pending = queue.pending() != 0;
+            for (Map.Entry<String, Process> entry : workers.entrySet()) {
+                Process process = entry.getValue();
+                if(process.isAlive())
+                    continue;
+                String worker = entry.getKey();
+                if(process.exitValue() != 0) {
+                    if(restarts.merge(worker, 1, Integer::sum) > MAX_WORKER_RESTARTS) {
+                        System.err.println("# Worker " + worker + " keeps failing, see " + console(worker).getPath());
+                        System.exit(-1);
+                    }
+                    Logger.println(MessageFormat.format("# Worker {0} failed, {1} targets are put back to the queue"
+                            , worker, queue.requeue(worker)), 1);
+                    entry.setValue(startWorker(config, worker));
+                } else if(pending) {
+                    // Targets put back after the worker found the queue empty.
+                    entry.setValue(startWorker(config, worker));
                 }
+            }
+            if(queue.finished() != finished) {
+                finished = queue.finished();
+                Logger.println(MessageFormat.format("# Finished Targets: {0}/{1}", finished, remaining.size()), 2);
+            }
+        }
 
-                Evaluator evaluator = new Evaluator(testPairs, FilterSet.buildFilterSet()
-                        , context, predictionFile, verificationFile, graph);
-                evaluator.createQueries();
-                tx.success();
+        // A worker stopping between finishing a claim and committing its segment leaves the target out.
+        for (String target : remaining) {
+            if(!isFinished(target)) {
+                System.err.println("# Target " + target + " has no segment, resume with option -rs to redo it.");
+                System.exit(-1);
             }
         }
+        mergeSegments(targetList, outputFiles());
+        try {
+            FileUtils.deleteDirectory(new File(out, "queue"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Logger.println(MessageFormat.format("# Runtime: Total = {0}s"
+                , (System.currentTimeMillis() - GlobalTimer.programStartTime) / 1000d), 1);
+
+        Logger.init(new File(out, "eval_log.txt"), false);
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        Evaluator.scoreGPFL(filterIndex, predictionFile);
+    }
+
+    /**
+     * @return the stages of learning, applying and evaluating the rules of a target.
+     */
+    private List<BiConsumer<Context, Integer>> phases() {
+        return phases(this::learnTarget);
+    }
+
+    /**
+     * @param learn the stage providing the rules of a target, which are then applied and evaluated
+     */
+    private List<BiConsumer<Context, Integer>> phases(BiConsumer<Context, Integer> learn) {
+        return Arrays.asList(learn, (context, id) -> applyRules(context), (context, id) -> createQueries(context));
+    }
+
+    private Process startWorker(File config, String worker) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Run.class.getName()
+                , "-c", config.getAbsolutePath(), "-w", worker));
+        File console = console(worker);
+        console.getParentFile().mkdirs();
+        try {
+            return new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(console)).start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    private File console(String worker) {
+        return new File(out, "workers/" + worker + "_console.txt");
+    }
+
+    /**
+     * Worker process claiming targets from the queue of a coordinator until the queue is empty.
+     * Neo4j locks the store even when reading, so the worker opens a private copy of the graph
+     * made under java.io.tmpdir, which is deleted when the worker exits. The claims are renewed until
+     * the worker exits, and the outputs of a target are written apart from other workers and only
+     * committed once its claim is done, see {@link #finishClaim}.
+     */
+    public void work(String worker) {
+        this.worker = worker;
+        TargetQueue queue = new TargetQueue(new File(out, "queue"));
+        trainFile = new File(home, "data/annotated_train.txt");
+        validFile = new File(home, "data/annotated_valid.txt");
+        testFile = new File(home, "data/annotated_test.txt");
+        ruleFile = new File(out, "rules.txt");
+        predictionFile = new File(out, Settings.BINARY_PREDICTIONS ? "predictions.bin" : "predictions.txt");
+        verificationFile = new File(out, "verifications.txt");
+        ruleIndexHome = new File(out, "index");
+        targets = new HashSet<>(queue.targets());
+
+        File scratch = null;
+        try {
+            scratch = Files.createTempDirectory("rh-" + worker + "-").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        File copy = scratch;
+        // Hooks run concurrently, so the graph is shut down here before its copy is deleted.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(graph != null)
+                graph.shutdown();
+            FileUtils.deleteQuietly(copy);
+        }));
+        graphFile = new File(scratch, "graph.db");
+        try {
+            FileUtils.copyDirectory(new File(home, "databases/graph.db"), graphFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        graph = IO.loadGraph(graphFile);
+        queue.heartbeat(worker);
+        if(RHSettings.FILTER_UNSOLVABLE)
+            IO.populateUnsolvable(trainFile, validFile, testFile);
+        GlobalTimer.programStartTime = System.currentTimeMillis();
+
+        TargetQueue.Claim claim;
+        while((claim = queue.claim(worker)) != null) {
+            globalTargetCounter = claim.position + 1;
+            forEachTarget(Collections.singletonList(claim.target), phases());
+            finishClaim(queue, claim);
+        }
 
         Logger.println("\n# Global Analysis:");
+        Helpers.reportGlobalRuleAnalysis();
+        if(Settings.PHASE_CACHE)
+            Logger.println(phaseCache.report(), 1);
         GlobalTimer.reportMaxMemoryUsed();
         GlobalTimer.reportTime();
+    }
 
-        Logger.init(new File(out, "eval_log.txt"), false);
-        Multimap<String, Triple> filterMap = Evaluator.buildFilterMap(home.getPath());
-        Evaluator.scoreGPFL(filterMap, predictionFile);
+    /**
+     * Moves the rule index and the segment a worker wrote for the claim in place once the claim is
+     * done. If the claim has expired, the target was handed out again and the outputs are dropped, so
+     * that only the worker holding the claim commits them.
+     */
+    private void finishClaim(TargetQueue queue, TargetQueue.Claim claim) {
+        String target = claim.target;
+        if(!queue.done(claim)) {
+            Logger.println("# Claim of target " + target + " had expired, it is redone by another worker.", 1);
+            FileUtils.deleteQuietly(ruleIndexFile(target));
+            FileUtils.deleteQuietly(partialSegment(target));
+            return;
+        }
+        File ruleIndexFile = ruleIndexFile(target);
+        try {
+            if(ruleIndexFile.exists())
+                Files.move(ruleIndexFile.toPath(), ruleIndexFile(target, null).toPath()
+                        , StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        commitSegment(target);
+    }
+
+    /**
+     * Learns, applies and evaluates rules under every combination of the settings listed in "sweep",
+     * e.g. {"prior_th": [5, 10, 20], "use_post_prune": [true, false]}, with the outputs of each
+     * configuration written to its own folder under out/sweep. The graph is loaded once and the targets
+     * are taken one at a time through all configurations, so that the configurations share the abstract
+     * rules of the target through the phase cache and the groundings of its rules in memory.
+     */
+    public void sweep() {
+        JSONObject base = args;
+        JSONObject grid = base.getJSONObject("sweep");
+        for (String key : grid.keySet()) {
+            if(UNSWEEPABLE.contains(key)) {
+                System.err.println("# Setting " + key + " can not be swept.");
+                System.exit(-1);
+            }
+        }
+        List<JSONObject> configurations = expandGrid(base, grid);
+
+        graphFile = new File(home, "databases/graph.db");
+        graph = IO.loadGraph(graphFile);
+        trainFile = new File(home, "data/annotated_train.txt");
+        validFile = new File(home, "data/annotated_valid.txt");
+        testFile = new File(home, "data/annotated_test.txt");
+        populateTargets();
+        if(RHSettings.FILTER_UNSOLVABLE)
+            IO.populateUnsolvable(trainFile, validFile, testFile);
+        GlobalTimer.programStartTime = System.currentTimeMillis();
+        List<String> targetList = new ArrayList<>(targets);
+
+        Logger.println(MessageFormat.format("\n# Sweep {0} Configurations over {1} Targets"
+                , configurations.size(), targetList.size()), 1);
+        for (JSONObject configuration : configurations) {
+            use(configuration);
+            Logger.println("# " + out.getPath(), 1);
+            IO.createEmptyFile(ruleFile);
+            IO.createPredictionFile(out);
+            IO.createEmptyFile(verificationFile);
+            ruleIndexHome.mkdir();
+            remainingTargets(targetList, false);
+        }
+        for (JSONObject configuration : configurations) {
+            use(configuration);
+            Logger.init(new File(out, "log.txt"), false);
+            Helpers.reportRHSettings();
+        }
+
+        for (int i = 0; i < targetList.size(); i++) {
+            String target = targetList.get(i);
+            GroundingCache groundings = new GroundingCache();
+            long s = System.currentTimeMillis();
+            for (JSONObject configuration : configurations) {
+                use(configuration);
+                Logger.init(new File(out, "log.txt"), true);
+                RuleLogger.clear(target);
+                globalTargetCounter = i + 1;
+                forEachTarget(Collections.singletonList(target), phases((context, id) -> {
+                    context.setGroundingCache(groundings);
+                    learnTarget(context, id);
+                }));
+            }
+            use(base);
+            Logger.init(logFile, true);
+            Logger.println(MessageFormat.format("# ({0}\\{1}) {2}: {3}s", i + 1, targetList.size(), target
+                    , (System.currentTimeMillis() - s) / 1000d), 1);
+            Logger.println(groundings.report(), 1);
+        }
+
+        FilterIndex filterIndex = Evaluator.buildFilterIndex(home.getPath());
+        for (JSONObject configuration : configurations) {
+            use(configuration);
+            mergeSegments(targetList, outputFiles());
+            Logger.init(new File(out, "eval_log.txt"), false);
+            Evaluator.scoreGPFL(filterIndex, predictionFile);
+        }
+
+        use(base);
+        Logger.init(logFile, true);
+        Logger.println(phaseCache.report(), 1);
+        Logger.println(MessageFormat.format("# Runtime: Total = {0}s"
+                , (System.currentTimeMillis() - GlobalTimer.programStartTime) / 1000d), 1);
+    }
+
+    /**
+     * @return a configuration for every combination of the values in the grid, with its output folder
+     * named by the swept settings.
+     */
+    private static List<JSONObject> expandGrid(JSONObject base, JSONObject grid) {
+        List<String> keys = new ArrayList<>(new TreeSet<>(grid.keySet()));
+        List<JSONObject> configurations = Collections.singletonList(new JSONObject(base.toString()));
+        for (String key : keys) {
+            JSONArray values = grid.getJSONArray(key);
+            List<JSONObject> expanded = new ArrayList<>();
+            for (JSONObject configuration : configurations) {
+                for (int i = 0; i < values.length(); i++) {
+                    JSONObject copy = new JSONObject(configuration.toString());
+                    copy.put(key, values.get(i));
+                    expanded.add(copy);
+                }
+            }
+            configurations = expanded;
+        }
+        for (JSONObject configuration : configurations) {
+            List<String> words = new ArrayList<>();
+            for (String key : keys) {
+                words.add(key + "-" + configuration.get(key));
+            }
+            configuration.remove("sweep");
+            configuration.put("out", base.getString("out") + "/sweep/" + String.join("_", words));
+        }
+        return configurations;
+    }
+
+    /**
+     * Switches the settings and output files to the configuration. The phase cache is always used,
+     * since it is how the configurations of a sweep share abstract rules.
+     */
+    private void use(JSONObject configuration) {
+        args = configuration;
+        readSettings();
+        Settings.PHASE_CACHE = true;
+        out = new File(home, args.getString("out"));
+        out.mkdirs();
+        ruleFile = new File(out, "rules.txt");
+        predictionFile = new File(out, Settings.BINARY_PREDICTIONS ? "predictions.bin" : "predictions.txt");
+        verificationFile = new File(out, "verifications.txt");
+        ruleIndexHome = new File(out, "index");
+    }
+
+    /**
+     * Checks that the in-memory {@link AdjacencyGroundingEngine} and the threshold algorithm answering
+     * queries are equivalent to the Neo4j DFS and the full ranking. For every target, the abstract
+     * rules are generalized once and given to a reference and a candidate context, which specialize
+     * and apply them with their engine into out/differential. The sides are compared by
+     * {@link DifferentialHarness}, which writes its report to out/differential/report.txt.
+     */
+    public void differential() {
+        graphFile = new File(home, "databases/graph.db");
+        graph = IO.loadGraph(graphFile);
+        trainFile = new File(home, "data/annotated_train.txt");
+        validFile = new File(home, "data/annotated_valid.txt");
+        testFile = new File(home, "data/annotated_test.txt");
+        File differentialHome = new File(out, "differential");
+        for (String folder : new String[]{"abstract_rules", "reference/index", "reference/rules", "candidate/index", "candidate/rules"})
+            new File(differentialHome, folder).mkdirs();
+        populateTargets();
+        if(RHSettings.FILTER_UNSOLVABLE)
+            IO.populateUnsolvable(trainFile, validFile, testFile);
+        GlobalTimer.programStartTime = System.currentTimeMillis();
+
+        DifferentialHarness harness = new DifferentialHarness(GroundingEngine.NEO4J, new AdjacencyGroundingEngine(), "adjacency");
+        List<String> targetList = new ArrayList<>(targets);
+        forEachTarget(targetList, (context, id) -> {
+            String target = context.getTarget();
+            String name = target.replaceAll("[:/]", "_") + ".txt";
+            Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Differential for Target: {2}",
+                    id + globalTargetCounter, targets.size(), target), 1);
+
+            try (Transaction tx = graph.beginTx()) {
+                Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
+                Set<Pair> validPairs = IO.readPair(graph, validFile, target);
+                Set<Pair> testPairs = IO.readPair(graph, testFile, target);
+                FilterSet filterSet = new FilterSet(trainPairs, validPairs, testPairs);
+                generalization(trainPairs, context);
+                File abstractRules = new File(differentialHome, "abstract_rules/" + name);
+                IO.writeAbstractRules(abstractRules, context);
+                harness.compareGroundings(graph, context.getAbstractRules());
+
+                Context[] sides = new Context[2];
+                Evaluator[] evaluators = new Evaluator[2];
+                for (int i = 0; i < sides.length; i++) {
+                    boolean candidate = i == 1;
+                    File sideHome = new File(differentialHome, candidate ? "candidate" : "reference");
+                    File ruleIndexFile = IO.createEmptyFile(new File(sideHome, "index/" + name));
+                    File sideRuleFile = IO.createEmptyFile(new File(sideHome, "rules/" + name));
+                    Context side = sides[i] = new Context(target).attach();
+                    side.setThreadNumber(context.getThreadNumber());
+                    side.setTargetFunctional(IO.isTargetFunctional(trainPairs));
+                    side.setFilterSet(filterSet);
+                    side.setGroundingEngine(candidate ? harness.getCandidate() : harness.getReference());
+                    IO.readAbstractRules(abstractRules, side);
+
+                    long s = System.nanoTime();
+                    specialization(side, trainPairs, validPairs, ruleIndexFile, sideRuleFile, new RuleHierarchy(side.getAbstractRules()));
+                    harness.time("specialization", candidate, System.nanoTime() - s);
+                    IO.orderRuleIndexFile(ruleIndexFile);
+                    s = System.nanoTime();
+                    ruleApplication(side, ruleIndexFile);
+                    harness.time("rule application", candidate, System.nanoTime() - s);
+                    evaluators[i] = new Evaluator(testPairs, filterSet.buildFilterSet(), side
+                            , new File(sideHome, "predictions.txt"), new File(sideHome, "verifications.txt"), graph);
+                }
+                context.attach();
+                harness.compareRuleStats(sides[0], sides[1]);
+                harness.compareIndexFiles(new File(differentialHome, "reference/index/" + name)
+                        , new File(differentialHome, "candidate/index/" + name));
+                harness.compareRankings(evaluators[0], evaluators[1], testPairs
+                        , Math.max(Settings.TOP_K, Settings.VERIFY_PREDICTION_SIZE));
+                tx.success();
+            }
+        });
+
+        Logger.println("\n# Global Analysis:");
+        harness.report(new File(differentialHome, "report.txt"));
+        GlobalTimer.reportMaxMemoryUsed();
+    }
+
+    /**
+     * Learning stage of a target: generalization, specialization and ordering of the rule index.
+     * Creates the segment files of the target.
+     */
+    private void learnTarget(Context context, int id) {
+        String target = context.getTarget();
+        File ruleIndexFile = IO.createEmptyFile(ruleIndexFile(target));
+        File segment = createSegment(target);
+        File targetRuleFile = IO.createEmptyFile(new File(segment, ruleFile.getName()));
+        IO.createPredictionFile(segment);
+        IO.createEmptyFile(new File(segment, verificationFile.getName()));
+        Logger.println(MessageFormat.format("\n# ({0}\\{1}) Start Learning Rules for Target: {2}",
+                id + globalTargetCounter, targets.size(), target), 1);
+
+        try (Transaction tx = graph.beginTx()) {
+            Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
+            context.setTargetFunctional(IO.isTargetFunctional(trainPairs));
+
+            Set<Pair> validPairs = IO.readPair(graph, validFile, target);
+            Set<Pair> testPairs = IO.readPair(graph, testFile, target);
+            context.setFilterSet(new FilterSet(trainPairs, validPairs, testPairs));
+
+            Logger.println(MessageFormat.format("# Functional: {0} | Train Size: {1} | Valid Size: {2} | Test Size: {3}"
+                    , context.isTargetFunctional(), trainPairs.size(), validPairs.size(), testPairs.size()), 1);
+
+            if(!reuseRuleIndex(context, ruleIndexFile, targetRuleFile)) {
+                cachedGeneralization(trainPairs, context);
+                RuleHierarchy inHierarchy = new RuleHierarchy(context.getAbstractRules());
+                HeapSampler.retained("hierarchy", HeapSampler.sizeOfHierarchy(inHierarchy));
+                specialization(context, trainPairs, validPairs, ruleIndexFile, targetRuleFile, inHierarchy);
+                Helpers.reportLocalRuleAnalysis();
+                IO.orderRuleIndexFile(ruleIndexFile);
+                cacheRuleIndex(context, ruleIndexFile, targetRuleFile);
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Takes the ordered rule index and the rules of the target from the phase cache if specialization
+     * has run before with the same abstract rules and settings, along with the rule analysis of the
+     * target if the entry holds it.
+     *
+     * @return false if the rule index needs to be learned
+     */
+    protected boolean reuseRuleIndex(Context context, File ruleIndexFile, File targetRuleFile) {
+        if(!Settings.PHASE_CACHE)
+            return false;
+        Map<String, Object> inputs = specializationInputs(context.getTarget());
+        String key = PhaseCache.key(inputs);
+        File entry = phaseCache.lookup(SPECIALIZATION, key);
+        if(entry == null || phaseCache.lookup(GENERALIZATION, (String) inputs.get(GENERALIZATION)) == null)
+            return false;
+        try {
+            FileUtils.copyFile(new File(entry, "index.txt"), ruleIndexFile);
+            FileUtils.copyFile(new File(entry, ruleFile.getName()), targetRuleFile);
+            phaseCache.recordReused(GENERALIZATION);
+            phaseCache.recordReused(SPECIALIZATION);
+            Logger.println("# Generalization and Specialization: Reused " + key, 1);
+            File analysis = new File(entry, RULE_ANALYSIS);
+            if(analysis.exists()) {
+                RuleLogger.restore(context.getTarget(), new JSONObject(FileUtils.readFileToString(analysis, StandardCharsets.UTF_8)));
+                Helpers.reportLocalRuleAnalysis();
+            } else {
+                RuleLogger.clear(context.getTarget());
+                Logger.println("# Rule analysis of the target is unavailable in the reused entry, it is left out of the global analysis.", 1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return true;
+    }
+
+    protected void cacheRuleIndex(Context context, File ruleIndexFile, File targetRuleFile) {
+        if(!Settings.PHASE_CACHE)
+            return;
+        Map<String, Object> inputs = specializationInputs(context.getTarget());
+        String key = PhaseCache.key(inputs);
+        File partial = phaseCache.begin(SPECIALIZATION, key);
+        try {
+            FileUtils.copyFile(ruleIndexFile, new File(partial, "index.txt"));
+            FileUtils.copyFile(targetRuleFile, new File(partial, ruleFile.getName()));
+            FileUtils.writeStringToFile(new File(partial, RULE_ANALYSIS)
+                    , RuleLogger.counts(context.getTarget()).toString(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        phaseCache.commit(SPECIALIZATION, key, partial, inputs);
+        phaseCache.recordComputed(SPECIALIZATION);
+    }
+
+    @Override
+    protected Map<String, Object> generalizationInputs(String target) {
+        Map<String, Object> inputs = super.generalizationInputs(target);
+        inputs.put("filter_unsolvable", RHSettings.FILTER_UNSOLVABLE);
+        return inputs;
+    }
+
+    @Override
+    protected Map<String, Object> specializationInputs(String target) {
+        Map<String, Object> inputs = super.specializationInputs(target);
+        inputs.put("use_prior_prune", RHSettings.USE_PRIOR_PRUNE);
+        inputs.put("prior_th", RHSettings.PRIOR_PRUNE_TH);
+        inputs.put("use_post_prune", RHSettings.USE_POST_PRUNE);
+        return inputs;
+    }
+
+    /**
+     * Rule application stage of a target. Skipped for targets that have not been set up.
+     */
+    private void applyRules(Context context) {
+        if(context.getFilterSet() == null)
+            return;
+        try (Transaction tx = graph.beginTx()) {
+            ruleApplication(context, ruleIndexFile(context.getTarget()));
+            if(Settings.RULE_GRAPH)
+                buildRuleGraph(context);
+            tx.success();
+        }
+    }
+
+    /**
+     * Evaluation stage of a target, writing its queries to the segment of the target.
+     */
+    private void createQueries(Context context) {
+        if(context.getFilterSet() == null)
+            return;
+        File segment = partialSegment(context.getTarget());
+        try (Transaction tx = graph.beginTx()) {
+            Evaluator evaluator = new Evaluator(context.getFilterSet().getTestPairs(), context.getFilterSet().buildFilterSet()
+                    , context, new File(segment, predictionFile.getName()), new File(segment, verificationFile.getName()), graph);
+            evaluator.createQueries();
+            tx.success();
+        }
+    }
+
+    private File ruleIndexFile(String target) {
+        return ruleIndexFile(target, worker);
+    }
+
+    /**
+     * @return the rule index of the target, or the one the worker writes until its claim is done.
+     */
+    private File ruleIndexFile(String target, String worker) {
+        return new File(ruleIndexHome, target.replaceAll("[:/]", "_") + (worker == null ? "" : "." + worker) + ".txt");
+    }
+
+    /**
+     * Model selection keeps the best model in a static field and the rule graph is shared,
+     * so targets build their part of the rule graph one at a time.
+     */
+    private void buildRuleGraph(Context context) {
+        synchronized (ModelSelection.class) {
+            ModelSelection.selectModel(args, context);
+            ModelSelection.buildRuleGraph(ruleGraph, graph, context);
+        }
+    }
+
+    private File[] outputFiles() {
+        List<File> files = new ArrayList<>(Arrays.asList(ruleFile, predictionFile, verificationFile));
+        if(Settings.BINARY_PREDICTIONS)
+            files.add(BinaryPredictions.dictionaryFile(predictionFile));
+        return files.stream().filter(Objects::nonNull).toArray(File[]::new);
     }
 
     public void specialization(Context context, Set<Pair> trainPairs, Set<Pair> validPairs
             , File ruleIndexFile
+            , File ruleFile
             , RuleHierarchy hierarchy) {
         NumberFormat f = NumberFormat.getNumberInstance(Locale.US);
         long s = System.currentTimeMillis();
+        HeapSampler.Phase phase = HeapSampler.begin("specialization");
 
         Multimap<Long, Long> objOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
         Multimap<Long, Long> subOriginalMap = MultimapBuilder.hashKeys().hashSetValues().build();
@@ -228,32 +818,36 @@ public class RH extends Engine {
 
         BlockingQueue<String> tempFileContents = new LinkedBlockingDeque<>(1000000);
         BlockingQueue<String> ruleFileContents = new LinkedBlockingDeque<>(1000000);
+        Metrics.track(abstractRuleQueue, "rh_queue_depth", "queue", "specialization");
 
         GlobalTimer.setSpecStartTime(System.currentTimeMillis());
-        SpecializationTask[] tasks = new SpecializationTask[Settings.THREAD_NUMBER];
+        SpecializationTask[] tasks = new SpecializationTask[context.getThreadNumber()];
         for (int i = 0; i < tasks.length; i++) {
             tasks[i] = new SpecializationTask(i, graph, abstractRuleQueue
                     , trainPairs, validPairs, objOriginalMap, subOriginalMap, validObjToSub, validSubToObj
                     , context, tempFileContents, ruleFileContents, hierarchy);
         }
-        RuleWriter tempFileWriter = new RuleWriter(0, tasks, ruleIndexFile, tempFileContents, true);
-        RuleWriter ruleFileWriter = new RuleWriter(0, tasks, ruleFile, ruleFileContents, true);
+        AsyncWriter<String> tempFileWriter = AsyncWriter.text("RuleWriter-0", ruleIndexFile, tempFileContents, true, true);
+        AsyncWriter<String> ruleFileWriter = AsyncWriter.text("RuleWriter-1", ruleFile, ruleFileContents, true, true);
         try {
             for (SpecializationTask task : tasks) {
                 task.join();
             }
-            tempFileWriter.join();
-            ruleFileWriter.join();
+            tempFileWriter.close();
+            ruleFileWriter.close();
         } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(-1);
         }
 
+        Metrics.untrack(abstractRuleQueue, "rh_queue_depth", "queue", "specialization");
+        HeapSampler.end(phase);
         GlobalTimer.updateInsRuleStats(Helpers.timerAndMemory(s,"# Specialization"));
+        writeProfiles(context, false);
         Logger.println(Context.analyzeRuleComposition("# Qualified Abstract Rules", context.getSpecializedRules()), 1);
     }
 
-    static class SpecializationTask extends Thread {
+    static class SpecializationTask extends Worker {
         int id;
         GraphDatabaseService graph;
         BlockingQueue<Rule> abstractRuleQueue;
@@ -299,13 +893,15 @@ public class RH extends Engine {
         }
 
         @Override
-        public void run() {
+        protected void work() {
             try(Transaction tx = graph.beginTx()) {
                 while (!abstractRuleQueue.isEmpty() && !GlobalTimer.stopSpec() && context.getTotalInsRules() < Settings.INS_RULE_CAP) {
                     Template abstractRule = (Template) abstractRuleQueue.poll();
                     if(abstractRule != null) {
                         Multimap<Long, Long> anchoringToOriginalMap = abstractRule.isFromSubject() ? objOriginalMap : subOriginalMap;
                         Multimap<Long, Long> validOriginals = abstractRule.isFromSubject() ? validObjToSub : validSubToObj;
+                        long s = Tracer.begin();
+                        TemplateProfiler.Profile profile = context.getProfiler().start(abstractRule);
                         abstractRule.specializationWithHierarchy(graph
                                 , trainPairs
                                 , validPairs
@@ -315,7 +911,10 @@ public class RH extends Engine {
                                 , ruleFileContents
                                 , tempFileContents
                                 , hierarchy
-                                , abstractRuleQueue);
+                                , abstractRuleQueue
+                                , profile);
+                        context.getProfiler().finish(profile);
+                        Tracer.end(s, "specialization", "template", abstractRule);
                     }
                 }
                 tx.success();
@@ -4,13 +4,20 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
-import uk.ac.ncl.Settings;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A rule is composed of head and body atoms. Each atom has predicate and terms.
  * A term can be a variable or a constant.
  */
 public class Atom {
+    private final static Map<String, Integer> predicateIds = new ConcurrentHashMap<>();
+    private final static AtomicInteger predicateCount = new AtomicInteger();
+
     public RelationshipType type;
     public Direction direction;
     public String predicate;
@@ -21,6 +28,7 @@ public class Atom {
 
     public Atom(String line, boolean head) {
         predicate = line.split("\\(")[0];
+        type = RelationshipType.withName(predicate);
         String[] words = line.split("\\(")[1].split(",");
         String start = words[0];
         String end = words[1].replace(")", "");
@@ -64,28 +72,42 @@ public class Atom {
     }
 
     /**
-     * This Atom structure always ensures that the subject
+     * This Atom structure always ensures that the subject is the source of the relationship. Terms
+     * are not named, as the atom is a body atom of a template, whose terms are variables.
      */
     public Atom(Node source, Relationship relationship) {
-        boolean inverse = source.equals(relationship.getEndNode());
+        boolean inverse = source.getId() == relationship.getEndNodeId();
         type = relationship.getType();
-        predicate = relationship.getType().name();
+        predicate = type.name();
         if ( inverse ) {
             direction = Direction.INCOMING;
-            subject = (String) relationship.getEndNode().getProperty(Settings.NEO4J_IDENTIFIER);
-            object = (String) relationship.getStartNode().getProperty(Settings.NEO4J_IDENTIFIER);
             subjectId = relationship.getEndNodeId();
             objectId = relationship.getStartNodeId();
         }
         else  {
             direction = Direction.OUTGOING;
-            subject = (String) relationship.getStartNode().getProperty(Settings.NEO4J_IDENTIFIER);
-            object = (String) relationship.getEndNode().getProperty(Settings.NEO4J_IDENTIFIER);
             subjectId = relationship.getStartNodeId();
             objectId = relationship.getEndNodeId();
         }
     }
 
+    /**
+     * @return the id of the predicate, given in the order predicates are first seen by the process.
+     */
+    public static int predicateId(String predicate) {
+        Integer id = predicateIds.get(predicate);
+        if(id != null) return id;
+        return predicateIds.computeIfAbsent(predicate, k -> predicateCount.getAndIncrement());
+    }
+
+    /**
+     * @return the predicate id and the direction of the atom packed in an int. Terms are not encoded,
+     * as the variables of a template follow from its shape, see {@link TemplateKey}.
+     */
+    public int encode() {
+        return predicateId(predicate) << 1 | (isInverse() ? 1 : 0);
+    }
+
     public String getSubject() {
         return subject;
     }
@@ -141,16 +163,28 @@ public class Atom {
             return predicate + "(" + subject + "," + object + "," + 0 + ")";
     }
 
+    /**
+     * Terms in the order they are printed, so that atoms are equal if they print the same.
+     */
+    private String first() {
+        return isInverse() ? object : subject;
+    }
+
+    private String second() {
+        return isInverse() ? subject : object;
+    }
+
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return (predicate.hashCode() * 31 + Objects.hashCode(first())) * 31 + Objects.hashCode(second());
     }
 
     @Override
     public boolean equals(Object obj) {
         if ( obj instanceof Atom) {
             Atom right = (Atom) obj;
-            return this.toString().equals(right.toString());
+            return predicate.equals(right.predicate) && Objects.equals(first(), right.first())
+                    && Objects.equals(second(), right.second());
         }
         return false;
     }
@@ -0,0 +1,66 @@
+package uk.ac.ncl.structure;
+
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Filter index over known triples used by post-filtering in evaluation. Entities are
+ * dictionary-encoded into ints and each (sub, obj) pair is packed into a long, which is
+ * stored in a primitive hash set per predicate, so a membership test is a single probe.
+ */
+public class FilterIndex {
+    private final ObjectIntHashMap<String> entityDict = new ObjectIntHashMap<>();
+    private final Map<String, LongHashSet> predicateIndex = new HashMap<>();
+
+    public void add(Triple triple) {
+        long key = ((long) encode(triple.sub) << 32) | encode(triple.obj);
+        predicateIndex.computeIfAbsent(triple.pred, k -> new LongHashSet()).add(key);
+    }
+
+    public boolean contains(String sub, String pred, String obj) {
+        LongHashSet set = predicateIndex.get(pred);
+        if(set == null)
+            return false;
+        int subId = entityDict.getIfAbsent(sub, -1);
+        int objId = entityDict.getIfAbsent(obj, -1);
+        if(subId == -1 || objId == -1)
+            return false;
+        return set.contains(((long) subId << 32) | objId);
+    }
+
+    /**
+     * Check on dictionary codes from {@link #code}, skipping the string lookups.
+     */
+    public boolean contains(int subCode, String pred, int objCode) {
+        if(subCode == -1 || objCode == -1)
+            return false;
+        LongHashSet set = predicateIndex.get(pred);
+        return set != null && set.contains(((long) subCode << 32) | objCode);
+    }
+
+    /**
+     * @return the dictionary code of the entity, or -1 if it is not in any known triple.
+     */
+    public int code(String entity) {
+        return entityDict.getIfAbsent(entity, -1);
+    }
+
+    public boolean contains(Triple triple) {
+        return contains(triple.sub, triple.pred, triple.obj);
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongHashSet set : predicateIndex.values()) {
+            size += set.size();
+        }
+        return size;
+    }
+
+    private int encode(String entity) {
+        return entityDict.getIfAbsentPut(entity, entityDict.size());
+    }
+}
@@ -4,17 +4,17 @@ import java.util.HashSet;
 import java.util.Set;
 
 public class FilterSet {
-    private static Set<Pair> trainPairs;
-    private static Set<Pair> validPairs;
-    private static Set<Pair> testPairs;
-
-    public static void initFilterSet(Set<Pair> trainPairs, Set<Pair> validPairs, Set<Pair> testPairs) {
-        FilterSet.trainPairs = trainPairs;
-        FilterSet.validPairs = validPairs;
-        FilterSet.testPairs = testPairs;
+    private final Set<Pair> trainPairs;
+    private final Set<Pair> validPairs;
+    private final Set<Pair> testPairs;
+
+    public FilterSet(Set<Pair> trainPairs, Set<Pair> validPairs, Set<Pair> testPairs) {
+        this.trainPairs = trainPairs;
+        this.validPairs = validPairs;
+        this.testPairs = testPairs;
     }
 
-    public static Set<Pair> buildFilterSet() {
+    public Set<Pair> buildFilterSet() {
         Set<Pair> pairs = new HashSet<>();
         pairs.addAll(trainPairs);
         pairs.addAll(validPairs);
@@ -22,13 +22,25 @@ public class FilterSet {
         return pairs;
     }
 
-    public static boolean isKnown(Pair pair) {
+    public Set<Pair> getTrainPairs() {
+        return trainPairs;
+    }
+
+    public Set<Pair> getValidPairs() {
+        return validPairs;
+    }
+
+    public Set<Pair> getTestPairs() {
+        return testPairs;
+    }
+
+    public boolean isKnown(Pair pair) {
         if(trainPairs.contains(pair))
             return true;
         return validPairs.contains(pair);
     }
 
-    public static boolean isKnownWithTest(Pair pair) {
+    public boolean isKnownWithTest(Pair pair) {
         if(trainPairs.contains(pair))
             return true;
         if(validPairs.contains(pair))
@@ -36,15 +48,15 @@ public class FilterSet {
         return testPairs.contains(pair);
     }
 
-    public static boolean inTestSet(Pair pair) {
+    public boolean inTestSet(Pair pair) {
         return testPairs.contains(pair);
     }
 
-    public static int testSetSize() {
+    public int testSetSize() {
         return testPairs.size();
     }
 
-    public static int size() {
+    public int size() {
         return trainPairs.size() + validPairs.size() + testPairs.size();
     }
 }
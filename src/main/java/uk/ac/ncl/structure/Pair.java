@@ -5,6 +5,7 @@ import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import uk.ac.ncl.Settings;
+import uk.ac.ncl.core.Context;
 
 import java.text.MessageFormat;
 import java.util.Comparator;
@@ -104,13 +105,13 @@ public class Pair {
 
     public String toQueryString(GraphDatabaseService graph) {
         return "(" + subId + "|" + graph.getNodeById(subId).getProperty(Settings.NEO4J_IDENTIFIER)
-                + ", "  + Settings.TARGET + ", "
+                + ", "  + Context.current().getTarget() + ", "
                 + objId + "|" + graph.getNodeById(objId).getProperty(Settings.NEO4J_IDENTIFIER) + ")";
     }
 
     public String toVerificationString(GraphDatabaseService graph) {
         return graph.getNodeById(subId).getProperty(Settings.NEO4J_IDENTIFIER)
-                + "\t"  + Settings.TARGET + "\t"
+                + "\t"  + Context.current().getTarget() + "\t"
                 + graph.getNodeById(objId).getProperty(Settings.NEO4J_IDENTIFIER);
     }
 
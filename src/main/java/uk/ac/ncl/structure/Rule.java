@@ -2,6 +2,7 @@ package uk.ac.ncl.structure;
 
 import org.apache.commons.compress.utils.Lists;
 import uk.ac.ncl.Settings;
+import uk.ac.ncl.core.Context;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -102,29 +103,11 @@ public abstract class Rule {
     }
 
     public double getQuality() {
-        switch (Settings.QUALITY_MEASURE) {
-            case "smoothedConf":
-                return stats.smoothedConf;
-            case "standardConf":
-                return stats.standardConf;
-            case "pcaConf":
-                return stats.pcaConf;
-            default:
-                return stats.apcaConf;
-        }
+        return stats.getQuality(Settings.QUALITY_MEASURE);
     }
 
     public double getQuality(String measure) {
-        switch (measure) {
-            case "smoothedConf":
-                return stats.smoothedConf;
-            case "standardConf":
-                return stats.standardConf;
-            case "pcaConf":
-                return stats.pcaConf;
-            default:
-                return stats.apcaConf;
-        }
+        return stats.getQuality(measure);
     }
 
     public double getHeadCoverage() {
@@ -196,12 +179,58 @@ public abstract class Rule {
                     , String.valueOf(headCoverage));
         }
 
+        /**
+         * The number of counts written by {@link #toIndexString}.
+         */
+        public final static int INDEX_COUNTS = 6;
+
+        /**
+         * @return the raw counts of the rule as kept in the rule index. The measures are computed from
+         * the counts when the index is read, so they follow the current quality measure and confidence offset.
+         */
+        public String toIndexString(String separator) {
+            return String.join(separator
+                    , String.valueOf((long) support)
+                    , String.valueOf((long) totalPredictions)
+                    , String.valueOf((long) pcaTotalPredictions)
+                    , String.valueOf((long) groundTruth)
+                    , String.valueOf((long) validTotalPredictions)
+                    , String.valueOf((long) validPredictions));
+        }
+
+        /**
+         * Reads the counts written by {@link #toIndexString} starting at words[from] and computes the measures.
+         */
+        public void readIndexString(String[] words, int from) {
+            support = Long.parseLong(words[from]);
+            totalPredictions = Long.parseLong(words[from + 1]);
+            pcaTotalPredictions = Long.parseLong(words[from + 2]);
+            groundTruth = Long.parseLong(words[from + 3]);
+            validTotalPredictions = Long.parseLong(words[from + 4]);
+            validPredictions = Long.parseLong(words[from + 5]);
+            compute();
+        }
+
+        public double getQuality(String measure) {
+            switch (measure) {
+                case "smoothedConf":
+                    return smoothedConf;
+                case "standardConf":
+                    return standardConf;
+                case "pcaConf":
+                    return pcaConf;
+                default:
+                    return apcaConf;
+            }
+        }
+
         public void compute() {
             smoothedConf = support / (totalPredictions + Settings.CONFIDENCE_OFFSET);
             standardConf = totalPredictions == 0 ? 0 : support / totalPredictions;
             pcaConf = totalPredictions == 0 ? 0 : support / pcaTotalPredictions;
             headCoverage = groundTruth == 0 ? 0 : support / groundTruth;
-            apcaConf = Settings.TARGET_FUNCTIONAL ? pcaConf : smoothedConf;
+            Context context = Context.current();
+            apcaConf = context != null && context.isTargetFunctional() ? pcaConf : smoothedConf;
             validPrecision = validTotalPredictions == 0 ? 0 : validPredictions / validTotalPredictions;
         }
 
@@ -20,20 +20,9 @@ public class SimpleInsRule extends Rule {
         headAnchoringId = Long.parseLong(words[1]);
         if(type == 2) {
             tailAnchoringId = Long.parseLong(words[2]);
-            stats.setStandardConf(Double.parseDouble(words[3]));
-            stats.setSmoothedConf(Double.parseDouble(words[4]));
-            stats.setPcaConf(Double.parseDouble(words[5]));
-            stats.setApcaConf(Double.parseDouble(words[6]));
-            stats.setHeadCoverage(Double.parseDouble(words[7]));
-            stats.setValidPrecision(Double.parseDouble(words[8]));
-        } else {
-            stats.setStandardConf(Double.parseDouble(words[2]));
-            stats.setSmoothedConf(Double.parseDouble(words[3]));
-            stats.setPcaConf(Double.parseDouble(words[4]));
-            stats.setApcaConf(Double.parseDouble(words[5]));
-            stats.setHeadCoverage(Double.parseDouble(words[6]));
-            stats.setValidPrecision(Double.parseDouble(words[7]));
-        }
+            stats.readIndexString(words, 3);
+        } else
+            stats.readIndexString(words, 2);
     }
 
     public void insRuleString(GraphDatabaseService graph) {
@@ -9,14 +9,25 @@ import uk.ac.ncl.analysis.RuleLogger;
 import uk.ac.ncl.core.Context;
 import uk.ac.ncl.core.GlobalTimer;
 import uk.ac.ncl.core.GraphOps;
+import uk.ac.ncl.core.TemplateProfiler;
 import uk.ac.ncl.utils.IO;
+import uk.ac.ncl.utils.Metrics;
 
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Template extends Rule {
+    private final static LongAdder evaluatedHARs = Metrics.counter("rh_candidates_evaluated_total", "type", "HAR");
+    private final static LongAdder evaluatedBARs = Metrics.counter("rh_candidates_evaluated_total", "type", "BAR");
+    private final static LongAdder priorPruned = Metrics.counter("rh_pruned_total", "stage", "prior");
+    private final static LongAdder postPruned = Metrics.counter("rh_pruned_total", "stage", "post");
+
+    private final static String[] VARIABLES = {"V0", "V1", "V2", "V3", "V4", "V5", "V6", "V7"};
+
     public List<SimpleInsRule> insRules = new ArrayList<>();
+    private TemplateKey key;
 
     public Template(String line) {
         String[] words = line.split("\t");
@@ -30,6 +41,7 @@ public class Template extends Rule {
         }
         Atom firstAtom = bodyAtoms.get(0);
         fromSubject = firstAtom.subject.equals("X");
+        key = new TemplateKey(this);
     }
 
     public Template(Atom h, List<Atom> b) {
@@ -41,8 +53,8 @@ public class Template extends Rule {
 
         int variableCount = 0;
         for(Atom atom : bodyAtoms) {
-            atom.subject = "V" + variableCount;
-            atom.object = "V" + ++variableCount;
+            atom.subject = variable(variableCount);
+            atom.object = variable(++variableCount);
         }
 
         if ( fromSubject ) firstAtom.subject = "X";
@@ -50,6 +62,18 @@ public class Template extends Rule {
 
         if ( closed && fromSubject ) lastAtom.object = "Y";
         else if ( closed ) lastAtom.object = "X";
+        key = new TemplateKey(this);
+    }
+
+    private static String variable(int i) {
+        return i < VARIABLES.length ? VARIABLES[i] : "V" + i;
+    }
+
+    /**
+     * @return the key of the template, by which templates are hashed and compared without strings.
+     */
+    public TemplateKey getKey() {
+        return key;
     }
 
     @Override
@@ -66,11 +90,11 @@ public class Template extends Rule {
             , Multimap<Long, Long> anchoringToOriginal, Multimap<Long, Long> validOriginals
             , Context context
             , BlockingQueue<String> ruleFileContents
-            , BlockingQueue<String> indexFileContents) throws InterruptedException {
+            , BlockingQueue<String> indexFileContents
+            , TemplateProfiler.Profile profile) throws InterruptedException {
         DecimalFormat f = new DecimalFormat("####.#####");
         List<String> contents = new ArrayList<>();
-        CountedSet<Pair> bodyGroundings = GraphOps.bodyGroundingCoreAPI(graph, this
-                , false, GlobalTimer::stopSpec);
+        CountedSet<Pair> bodyGroundings = learningGroundings(graph, context, profile);
         if(context.checkInsRuleCap() || GlobalTimer.stopSpec()) return;
 
         if(closed) {
@@ -78,12 +102,7 @@ public class Template extends Rule {
                  context.addSpecializedRules(this);
                  indexFileContents.put("ABS: " + context.getIndex(this) + "\t"
                          + this.toRuleIndexString() + "\t"
-                         + f.format(getStandardConf()) + "\t"
-                         + f.format(getSmoothedConf()) + "\t"
-                         + f.format(getPcaConf()) + "\t"
-                         + f.format(getApcaConf()) + "\t"
-                         + f.format(getHeadCoverage()) + "\t"
-                         + f.format(getValidPrecision()) + "\n");
+                         + stats.toIndexString("\t") + "\n");
                  ruleFileContents.put(this.toString() + "\t"
                          + f.format(getQuality()) + "\t"
                          + f.format(getHeadCoverage()) + "\t"
@@ -105,22 +124,21 @@ public class Template extends Rule {
             for (Long anchoring : anchoringToOriginal.keySet()) {
                 if(context.checkInsRuleCap() || GlobalTimer.stopSpec()) break;
 
+                profile.anchorings++;
                 Set<Pair> visited = new HashSet<>();
                 String headName = (String) graph.getNodeById(anchoring).getProperty(Settings.NEO4J_IDENTIFIER);
                 Rule HAR = new InstantiatedRule(this, headName, anchoring);
+                evaluatedHARs.increment();
+                profile.harTried++;
                 if(evaluateRule(HAR, anchoringToOriginal.get(anchoring), validOriginals.get(anchoring), groundingOriginals)) {
+                    profile.harKept++;
                     stats.support += HAR.stats.support;
                     stats.totalPredictions += HAR.stats.totalPredictions;
                     stats.pcaTotalPredictions += HAR.stats.pcaTotalPredictions;
                     context.updateTotalInsRules();
                     contents.add("0" + ","
                             + HAR.getHeadAnchoring() + ","
-                            + f.format(HAR.getStandardConf()) + ","
-                            + f.format(HAR.getSmoothedConf()) + ","
-                            + f.format(HAR.getPcaConf()) + ","
-                            + f.format(HAR.getApcaConf()) + ","
-                            + f.format(HAR.getHeadCoverage()) + ","
-                            + f.format(HAR.getValidPrecision()));
+                            + HAR.stats.toIndexString(","));
                     ruleFileContents.put(HAR.toString() + "\t"
                             + f.format(HAR.getQuality()) + "\t"
                             + f.format(HAR.getHeadCoverage()) + "\t"
@@ -140,17 +158,15 @@ public class Template extends Rule {
                             candidate.subName = headName;
                             candidate.objName = (String) graph.getNodeById(tail).getProperty(Settings.NEO4J_IDENTIFIER);
                             Rule BAR = new InstantiatedRule(this, candidate);
+                            evaluatedBARs.increment();
+                            profile.barTried++;
                             if (evaluateRule(BAR, anchoringToOriginal.get(anchoring), validOriginals.get(anchoring), tailToOriginal.get(tail))) {
+                                profile.barKept++;
                                 context.updateTotalInsRules();
                                 contents.add("2" + ","
                                         + BAR.getHeadAnchoring() + ","
                                         + BAR.getTailAnchoring() + ","
-                                        + f.format(BAR.getStandardConf()) + ","
-                                        + f.format(BAR.getSmoothedConf()) + ","
-                                        + f.format(BAR.getPcaConf()) + ","
-                                        + f.format(BAR.getApcaConf()) + ","
-                                        + f.format(BAR.getHeadCoverage()) + ","
-                                        + f.format(BAR.getValidPrecision()));
+                                        + BAR.stats.toIndexString(","));
                                 ruleFileContents.put(BAR.toString() + "\t"
                                         + f.format(BAR.getQuality()) + "\t"
                                         + f.format(BAR.getHeadCoverage()) + "\t"
@@ -168,12 +184,7 @@ public class Template extends Rule {
                 context.addSpecializedRules(this);
                 indexFileContents.put("ABS: " + context.getIndex(this) + "\t"
                         + this.toRuleIndexString() + "\t"
-                        + f.format(getStandardConf()) + "\t"
-                        + f.format(getSmoothedConf()) + "\t"
-                        + f.format(getPcaConf()) + "\t"
-                        + f.format(getApcaConf()) + "\t"
-                        + f.format(getHeadCoverage()) + "\t"
-                        + f.format(getValidPrecision()) + "\n"
+                        + stats.toIndexString("\t") + "\n"
                         + String.join("\t", contents) + "\n");
             }
         }
@@ -200,17 +211,18 @@ public class Template extends Rule {
             , BlockingQueue<String> ruleFileContents
             , BlockingQueue<String> indexFileContents
             , RuleHierarchy hierarchy
-            , BlockingQueue<Rule> ruleQueue) throws InterruptedException {
+            , BlockingQueue<Rule> ruleQueue
+            , TemplateProfiler.Profile profile) throws InterruptedException {
         DecimalFormat f = new DecimalFormat("####.#####");
         List<String> contents = new ArrayList<>();
-        CountedSet<Pair> bodyGroundings = GraphOps.bodyGroundingCoreAPI(graph, this
-                , false, GlobalTimer::stopSpec);
+        CountedSet<Pair> bodyGroundings = learningGroundings(graph, context, profile);
 
         if(RHSettings.USE_PRIOR_PRUNE) {
             int support = ruleSupport(bodyGroundings, anchoringToOriginal);
             if (support <= RHSettings.PRIOR_PRUNE_TH) {
                 int pruned = hierarchy.size(this);
                 RuleLogger.updatePriorPrunedARs(pruned + 1);
+                priorPruned.add(pruned + 1);
                 return;
             }
             for (Rule rule : hierarchy.getRuleChildren(this)) {
@@ -226,12 +238,7 @@ public class Template extends Rule {
                 RuleLogger.updateQualifiedARs();
                 indexFileContents.put("ABS: " + context.getIndex(this) + "\t"
                         + this.toRuleIndexString() + "\t"
-                        + f.format(getStandardConf()) + "\t"
-                        + f.format(getSmoothedConf()) + "\t"
-                        + f.format(getPcaConf()) + "\t"
-                        + f.format(getApcaConf()) + "\t"
-                        + f.format(getHeadCoverage()) + "\t"
-                        + f.format(getValidPrecision()) + "\n");
+                        + stats.toIndexString("\t") + "\n");
                 ruleFileContents.put(this.toString() + "\t"
                         + f.format(getQuality()) + "\t"
                         + f.format(getHeadCoverage()) + "\t"
@@ -255,19 +262,18 @@ public class Template extends Rule {
             for (Long anchoring : anchoringToOriginal.keySet()) {
                 if(context.checkInsRuleCap() || GlobalTimer.stopSpec()) break;
 
+                profile.anchorings++;
                 Set<Pair> visited = new HashSet<>();
                 String headName = (String) graph.getNodeById(anchoring).getProperty(Settings.NEO4J_IDENTIFIER);
                 Rule HAR = new InstantiatedRule(this, headName, anchoring);
+                evaluatedHARs.increment();
+                profile.harTried++;
                 if(evaluateRule(HAR, anchoringToOriginal.get(anchoring), validOriginals.get(anchoring), groundingOriginals)) {
+                    profile.harKept++;
                     RuleLogger.updateQualifiedIRs();
                     contents.add("0" + ","
                             + HAR.getHeadAnchoring() + ","
-                            + f.format(HAR.getStandardConf()) + ","
-                            + f.format(HAR.getSmoothedConf()) + ","
-                            + f.format(HAR.getPcaConf()) + ","
-                            + f.format(HAR.getApcaConf()) + ","
-                            + f.format(HAR.getHeadCoverage()) + ","
-                            + f.format(HAR.getValidPrecision()));
+                            + HAR.stats.toIndexString(","));
                     ruleFileContents.put(HAR.toString() + "\t"
                             + f.format(HAR.getQuality()) + "\t"
                             + f.format(HAR.getHeadCoverage()) + "\t"
@@ -292,25 +298,24 @@ public class Template extends Rule {
                             candidate.subName = headName;
                             candidate.objName = (String) graph.getNodeById(tail).getProperty(Settings.NEO4J_IDENTIFIER);
                             Rule BAR = new InstantiatedRule(this, candidate);
+                            evaluatedBARs.increment();
+                            profile.barTried++;
                             if (evaluateRule(BAR, anchoringToOriginal.get(anchoring), validOriginals.get(anchoring), tailToOriginal.get(tail))) {
 
                                 if(RHSettings.USE_POST_PRUNE) {
                                     if(BAR.getQuality() <= HAR.getQuality()) {
                                         RuleLogger.updatePostPrunedIRs();
+                                        postPruned.increment();
                                         continue;
                                     }
                                 }
 
+                                profile.barKept++;
                                 RuleLogger.updateQualifiedIRs();
                                 contents.add("2" + ","
                                         + BAR.getHeadAnchoring() + ","
                                         + BAR.getTailAnchoring() + ","
-                                        + f.format(BAR.getStandardConf()) + ","
-                                        + f.format(BAR.getSmoothedConf()) + ","
-                                        + f.format(BAR.getPcaConf()) + ","
-                                        + f.format(BAR.getApcaConf()) + ","
-                                        + f.format(BAR.getHeadCoverage()) + ","
-                                        + f.format(BAR.getValidPrecision()));
+                                        + BAR.stats.toIndexString(","));
                                 ruleFileContents.put(BAR.toString() + "\t"
                                         + f.format(BAR.getQuality()) + "\t"
                                         + f.format(BAR.getHeadCoverage()) + "\t"
@@ -332,12 +337,7 @@ public class Template extends Rule {
                 RuleLogger.updateQualifiedARs();
                 indexFileContents.put("ABS: " + context.getIndex(this) + "\t"
                         + this.toRuleIndexString() + "\t"
-                        + f.format(getStandardConf()) + "\t"
-                        + f.format(getSmoothedConf()) + "\t"
-                        + f.format(getPcaConf()) + "\t"
-                        + f.format(getApcaConf()) + "\t"
-                        + f.format(getHeadCoverage()) + "\t"
-                        + f.format(getValidPrecision()) + "\n"
+                        + stats.toIndexString("\t") + "\n"
                         + String.join("\t", contents) + "\n");
             } else {
                 RuleLogger.updateUnqualifiedARs();
@@ -345,8 +345,11 @@ public class Template extends Rule {
         }
     }
 
-    public void applyRule(GraphDatabaseService graph, Context context) {
-        CountedSet<Pair> bodyGroundings = GraphOps.bodyGroundingCoreAPI(graph, this, true, context::checkSuggestionCap);
+    public void applyRule(GraphDatabaseService graph, Context context, TemplateProfiler.Profile profile) {
+        long s = System.nanoTime();
+        CountedSet<Pair> bodyGroundings = context.applicationGroundings(graph, this);
+        profile.groundingNanos = System.nanoTime() - s;
+        profile.groundings = bodyGroundings.size();
         Set<Long> originals = Sets.newHashSet();
         Multimap<Long, Long> tailToOriginals = MultimapBuilder.hashKeys().hashSetValues().build();
         for (Pair grounding : bodyGroundings) {
@@ -363,15 +366,28 @@ public class Template extends Rule {
                     break;
 
                 rule.insRuleString(graph);
-                if (rule.type == 0)
+                profile.anchorings++;
+                if (rule.type == 0) {
+                    profile.harTried++;
                     applyHeadAnchoredRules(rule, originals, context);
-                else if (rule.type == 2)
+                }
+                else if (rule.type == 2) {
+                    profile.barTried++;
                     applyBothAnchoredRules(rule, tailToOriginals, context);
+                }
             }
             insRules.clear();
         }
     }
 
+    private CountedSet<Pair> learningGroundings(GraphDatabaseService graph, Context context, TemplateProfiler.Profile profile) {
+        long s = System.nanoTime();
+        CountedSet<Pair> bodyGroundings = context.learningGroundings(graph, this);
+        profile.groundingNanos = System.nanoTime() - s;
+        profile.groundings = bodyGroundings.size();
+        return bodyGroundings;
+    }
+
     private boolean evalClosedRule(CountedSet<Pair> bodyGroundings, Set<Pair> groundTruth, Set<Pair> validPair) {
         double totalPrediction = 0, correctPrediction = 0, pcaTotalPrediction = 0
                 , validTotalPredictions = 0, validPredictions = 0;
@@ -435,13 +451,14 @@ public class Template extends Rule {
     }
 
     private void applyHeadAnchoredRules(SimpleInsRule rule, Set<Long> originals, Context context) {
+        FilterSet filterSet = context.getFilterSet();
         int testSupport = 0;
         int filteredPredictions = 0;
         for (Long original : originals) {
             Pair pair = fromSubject ? new Pair(original, rule.headAnchoringId) : new Pair(rule.headAnchoringId, original);
             if(!pair.isSelfloop()) {
-                if(FilterSet.inTestSet(pair)) testSupport++;
-                if(!FilterSet.isKnown(pair)) filteredPredictions++;
+                if(filterSet.inTestSet(pair)) testSupport++;
+                if(!filterSet.isKnown(pair)) filteredPredictions++;
                 context.putInPredictionMap(pair, rule);
             }
         }
@@ -449,13 +466,14 @@ public class Template extends Rule {
     }
 
     private void applyBothAnchoredRules(SimpleInsRule rule, Multimap<Long, Long> tailToOriginals, Context context) {
+        FilterSet filterSet = context.getFilterSet();
         int testSupport = 0;
         int filteredPredictions = 0;
         for (Long original : tailToOriginals.get(rule.tailAnchoringId)) {
             Pair pair = fromSubject ? new Pair(original, rule.headAnchoringId) : new Pair(rule.headAnchoringId, original);
             if(!pair.isSelfloop()) {
-                if(FilterSet.inTestSet(pair)) testSupport++;
-                if(!FilterSet.isKnown(pair)) filteredPredictions++;
+                if(filterSet.inTestSet(pair)) testSupport++;
+                if(!filterSet.isKnown(pair)) filteredPredictions++;
                 context.putInPredictionMap(pair, rule);
             }
         }
@@ -463,19 +481,32 @@ public class Template extends Rule {
     }
 
     private void applyClosedRule(CountedSet<Pair> bodyGroundings, Context context) {
+        FilterSet filterSet = context.getFilterSet();
         int testSupport = 0;
         int filteredPredictions = 0;
         for (Pair grounding : bodyGroundings) {
             Pair pair = fromSubject ? grounding : new Pair(grounding.objId, grounding.subId);
             if(!pair.isSelfloop()) {
-                if(FilterSet.inTestSet(pair)) testSupport++;
-                if(!FilterSet.isKnown(pair)) filteredPredictions++;
+                if(filterSet.inTestSet(pair)) testSupport++;
+                if(!filterSet.isKnown(pair)) filteredPredictions++;
                 context.putInPredictionMap(pair, this);
             }
         }
         stats.setPrecision(testSupport, filteredPredictions);
     }
 
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj instanceof Template)
+            return key.equals(((Template) obj).key);
+        return super.equals(obj);
+    }
+
     @Override
     public String toString() {
         String header = isClosed() ? "CAR\t" : "OAR\t";
@@ -0,0 +1,117 @@
+package uk.ac.ncl.structure;
+
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Arrays;
+
+/**
+ * Identity of a template: the head predicate id with the closed and fromSubject bits, which bind
+ * the variables of the first and last atoms, followed by the predicate id and direction of each
+ * body atom, see {@link Atom#encode()}. Two templates are equal iff their keys are.
+ * <p>
+ * A key can be reused as a probe by {@link #set(Path, Pair)}, which abstracts a sampled path without
+ * building its atoms or reading the names of its nodes, so that a template is only built for a path
+ * whose key is not known yet. Keys of templates are not changed once built.
+ */
+public class TemplateKey {
+    private int[] codes;
+    private int length;
+    private int hash;
+    private boolean closed;
+
+    public TemplateKey() {
+        codes = new int[8];
+    }
+
+    TemplateKey(Rule rule) {
+        length = rule.length();
+        closed = rule.isClosed();
+        codes = new int[length + 1];
+        codes[0] = head(Atom.predicateId(rule.head.predicate), closed, rule.isFromSubject());
+        for (int i = 0; i < length; i++) {
+            codes[i + 1] = rule.bodyAtoms.get(i).encode();
+        }
+        hash = hash();
+    }
+
+    /**
+     * Sets the key to the one of the template abstracted from the path for the pair, as built by
+     * {@link uk.ac.ncl.core.Context#createTemplate}.
+     */
+    public TemplateKey set(Path path, Pair pair) {
+        length = path.length();
+        if(codes.length < length + 1)
+            codes = new int[length + 1];
+        long start = path.startNode().getId();
+        long current = start;
+        int i = 1;
+        for (Relationship relationship : path.relationships()) {
+            boolean inverse = relationship.getEndNodeId() == current;
+            codes[i++] = Atom.predicateId(relationship.getType().name()) << 1 | (inverse ? 1 : 0);
+            current = relationship.getOtherNodeId(current);
+        }
+        closed = pair.subId == current || pair.objId == current;
+        codes[0] = head(Atom.predicateId(pair.type.name()), closed, pair.subId == start);
+        hash = hash();
+        return this;
+    }
+
+    /**
+     * Sets the key to the one of the template abstracted from the path for the pair, where the path
+     * is given by its nodes[0..length] and the codes of its atoms, see {@link Atom#encode()}.
+     */
+    public TemplateKey set(Pair pair, long[] nodes, int[] codes, int length) {
+        this.length = length;
+        if(this.codes.length < length + 1)
+            this.codes = new int[length + 1];
+        System.arraycopy(codes, 0, this.codes, 1, length);
+        long end = nodes[length];
+        closed = pair.subId == end || pair.objId == end;
+        this.codes[0] = head(Atom.predicateId(pair.type.name()), closed, pair.subId == nodes[0]);
+        hash = hash();
+        return this;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private static int head(int predicateId, boolean closed, boolean fromSubject) {
+        return predicateId << 2 | (closed ? 2 : 0) | (fromSubject ? 1 : 0);
+    }
+
+    private int hash() {
+        int result = 1;
+        for (int i = 0; i <= length; i++) {
+            result = 31 * result + codes[i];
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj == this) return true;
+        if(!(obj instanceof TemplateKey)) return false;
+        TemplateKey right = (TemplateKey) obj;
+        if(hash != right.hash || length != right.length) return false;
+        for (int i = 0; i <= length; i++) {
+            if(codes[i] != right.codes[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(codes, length + 1));
+    }
+}
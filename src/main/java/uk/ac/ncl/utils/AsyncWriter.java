@@ -0,0 +1,156 @@
+package uk.ac.ncl.utils;
+
+import uk.ac.ncl.core.HeapSampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Writer thread draining a content queue into a file. The thread blocks on the queue instead
+ * of spinning, drains items in batches into a large direct buffer written through a FileChannel,
+ * and stops once {@link #finish()} is signaled and the queue is empty.
+ * Producers are expected to be joined before calling {@link #finish()}.
+ */
+public class AsyncWriter<T> extends Thread {
+    private final static int BUFFER_SIZE = 1 << 22;
+    private final static int BATCH_SIZE = 1024;
+    private final static long POLL_TIMEOUT = 100;
+
+    private final File file;
+    private final BlockingQueue<T> queue;
+    private final Function<T, ByteBuffer> encoder;
+    private final boolean append;
+    private volatile boolean finished = false;
+
+    private long bytes = 0;
+    private long batches = 0;
+    private long depthSum = 0;
+    private int maxDepth = 0;
+    private long runtime = 0;
+
+    public AsyncWriter(String name, File file, BlockingQueue<T> queue, boolean append, Function<T, ByteBuffer> encoder) {
+        super(name);
+        this.file = file;
+        this.queue = queue;
+        this.append = append;
+        this.encoder = encoder;
+        start();
+    }
+
+    /**
+     * Writer of string contents, each followed by a new line if newLine is set.
+     */
+    public static AsyncWriter<String> text(String name, File file, BlockingQueue<String> queue, boolean append, boolean newLine) {
+        return new AsyncWriter<>(name, file, queue, append
+                , content -> ByteBuffer.wrap((newLine ? content + "\n" : content).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static AsyncWriter<ByteBuffer> binary(String name, File file, BlockingQueue<ByteBuffer> queue, boolean append) {
+        return new AsyncWriter<>(name, file, queue, append, ByteBuffer::duplicate);
+    }
+
+    /**
+     * Signals the end of the stream: no more contents will be added to the queue.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    /**
+     * Signals the end of the stream and waits until all contents are written.
+     */
+    public void close() throws InterruptedException {
+        finish();
+        join();
+    }
+
+    @Override
+    public void run() {
+        long s = System.currentTimeMillis();
+        long allocated = HeapSampler.threadStart();
+        Metrics.track(queue, "rh_queue_depth", "queue", getName());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+                , append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(true) {
+                T head = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if(head == null) {
+                    if(finished && queue.isEmpty()) break;
+                    continue;
+                }
+                int depth = queue.size() + 1;
+                maxDepth = Math.max(maxDepth, depth);
+                depthSum += depth;
+                batches++;
+
+                long batchStart = Tracer.begin();
+                batch.add(head);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (T content : batch) {
+                    ByteBuffer bytes = encoder.apply(content);
+                    this.bytes += bytes.remaining();
+                    if(bytes.remaining() > buffer.remaining())
+                        flush(channel, buffer);
+                    if(bytes.remaining() > buffer.remaining())
+                        write(channel, bytes);
+                    else
+                        buffer.put(bytes);
+                }
+                Tracer.end(batchStart, "write", "batch", file.getName());
+                batch.clear();
+            }
+            flush(channel, buffer);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        Metrics.untrack(queue, "rh_queue_depth", "queue", getName());
+        HeapSampler.threadEnd(allocated);
+        runtime = System.currentTimeMillis() - s;
+        Logger.println(report(), 3);
+    }
+
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(channel, buffer);
+        buffer.clear();
+    }
+
+    private void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public double getAverageDepth() {
+        return batches == 0 ? 0 : (double) depthSum / batches;
+    }
+
+    public double getBytesPerSecond() {
+        return runtime == 0 ? 0 : bytes * 1000d / runtime;
+    }
+
+    public String report() {
+        DecimalFormat f = new DecimalFormat("####.###");
+        return "# " + getName() + ": " + file.getName() + " | written = " + f.format(bytes / 1024d / 1024d) + "mb"
+                + " | throughput = " + f.format(getBytesPerSecond() / 1024d / 1024d) + "mb/s"
+                + " | queue depth: avg = " + f.format(getAverageDepth()) + ", max = " + maxDepth;
+    }
+}
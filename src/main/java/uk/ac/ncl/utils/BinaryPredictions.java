@@ -0,0 +1,173 @@
+package uk.ac.ncl.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary prediction file. Each query is one record:
+ * [byte headQuery][long subId][long objId][short predicate length][predicate bytes]
+ * [int k][k * (long answer entity id, double score)]
+ * where the answer entity replaces the subject of the test pair for head queries and the
+ * object for tail queries. Entity names are kept aside in a dictionary file of "id\tname" lines.
+ */
+public class BinaryPredictions {
+    private final static int HEADER_SIZE = 1 + 8 + 8 + 2;
+    private final static int ANSWER_SIZE = 8 + 8;
+    private final static long SKIM_WINDOW = 1 << 26;
+
+    public static File dictionaryFile(File predictionFile) {
+        return new File(predictionFile.getParentFile(), predictionFile.getName().replaceAll("\\.bin$", "") + ".dict");
+    }
+
+    public static ByteBuffer encode(boolean headQuery, long subId, long objId, byte[] predicate
+            , long[] answers, double[] scores, int k) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + predicate.length + 4 + k * ANSWER_SIZE);
+        buffer.put((byte) (headQuery ? 1 : 0)).putLong(subId).putLong(objId)
+                .putShort((short) predicate.length).put(predicate).putInt(k);
+        for (int i = 0; i < k; i++) {
+            buffer.putLong(answers[i]).putDouble(scores[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decoded view of a record. Instances are reused by {@link #read} to avoid allocation per query.
+     */
+    public static class Query {
+        public boolean headQuery;
+        public long subId;
+        public long objId;
+        public String predicate;
+        public int k;
+        public long[] answers = new long[16];
+        public double[] scores = new double[16];
+
+        public long correctAnswer() {
+            return headQuery ? subId : objId;
+        }
+    }
+
+    /**
+     * Reads the record at the buffer position into the query and advances the position.
+     */
+    public static void read(ByteBuffer buffer, Query query) {
+        query.headQuery = buffer.get() == 1;
+        query.subId = buffer.getLong();
+        query.objId = buffer.getLong();
+        byte[] predicate = new byte[buffer.getShort()];
+        buffer.get(predicate);
+        query.predicate = new String(predicate, StandardCharsets.UTF_8);
+        query.k = buffer.getInt();
+        if(query.answers.length < query.k) {
+            query.answers = new long[query.k];
+            query.scores = new double[query.k];
+        }
+        for (int i = 0; i < query.k; i++) {
+            query.answers[i] = buffer.getLong();
+            query.scores[i] = buffer.getDouble();
+        }
+    }
+
+    /**
+     * Splits the file into [start, end) byte ranges of about chunkSize bytes at record
+     * boundaries by skimming the record headers.
+     */
+    public static List<long[]> split(File file, long chunkSize) {
+        List<long[]> chunks = new ArrayList<>();
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkStart = 0, position = 0;
+            while(position < size) {
+                long windowStart = position;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart
+                        , Math.min(SKIM_WINDOW, size - windowStart));
+                while(window.limit() - (position - windowStart) >= HEADER_SIZE + 4) {
+                    int offset = (int) (position - windowStart);
+                    int predicateLength = window.getShort(offset + HEADER_SIZE - 2);
+                    if(window.limit() - offset < HEADER_SIZE + predicateLength + 4) break;
+                    int k = window.getInt(offset + HEADER_SIZE + predicateLength);
+                    position += HEADER_SIZE + predicateLength + 4 + (long) k * ANSWER_SIZE;
+                    if(position - chunkStart >= chunkSize) {
+                        chunks.add(new long[]{chunkStart, position});
+                        chunkStart = position;
+                    }
+                }
+                if(position == windowStart && windowStart + window.limit() < size) {
+                    System.err.println("# Record in " + file.getName() + " is too large to be mapped.");
+                    System.exit(-1);
+                }
+            }
+            if(chunkStart < size)
+                chunks.add(new long[]{chunkStart, size});
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return chunks;
+    }
+
+    public static LongObjectHashMap<String> readDictionary(File dictionaryFile) {
+        LongObjectHashMap<String> names = new LongObjectHashMap<>();
+        try(LineIterator l = FileUtils.lineIterator(dictionaryFile)) {
+            while(l.hasNext()) {
+                String[] words = l.nextLine().split("\t");
+                names.put(Long.parseLong(words[0]), words[1]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return names;
+    }
+
+    /**
+     * Converts a binary prediction file to the text format written by default.
+     */
+    public static void toText(File predictionFile, File textFile) {
+        LongObjectHashMap<String> names = readDictionary(dictionaryFile(predictionFile));
+        DecimalFormat f = new DecimalFormat("####.#####");
+        Query query = new Query();
+        try(FileChannel channel = FileChannel.open(predictionFile.toPath(), StandardOpenOption.READ);
+            PrintWriter writer = new PrintWriter(textFile)) {
+            for (long[] chunk : split(predictionFile, 1 << 30)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                while(buffer.hasRemaining()) {
+                    read(buffer, query);
+                    StringBuilder sb = new StringBuilder(query.headQuery ? "Head Query: " : "Tail Query: ");
+                    appendTriple(sb, names, query.subId, query.predicate, query.objId).append("\n");
+                    for (int i = 0; i < query.k; i++) {
+                        long subId = query.headQuery ? query.answers[i] : query.subId;
+                        long objId = query.headQuery ? query.objId : query.answers[i];
+                        appendTriple(sb, names, subId, query.predicate, objId).append("\t")
+                                .append(f.format(query.scores[i])).append("\n");
+                    }
+                    writer.print(sb.append("\n"));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private static StringBuilder appendTriple(StringBuilder sb, LongObjectHashMap<String> names
+            , long subId, String predicate, long objId) {
+        return sb.append("(").append(subId).append("|").append(names.get(subId))
+                .append(", ").append(predicate).append(", ")
+                .append(objId).append("|").append(names.get(objId)).append(")");
+    }
+}
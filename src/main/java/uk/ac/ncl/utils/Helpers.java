@@ -83,6 +83,11 @@ public class Helpers {
         else return defaultValue;
     }
 
+    public static long readSetting(JSONObject args, String key, long defaultValue) {
+        if(args.has(key)) return args.getLong(key);
+        else return defaultValue;
+    }
+
     public static double readSetting(JSONObject args, String key, double defaultValue) {
         if(args.has(key)) return args.getDouble(key);
         else return defaultValue;
@@ -159,7 +164,9 @@ public class Helpers {
                         "# Ins Rule Cap = {16} | Gen Time = {17}\n" +
                         "# Quality Measure = {18} | Overfitting Factor = {19}\n" +
                         "# Prior Prune = {20} | Prior Prune Threshold = {21}\n" +
-                        "# Post Prune = {22} | Filter Unsolvable = {23}"
+                        "# Post Prune = {22} | Filter Unsolvable = {23}\n" +
+                        "# Target Parallelism = {24} | Pipeline = {25}\n" +
+                        "# Phase Cache = {26} | Metrics Interval = {27}"
                 , Settings.INS_DEPTH
                 , Settings.CAR_DEPTH
                 , Settings.SUPPORT
@@ -184,6 +191,10 @@ public class Helpers {
                 , RHSettings.PRIOR_PRUNE_TH
                 , RHSettings.USE_POST_PRUNE
                 , RHSettings.FILTER_UNSOLVABLE
+                , Settings.TARGET_PARALLELISM
+                , Settings.PIPELINE
+                , Settings.PHASE_CACHE
+                , Settings.METRICS_INTERVAL
         );
         Logger.println(msg, 1);
     }
@@ -10,10 +10,13 @@ import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import uk.ac.ncl.Settings;
+import uk.ac.ncl.core.Context;
 import uk.ac.ncl.structure.*;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.util.*;
@@ -188,14 +191,88 @@ public class IO {
         };
     }
 
+    /**
+     * Appends the file of the same name as the output under each segment directory to the output.
+     * Segments without the file are skipped.
+     */
+    public static void concatSegments(List<File> segments, File output) {
+        try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE
+                , StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (File segment : segments) {
+                File file = new File(segment, output.getName());
+                if(!file.exists())
+                    continue;
+                try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long position = 0, size = in.size();
+                    while(position < size)
+                        position += in.transferTo(position, size - position, out);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Writes the abstract rules of the context in index order, one "frequency\tCAR|OAR\trule" line each.
+     */
+    public static void writeAbstractRules(File file, Context context) {
+        try(PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int i = 0; i < context.getAbstractRules().size(); i++) {
+                Template rule = (Template) context.getRule(i);
+                writer.println(context.ruleFrequency.get(rule) + "\t" + rule.toRuleIndexString());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Reads the abstract rules written by {@link #writeAbstractRules}. Rules derived from a template,
+     * such as instantiated rules, tell closed and open rules apart by the node ids of the atoms, so
+     * every variable is given a distinct negative id in place of the node of the sampled path.
+     */
+    public static void readAbstractRules(File file, Context context) {
+        try(LineIterator l = FileUtils.lineIterator(file)) {
+            while(l.hasNext()) {
+                String line = l.nextLine();
+                Template rule = new Template(line);
+                List<Atom> atoms = new ArrayList<>(rule.bodyAtoms);
+                atoms.add(rule.head);
+                for (Atom atom : atoms) {
+                    atom.subjectId = variableId(atom.subject);
+                    atom.objectId = variableId(atom.object);
+                }
+                context.restoreAbstractRule(rule, Integer.parseInt(line.split("\t")[0]));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private static long variableId(String variable) {
+        switch (variable) {
+            case "X":
+                return -1;
+            case "Y":
+                return -2;
+            default:
+                return -3 - Long.parseLong(variable.substring(1));
+        }
+    }
+
     public static void writePredictedFacts(GraphDatabaseService graph, File predictionFile, List<Map<Long, List<Pair>>> rankedMap) {
+        String target = Context.current().getTarget();
         try (PrintWriter writer = new PrintWriter(new FileWriter(predictionFile))) {
             for (int i = 0; i < 2; i++) {
                 for (Long key : rankedMap.get(i).keySet()) {
-                    String header = i == 0 ? "Query: " + Settings.TARGET + "("
+                    String header = i == 0 ? "Query: " + target + "("
                             + graph.getNodeById(key).getProperty(Settings.NEO4J_IDENTIFIER)
                             + ", ?)"
-                            : "Query: " + Settings.TARGET + "("
+                            : "Query: " + target + "("
                             + "(?, "
                             + graph.getNodeById(key).getProperty(Settings.NEO4J_IDENTIFIER) + ")";
                     writer.println(header);
@@ -207,7 +284,7 @@ public class IO {
                         String objName = (String) graph.getNodeById(pair.objId).getProperty(Settings.NEO4J_IDENTIFIER);
                         writer.println(MessageFormat.format("({0}, {1}, {2})\t{3}"
                                 ,subName
-                                ,Settings.TARGET
+                                ,target
                                 ,objName
                                 ,pair.scores[0]));
                     });
@@ -230,6 +307,24 @@ public class IO {
         return file;
     }
 
+    /**
+     * Creates the prediction file in the format of BINARY_PREDICTIONS and deletes the one in the other
+     * format, so that the predictions of an earlier run are not evaluated in place of this one.
+     */
+    public static File createPredictionFile(File out) {
+        File binaryFile = new File(out, "predictions.bin");
+        File textFile = new File(out, "predictions.txt");
+        if(Settings.BINARY_PREDICTIONS) {
+            textFile.delete();
+            File predictionFile = createEmptyFile(binaryFile);
+            createEmptyFile(BinaryPredictions.dictionaryFile(predictionFile));
+            return predictionFile;
+        }
+        binaryFile.delete();
+        BinaryPredictions.dictionaryFile(binaryFile).delete();
+        return createEmptyFile(textFile);
+    }
+
     public static Set<String> readTargets(File file) {
         Set<String> targets = new HashSet<>();
         try(LineIterator l = FileUtils.lineIterator(file)) {
@@ -326,22 +421,10 @@ public class IO {
                 String line = l.nextLine();
                 if(line.startsWith("ABS: ")) {
                     String[] words = line.split("ABS: ")[1].split("\t");
+                    Rule.RuleStats stats = new Rule.RuleStats();
                     if(words[1].equals("CAR")) {
-                        double score = 0;
-                        switch (Settings.QUALITY_MEASURE) {
-                            case "standardConf":
-                                score = Double.parseDouble(words[3]);
-                                break;
-                            case "smoothedConf":
-                                score = Double.parseDouble(words[4]);
-                                break;
-                            case "pcaConf":
-                                score = Double.parseDouble(words[5]);
-                                break;
-                            default:
-                                score = Double.parseDouble(words[6]);
-                        }
-                        map.put(line, score);
+                        stats.readIndexString(words, 3);
+                        map.put(line, stats.getQuality(Settings.QUALITY_MEASURE));
                     } else {
                         String nextLine = l.nextLine();
                         if(!nextLine.equals("")) {
@@ -350,39 +433,19 @@ public class IO {
                             for (String insRule : insRules) {
                                 String[] components = insRule.split(",");
                                 if(components[0].equals("0")) {
-                                    switch (Settings.QUALITY_MEASURE) {
-                                        case "standardConf":
-                                            scores.add(Double.parseDouble(components[2]));
-                                            break;
-                                        case "smoothedConf":
-                                            scores.add(Double.parseDouble(components[3]));
-                                            break;
-                                        case "pcaConf":
-                                            scores.add(Double.parseDouble(components[4]));
-                                            break;
-                                        default:
-                                            scores.add(Double.parseDouble(components[5]));
-                                    }
+                                    stats.readIndexString(components, 2);
+                                    scores.add(stats.getQuality(Settings.QUALITY_MEASURE));
                                 } else if(components[0].equals("2")) {
-                                    switch (Settings.QUALITY_MEASURE) {
-                                        case "standardConf":
-                                            scores.add(Double.parseDouble(components[3]));
-                                            break;
-                                        case "smoothedConf":
-                                            scores.add(Double.parseDouble(components[4]));
-                                            break;
-                                        case "pcaConf":
-                                            scores.add(Double.parseDouble(components[5]));
-                                            break;
-                                        default:
-                                            scores.add(Double.parseDouble(components[6]));
-                                    }
+                                    stats.readIndexString(components, 3);
+                                    scores.add(stats.getQuality(Settings.QUALITY_MEASURE));
                                 } else {
                                     System.err.println("# Error: Unknown rule type in rule index file.");
                                 }
                             }
                             double score = MathUtils.listMean(scores);
-                            map.put(line + "\t" + f.format(score) + "\n" + nextLine, score);
+                            // Drop the score of an earlier ordering so that an index can be reordered.
+                            String abs = "ABS: " + String.join("\t", Arrays.copyOf(words, 3 + Rule.RuleStats.INDEX_COUNTS));
+                            map.put(abs + "\t" + f.format(score) + "\n" + nextLine, score);
                         }
                     }
                 }
@@ -437,10 +500,18 @@ public class IO {
         System.out.println("# Rules are ordered.");
     }
 
-    public static Set<Rule> readRules(String target, File ruleIndexHome, GraphDatabaseService graph) {
+    /**
+     * Reads the rules of the target from its rule index. The measures of the rules are computed from
+     * the counts in the index, with the apcaConf of a functional target taken from its pcaConf.
+     */
+    public static Set<Rule> readRules(String target, File ruleIndexHome, GraphDatabaseService graph, boolean functional) {
         Logger.println("# Start Analyzing Target: " + target);
         Set<Rule> rules = new HashSet<>();
         File ruleIndexFile = new File(ruleIndexHome, target.replaceAll("[:/<>]", "_") + ".txt");
+        Context previous = Context.current();
+        Context context = new Context(target);
+        context.setTargetFunctional(functional);
+        context.attach();
         try(Transaction tx = graph.beginTx()) {
             try (LineIterator l = FileUtils.lineIterator(ruleIndexFile)) {
                 while (l.hasNext()) {
@@ -456,12 +527,7 @@ public class IO {
                             }
                         } else {
                             String[] words = line.split("ABS: ")[1].split("\t");
-                            rule.stats.setStandardConf(Double.parseDouble(words[3]));
-                            rule.stats.setSmoothedConf(Double.parseDouble(words[4]));
-                            rule.stats.setPcaConf(Double.parseDouble(words[5]));
-                            rule.stats.setApcaConf(Double.parseDouble(words[6]));
-                            rule.stats.setHeadCoverage(Double.parseDouble(words[7]));
-                            rule.stats.setValidPrecision(Double.parseDouble(words[8]));
+                            rule.stats.readIndexString(words, 3);
                         }
                         rules.add(rule);
                     }
@@ -471,6 +537,11 @@ public class IO {
                 System.exit(-1);
             }
             tx.success();
+        } finally {
+            if(previous != null)
+                previous.attach();
+            else
+                Context.detach();
         }
 
 //        Logger.println(Context.analyzeRuleComposition("# Read Templates", rules));
@@ -3,16 +3,43 @@ package uk.ac.ncl.utils;
 import uk.ac.ncl.Settings;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+/**
+ * Messages are printed to stdout on the calling thread, while the log file is written
+ * asynchronously: messages go to a bounded ring buffer drained by a background thread
+ * into one persistent channel. The buffer is flushed when switching log files and on shutdown.
+ */
 public class Logger {
     static File logFile;
 
+    private final static int CAPACITY = 1 << 14;
+    private final static BlockingQueue<String> buffer = new ArrayBlockingQueue<>(CAPACITY);
+    private final static Object lock = new Object();
+    private static Writer writer;
+    private static long enqueued = 0;
+    private static long written = 0;
+    private static Thread drainer;
+    private final static InheritableThreadLocal<Capture> captured = new InheritableThreadLocal<>();
+
     public static void init(File f, boolean append) {
-        logFile = f;
-        if(!append) overwrite();
+        flush();
+        synchronized (lock) {
+            closeWriter();
+            logFile = f;
+            openWriter(append);
+        }
+        startDrainer();
     }
 
     public static void println(String msg) {
@@ -20,23 +47,164 @@ public class Logger {
     }
 
     public static void println(String msg, int verbosity) {
+        Capture capture = captured.get();
+        if(capture != null) {
+            capture.messages.add(new Message(msg, verbosity));
+            return;
+        }
+
         if(verbosity <= Settings.VERBOSITY) {
             System.out.println(msg);
         }
 
         if(logFile != null) {
-            try (PrintWriter writer = new PrintWriter(new FileWriter(logFile, true), true)) {
-                writer.println(msg);
-            } catch (IOException e) {
+            try {
+                synchronized (buffer) {
+                    buffer.put(msg);
+                    enqueued++;
+                }
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Holds back the messages of the calling thread, and of the threads it creates from now on,
+     * in the capture until {@link #release}, so that the output of concurrent tasks is not
+     * interleaved. A capture can be shared by the threads running the stages of one task.
+     */
+    public static void capture(Capture capture) {
+        captured.set(capture);
+    }
+
+    /**
+     * Stops holding back the messages of the calling thread without printing them.
+     */
+    public static void suspend() {
+        captured.remove();
+    }
+
+    /**
+     * Prints the messages held back in the capture as one block.
+     */
+    public static void release(Capture capture) {
+        if(captured.get() == capture)
+            captured.remove();
+        synchronized (Capture.class) {
+            synchronized (capture.messages) {
+                for (Message message : capture.messages) {
+                    println(message.msg, message.verbosity);
+                }
+                capture.messages.clear();
+            }
+        }
+    }
+
     public static void overwrite() {
-        try( PrintWriter pw = new PrintWriter(logFile) ) {
-        } catch (Exception e) {
+        flush();
+        synchronized (lock) {
+            closeWriter();
+            openWriter(false);
+        }
+    }
+
+    /**
+     * Blocks until all messages logged before this call are written to the log file.
+     */
+    public static void flush() {
+        long target;
+        synchronized (buffer) {
+            target = enqueued;
+        }
+        synchronized (lock) {
+            while(written < target && drainer != null && drainer.isAlive()) {
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            try {
+                if(writer != null) writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void openWriter(boolean append) {
+        try {
+            FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+                    , append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 1 << 16);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static void closeWriter() {
+        try {
+            if(writer != null) writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+
+    private static synchronized void startDrainer() {
+        if(drainer != null) return;
+        drainer = new Thread(Logger::drain, "Logger");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            flush();
+            synchronized (lock) {
+                closeWriter();
+            }
+        }, "Logger-Shutdown"));
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(buffer.take());
+                buffer.drainTo(batch);
+                synchronized (lock) {
+                    try {
+                        if(writer != null) {
+                            for (String msg : batch) {
+                                writer.write(msg);
+                                writer.write("\n");
+                            }
+                            if(buffer.isEmpty()) writer.flush();
+                        }
+                    } finally {
+                        // A batch that fails to be written is dropped, so that flush does not wait for it.
+                        written += batch.size();
+                        lock.notifyAll();
+                        batch.clear();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static class Capture {
+        private final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    private static class Message {
+        final String msg;
+        final int verbosity;
+
+        Message(String msg, int verbosity) {
+            this.msg = msg;
+            this.verbosity = verbosity;
+        }
+    }
 }
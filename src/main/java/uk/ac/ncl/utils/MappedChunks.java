@@ -0,0 +1,110 @@
+package uk.ac.ncl.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Splits a line-based file into byte ranges that start at record boundaries, so that the
+ * ranges can be memory-mapped and parsed independently by several threads.
+ */
+public class MappedChunks {
+    private final static int PROBE_SIZE = 1 << 16;
+
+    /**
+     * @param chunkSize approximate size of a chunk in bytes, at most Integer.MAX_VALUE
+     * @param blockStart accepts the first line of a record
+     * @return list of [start, end) byte ranges covering the file
+     */
+    public static List<long[]> split(File file, long chunkSize, Predicate<String> blockStart) {
+        List<long[]> chunks = new ArrayList<>();
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while(start < size) {
+                long end = start + chunkSize >= size ? size : nextBlockStart(channel, start + chunkSize, blockStart);
+                if(end - start > Integer.MAX_VALUE) {
+                    System.err.println("# Record in " + file.getName() + " is too large to be mapped.");
+                    System.exit(-1);
+                }
+                chunks.add(new long[]{start, end});
+                start = end;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return chunks;
+    }
+
+    public static Lines map(FileChannel channel, long[] chunk) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+        return new Lines(StandardCharsets.UTF_8.decode(buffer));
+    }
+
+    private static long nextBlockStart(FileChannel channel, long offset, Predicate<String> blockStart) throws IOException {
+        long size = channel.size();
+        long probe = PROBE_SIZE;
+        while(true) {
+            long from = offset - 1;
+            long length = Math.min(probe, size - from);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            int lineStart = indexOf(buffer, 0, (byte) '\n');
+            while(lineStart != -1 && lineStart + 1 < length) {
+                lineStart++;
+                int lineEnd = indexOf(buffer, lineStart, (byte) '\n');
+                if(lineEnd == -1) break;
+                byte[] bytes = new byte[lineEnd - lineStart];
+                buffer.position(lineStart);
+                buffer.get(bytes);
+                if(blockStart.test(new String(bytes, StandardCharsets.UTF_8)))
+                    return from + lineStart;
+                lineStart = lineEnd;
+            }
+            if(from + length == size)
+                return size;
+            probe *= 2;
+        }
+    }
+
+    private static int indexOf(MappedByteBuffer buffer, int from, byte b) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if(buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Line cursor over a decoded chunk, following the line semantics of BufferedReader.
+     */
+    public static class Lines {
+        private final CharBuffer chars;
+        private int position = 0;
+
+        Lines(CharBuffer chars) {
+            this.chars = chars;
+        }
+
+        public boolean hasNext() {
+            return position < chars.limit();
+        }
+
+        public String nextLine() {
+            int start = position;
+            int end = start;
+            while(end < chars.limit() && chars.get(end) != '\n' && chars.get(end) != '\r')
+                end++;
+            position = end + 1;
+            if(end < chars.limit() && chars.get(end) == '\r' && position < chars.limit() && chars.get(position) == '\n')
+                position++;
+            return chars.subSequence(start, end).toString();
+        }
+    }
+}
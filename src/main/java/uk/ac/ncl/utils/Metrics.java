@@ -0,0 +1,245 @@
+package uk.ac.ncl.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the metrics of a run: counters, latency histograms and queue depths. A metric is
+ * identified by its name and labels, given as key-value pairs, e.g.
+ * {@code Metrics.counter("rh_groundings_total", "length", "2")}. Instruments are created on first use
+ * and kept for the lifetime of the process, so hot paths look them up once and keep them in fields.
+ * <p>
+ * The metrics are exported to [out]/metrics.json and, in the Prometheus text format, to
+ * [out]/metrics.prom every METRICS_INTERVAL seconds and when the process ends. The JSON export
+ * also holds the rate per second of every counter since the previous export.
+ */
+public class Metrics {
+    private final static ConcurrentMap<String, Series<LongAdder>> counters = new ConcurrentHashMap<>();
+    private final static ConcurrentMap<String, Series<LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+    private final static ConcurrentMap<String, Series<Set<Collection<?>>>> queues = new ConcurrentHashMap<>();
+    private final static double[] QUANTILES = new double[]{0.5, 0.9, 0.99, 0.999};
+    private final static String[] QUANTILE_NAMES = new String[]{"p50", "p90", "p99", "p999"};
+    private final static long startTime = System.currentTimeMillis();
+
+    private static File out;
+    private static Exporter exporter;
+    private static long lastExport = startTime;
+    private static Map<String, Long> lastCounts = new HashMap<>();
+
+    public static LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new Series<>(name, labels, new LongAdder())).value;
+    }
+
+    public static LatencyHistogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Series<>(name, labels, new LatencyHistogram())).value;
+    }
+
+    /**
+     * Adds the queue to the queues whose total depth is reported under the name and labels, until
+     * it is removed by {@link #untrack}.
+     */
+    public static void track(Collection<?> queue, String name, String... labels) {
+        queues.computeIfAbsent(key(name, labels)
+                , k -> new Series<>(name, labels, Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()))))
+                .value.add(queue);
+    }
+
+    public static void untrack(Collection<?> queue, String name, String... labels) {
+        Series<Set<Collection<?>>> series = queues.get(key(name, labels));
+        if(series != null)
+            series.value.remove(queue);
+    }
+
+    /**
+     * Sets the output directory of the exports and starts the periodic export if interval > 0.
+     * The metrics are also exported when the process ends.
+     */
+    public static synchronized void start(File out, int interval) {
+        Metrics.out = out;
+        if(exporter == null) {
+            exporter = new Exporter(interval);
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::export, "Metrics-Shutdown"));
+        }
+    }
+
+    /**
+     * Writes the current values of all metrics to the export files. Each file is written to a
+     * temporary file first and moved in place, so that readers never see a partial export.
+     */
+    public static synchronized void export() {
+        if(out == null)
+            return;
+        long now = System.currentTimeMillis();
+        write(new File(out, "metrics.json"), toJSON(now).toString(2));
+        write(new File(out, "metrics.prom"), toPrometheus());
+        lastExport = now;
+    }
+
+    private static JSONObject toJSON(long now) {
+        double elapsed = (now - lastExport) / 1000d;
+        Map<String, Long> counts = new HashMap<>();
+        JSONArray counterArray = new JSONArray();
+        for (Map.Entry<String, Series<LongAdder>> entry : sorted(counters)) {
+            long value = entry.getValue().value.sum();
+            long last = lastCounts.getOrDefault(entry.getKey(), 0L);
+            counts.put(entry.getKey(), value);
+            counterArray.put(entry.getValue().toJSON()
+                    .put("value", value)
+                    .put("rate", elapsed == 0 ? 0 : (value - last) / elapsed));
+        }
+        lastCounts = counts;
+
+        JSONArray histogramArray = new JSONArray();
+        for (Map.Entry<String, Series<LatencyHistogram>> entry : sorted(histograms)) {
+            LatencyHistogram histogram = entry.getValue().value;
+            JSONObject object = entry.getValue().toJSON()
+                    .put("count", histogram.getCount())
+                    .put("sum_seconds", seconds(histogram.getSum()))
+                    .put("mean_seconds", seconds(histogram.getMean()))
+                    .put("max_seconds", seconds(histogram.getMax()));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                object.put(QUANTILE_NAMES[i] + "_seconds", seconds(histogram.getValueAtQuantile(QUANTILES[i])));
+            }
+            histogramArray.put(object);
+        }
+
+        JSONArray queueArray = new JSONArray();
+        for (Map.Entry<String, Series<Set<Collection<?>>>> entry : sorted(queues)) {
+            queueArray.put(entry.getValue().toJSON().put("value", depth(entry.getValue().value)));
+        }
+
+        return new JSONObject()
+                .put("timestamp", now)
+                .put("uptime_seconds", (now - startTime) / 1000d)
+                .put("counters", counterArray)
+                .put("histograms", histogramArray)
+                .put("queues", queueArray);
+    }
+
+    private static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String type = null;
+        for (Map.Entry<String, Series<LongAdder>> entry : sorted(counters)) {
+            Series<LongAdder> series = entry.getValue();
+            if(!series.name.equals(type))
+                sb.append("# TYPE ").append(type = series.name).append(" counter\n");
+            sb.append(entry.getKey()).append(' ').append(series.value.sum()).append('\n');
+        }
+        for (Map.Entry<String, Series<LatencyHistogram>> entry : sorted(histograms)) {
+            Series<LatencyHistogram> series = entry.getValue();
+            if(!series.name.equals(type))
+                sb.append("# TYPE ").append(type = series.name).append(" summary\n");
+            for (double q : QUANTILES) {
+                sb.append(key(series.name, series.labels, "quantile", String.valueOf(q))).append(' ')
+                        .append(seconds(series.value.getValueAtQuantile(q))).append('\n');
+            }
+            sb.append(key(series.name + "_sum", series.labels)).append(' ').append(seconds(series.value.getSum())).append('\n');
+            sb.append(key(series.name + "_count", series.labels)).append(' ').append(series.value.getCount()).append('\n');
+        }
+        for (Map.Entry<String, Series<Set<Collection<?>>>> entry : sorted(queues)) {
+            Series<Set<Collection<?>>> series = entry.getValue();
+            if(!series.name.equals(type))
+                sb.append("# TYPE ").append(type = series.name).append(" gauge\n");
+            sb.append(entry.getKey()).append(' ').append(depth(series.value)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long depth(Set<Collection<?>> queues) {
+        long depth = 0;
+        for (Collection<?> queue : queues.toArray(new Collection<?>[0])) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    private static void write(File file, String content) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the series ordered by name and labels, so that the series of a metric are adjacent.
+     */
+    private static <T> List<Map.Entry<String, Series<T>>> sorted(Map<String, Series<T>> map) {
+        List<Map.Entry<String, Series<T>>> entries = new ArrayList<>(map.entrySet());
+        entries.sort(Comparator.comparing((Map.Entry<String, Series<T>> entry) -> entry.getValue().name)
+                .thenComparing(Map.Entry::getKey));
+        return entries;
+    }
+
+    private static String key(String name, String[] labels, String... extra) {
+        if(labels.length == 0 && extra.length == 0)
+            return name;
+        StringJoiner joiner = new StringJoiner(",", name + "{", "}");
+        for (String[] pairs : new String[][]{labels, extra}) {
+            for (int i = 0; i + 1 < pairs.length; i += 2) {
+                joiner.add(pairs[i] + "=\"" + pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+            }
+        }
+        return joiner.toString();
+    }
+
+    private static double seconds(double nanos) {
+        return nanos / 1e9;
+    }
+
+    private static class Series<T> {
+        final String name;
+        final String[] labels;
+        final T value;
+
+        Series(String name, String[] labels, T value) {
+            this.name = name;
+            this.labels = labels;
+            this.value = value;
+        }
+
+        JSONObject toJSON() {
+            JSONObject labelObject = new JSONObject();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                labelObject.put(labels[i], labels[i + 1]);
+            }
+            return new JSONObject().put("name", name).put("labels", labelObject);
+        }
+    }
+
+    static class Exporter extends Thread {
+        final long interval;
+
+        Exporter(int interval) {
+            super("Metrics-Exporter");
+            this.interval = interval * 1000L;
+            setDaemon(true);
+            if(interval > 0)
+                start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Thread.sleep(interval);
+                    export();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
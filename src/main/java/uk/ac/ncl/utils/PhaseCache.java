@@ -0,0 +1,154 @@
+package uk.ac.ncl.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * Content-addressed store of phase outputs. An entry is a directory named by the SHA-256 hash of
+ * the inputs of the phase: fingerprints of the data files, the target and the settings the phase
+ * depends on. An entry is written to a working directory first and moved in place once complete,
+ * so that concurrent targets and worker processes never see partial entries.
+ */
+public class PhaseCache {
+    private final static String INPUTS = "inputs.json";
+    private final static Map<String, String> fingerprints = new HashMap<>();
+
+    private final File home;
+    private final Map<String, Integer> reused = new TreeMap<>();
+    private final Map<String, Integer> computed = new TreeMap<>();
+
+    public PhaseCache(File home) {
+        this.home = home;
+    }
+
+    /**
+     * @return the SHA-256 hash of the file content. Hashes are kept for the lifetime of the process
+     * as long as the file is not modified.
+     */
+    public static String fingerprint(File file) {
+        String id = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        synchronized (fingerprints) {
+            String fingerprint = fingerprints.get(id);
+            if(fingerprint == null) {
+                MessageDigest digest = digest();
+                byte[] buffer = new byte[1 << 16];
+                try(InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                    while(in.read(buffer) != -1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+                fingerprint = hex(digest.digest());
+                fingerprints.put(id, fingerprint);
+            }
+            return fingerprint;
+        }
+    }
+
+    /**
+     * @param inputs everything the output of the phase depends on. The order of the inputs does not matter.
+     */
+    public static String key(Map<String, Object> inputs) {
+        return hex(digest().digest(new JSONObject(new TreeMap<>(inputs)).toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the directory of the entry, or null if the phase has no output cached for the key.
+     */
+    public File lookup(String phase, String key) {
+        File entry = entry(phase, key);
+        return new File(entry, INPUTS).exists() ? entry : null;
+    }
+
+    /**
+     * @return an empty working directory for the output files of the phase.
+     */
+    public File begin(String phase, String key) {
+        File partial = new File(entry(phase, key).getPath() + "." + Thread.currentThread().getId() + ".partial");
+        try {
+            if(partial.exists())
+                FileUtils.deleteDirectory(partial);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        partial.mkdirs();
+        return partial;
+    }
+
+    /**
+     * Records the inputs of the phase in the working directory and moves it in place of the entry.
+     * If another thread or process has committed the entry meanwhile, its entry is kept.
+     */
+    public void commit(String phase, String key, File partial, Map<String, Object> inputs) {
+        File entry = entry(phase, key);
+        try {
+            FileUtils.writeStringToFile(new File(partial, INPUTS)
+                    , new JSONObject(new TreeMap<>(inputs)).toString(2), StandardCharsets.UTF_8);
+            if(entry.exists())
+                FileUtils.deleteDirectory(partial);
+            else
+                Files.move(partial.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if(entry.exists()) {
+                FileUtils.deleteQuietly(partial);
+                return;
+            }
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    public synchronized void recordReused(String phase) {
+        reused.merge(phase, 1, Integer::sum);
+    }
+
+    public synchronized void recordComputed(String phase) {
+        computed.merge(phase, 1, Integer::sum);
+    }
+
+    public synchronized String report() {
+        Set<String> phases = new TreeSet<>(reused.keySet());
+        phases.addAll(computed.keySet());
+        List<String> words = new ArrayList<>();
+        for (String phase : phases) {
+            int r = reused.getOrDefault(phase, 0);
+            words.add(MessageFormat.format("{0}: Reused = {1}/{2}", phase, r, r + computed.getOrDefault(phase, 0)));
+        }
+        return "# Phase Cache: " + (words.isEmpty() ? "Unused" : String.join(" | ", words));
+    }
+
+    private File entry(String phase, String key) {
+        return new File(home, phase.toLowerCase() + "/" + key);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package uk.ac.ncl.utils;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.*;
+
+/**
+ * Generates the triple files of a synthetic knowledge graph with known rules. Entities are drawn
+ * from a Zipf distribution, so that entity degrees follow a power law. The graph consists of random
+ * facts over the base predicates P0..Pn and of planted rules R0..Rm of length 1 to 3, whose bodies
+ * are paths over the base predicates. Each planted instance writes the facts of the body path and,
+ * unless it is dropped as noise, the head fact. Each dropped head fact is replaced by one between
+ * random entities, so that the confidence of a planted rule is about 1 - noise.
+ * <p>
+ * Facts are written as they are drawn, so that graphs of any size are generated in constant memory.
+ * Duplicate facts are not removed here, but by the graph builder. Base facts and body paths are
+ * written to the training file, and head facts are split into train/test/valid by the split ratio.
+ * The planted rules are written to planted_rules.txt.
+ */
+public class SyntheticGraph {
+    private final int entities;
+    private final int predicates;
+    private final long triples;
+    private final int rules;
+    private final double plantedRatio;
+    private final double noise;
+    private final double skew;
+    private final double[] splitRatio;
+    private final Random random;
+
+    private final List<String[]> bodies = new ArrayList<>();
+    private final long[] written = new long[3];
+
+    public SyntheticGraph(JSONObject settings, double[] splitRatio) {
+        entities = Helpers.readSetting(settings, "entities", 10000);
+        predicates = Helpers.readSetting(settings, "predicates", 10);
+        triples = settings.optLong("triples", 100000);
+        rules = Helpers.readSetting(settings, "rules", 6);
+        plantedRatio = Helpers.readSetting(settings, "planted_ratio", 0.2d);
+        noise = Helpers.readSetting(settings, "noise", 0.1d);
+        skew = Helpers.readSetting(settings, "skew", 0.8d);
+        this.splitRatio = splitRatio;
+        random = new Random(settings.optLong("seed", 1));
+    }
+
+    /**
+     * Writes the triple files of the graph configured under "synthetic" to [home]/data.
+     */
+    public static void generate(File config) {
+        JSONObject args = Helpers.buildJSONObject(config);
+        JSONObject settings = args.has("synthetic") ? args.getJSONObject("synthetic") : new JSONObject();
+        new SyntheticGraph(settings, IO.readSplitRatio(args.getJSONArray("split_ratio")))
+                .write(new File(args.getString("home"), "data"));
+    }
+
+    public void write(File dataHome) {
+        System.out.println("# GPFL System - Synthetic Graph Generation: ");
+        long s = System.currentTimeMillis();
+        dataHome.mkdirs();
+        for (int i = 0; i < rules; i++) {
+            String[] body = new String[i % 3 + 1];
+            for (int j = 0; j < body.length; j++) {
+                body[j] = "P" + random.nextInt(predicates);
+            }
+            bodies.add(body);
+        }
+
+        long ruleBudget = (long) (triples * plantedRatio) / Math.max(1, rules);
+        try(PrintWriter train = writer(new File(dataHome, "train.txt"));
+            PrintWriter test = writer(new File(dataHome, "test.txt"));
+            PrintWriter valid = writer(new File(dataHome, "valid.txt"))) {
+            PrintWriter[] splits = new PrintWriter[]{train, test, valid};
+            long count = 0;
+            for (int rule = 0; rule < rules; rule++) {
+                String[] body = bodies.get(rule);
+                long dropped = 0;
+                for (long i = 0; i < ruleBudget / (body.length + 1); i++) {
+                    int head = entity();
+                    int current = head;
+                    for (String predicate : body) {
+                        int next = entity();
+                        write(train, 0, current, predicate, next);
+                        current = next;
+                    }
+                    if(random.nextDouble() < noise)
+                        dropped++;
+                    else
+                        writeHead(splits, head, "R" + rule, current);
+                    count += body.length + 1;
+                }
+                for (long i = 0; i < dropped; i++) {
+                    writeHead(splits, entity(), "R" + rule, entity());
+                }
+            }
+            while(count < triples) {
+                write(train, 0, entity(), "P" + random.nextInt(predicates), entity());
+                count++;
+            }
+        }
+        writePlantedRules(new File(dataHome, "planted_rules.txt"));
+
+        NumberFormat f = NumberFormat.getNumberInstance(Locale.US);
+        System.out.println(MessageFormat.format("# Entities: {0} | Base Predicates: {1} | Planted Rules: {2} | Noise: {3}"
+                , f.format(entities), predicates, rules, noise));
+        System.out.println(MessageFormat.format("# Triple Sizes (Train/Test/Valid): {0}/{1}/{2} | Time: {3}s"
+                , f.format(written[0]), f.format(written[1]), f.format(written[2])
+                , (System.currentTimeMillis() - s) / 1000d));
+    }
+
+    private void writeHead(PrintWriter[] splits, int head, String predicate, int tail) {
+        double draw = random.nextDouble();
+        int split = draw < splitRatio[0] ? 0 : draw < splitRatio[0] + splitRatio[1] ? 1 : 2;
+        write(splits[split], split, head, predicate, tail);
+    }
+
+    private void write(PrintWriter writer, int split, int head, String predicate, int tail) {
+        writer.append('e').append(String.valueOf(head)).append('\t').append(predicate)
+                .append("\te").append(String.valueOf(tail)).append('\n');
+        written[split]++;
+    }
+
+    /**
+     * @return an entity drawn from a Zipf distribution with exponent skew, by inverse transform
+     * sampling of its continuous approximation. Ranks are scattered over the entity ids.
+     */
+    private int entity() {
+        double u = random.nextDouble();
+        double x = skew == 1d ? Math.pow(entities + 1, u)
+                : Math.pow(1 + u * (Math.pow(entities + 1, 1 - skew) - 1), 1 / (1 - skew));
+        long rank = Math.min(entities - 1, Math.max(0, (long) x - 1));
+        return (int) ((rank * 2654435761L) % entities);
+    }
+
+    private void writePlantedRules(File file) {
+        try(PrintWriter writer = writer(file)) {
+            for (int rule = 0; rule < rules; rule++) {
+                String[] body = bodies.get(rule);
+                List<String> atoms = new ArrayList<>();
+                for (int j = 0; j < body.length; j++) {
+                    String subject = j == 0 ? "X" : "V" + j;
+                    String object = j == body.length - 1 ? "Y" : "V" + (j + 1);
+                    atoms.add(body[j] + "(" + subject + "," + object + ")");
+                }
+                writer.println("R" + rule + "(X,Y) <- " + String.join(", ", atoms) + "\t" + (1d - noise));
+            }
+        }
+    }
+
+    private static PrintWriter writer(File file) {
+        try {
+            return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+}
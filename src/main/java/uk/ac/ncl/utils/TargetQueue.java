@@ -0,0 +1,195 @@
+package uk.ac.ncl.utils;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Work queue of targets kept in a shared directory, so that worker processes on one or more hosts
+ * can hand out targets among themselves. Each target is a file named by its position holding the
+ * target name. A worker claims a target by renaming its file from "pos.todo" to "pos.worker.running",
+ * which succeeds for exactly one worker, and marks it as "pos.done" when the outputs are written.
+ * <p>
+ * A claim is a lease: the worker touches the files of its claims every HEARTBEAT, see {@link #heartbeat},
+ * and the coordinator puts back the claims not touched for LEASE, see {@link #requeueExpired}, so that
+ * the targets of a worker that died on any host are handed out again. The lease is long enough to
+ * allow for some clock skew between the hosts sharing the directory.
+ */
+public class TargetQueue {
+    public final static long LEASE = 60_000;
+    private final static long HEARTBEAT = 10_000;
+    private final static String TODO = ".todo";
+    private final static String RUNNING = ".running";
+    private final static String DONE = ".done";
+    private final static String TARGETS = "targets.txt";
+
+    private final File home;
+
+    public TargetQueue(File home) {
+        this.home = home;
+    }
+
+    public static TargetQueue create(File home, List<String> targets) {
+        try {
+            if(home.exists())
+                FileUtils.deleteDirectory(home);
+            home.mkdirs();
+            FileUtils.writeLines(new File(home, TARGETS), StandardCharsets.UTF_8.name(), targets);
+            for (int i = 0; i < targets.size(); i++) {
+                FileUtils.writeStringToFile(new File(home, position(i) + TODO), targets.get(i), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return new TargetQueue(home);
+    }
+
+    public static class Claim {
+        public final int position;
+        public final String target;
+        final File file;
+
+        Claim(int position, String target, File file) {
+            this.position = position;
+            this.target = target;
+            this.file = file;
+        }
+    }
+
+    /**
+     * @return the first unclaimed target, or null if every target is claimed.
+     */
+    public Claim claim(String worker) {
+        for (File file : list(TODO)) {
+            String name = file.getName();
+            int position = Integer.parseInt(name.substring(0, name.length() - TODO.length()));
+            File claimed = new File(home, position(position) + "." + worker + RUNNING);
+            // The claim keeps the time of the todo file until touched, and is lost if put back meanwhile.
+            if(file.renameTo(claimed) && claimed.setLastModified(System.currentTimeMillis()))
+                return new Claim(position, read(claimed), claimed);
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the claim has expired and the target was put back to the queue, in which case
+     * another worker redoes it.
+     */
+    public boolean done(Claim claim) {
+        return claim.file.renameTo(new File(home, position(claim.position) + DONE));
+    }
+
+    /**
+     * Starts a daemon thread renewing the claims of the worker every HEARTBEAT while the process lives.
+     */
+    public void heartbeat(String worker) {
+        Thread thread = new Thread(() -> {
+            while(true) {
+                for (File file : list("." + worker + RUNNING)) {
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                try {
+                    Thread.sleep(HEARTBEAT);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "TargetQueue-Heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Puts the claims not renewed for the lease back to the queue, whichever worker made them.
+     *
+     * @return the workers of the claims put back.
+     */
+    public List<String> requeueExpired(long lease) {
+        List<String> workers = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (File file : list(RUNNING)) {
+            if(now - file.lastModified() < lease)
+                continue;
+            String name = file.getName();
+            String position = name.substring(0, name.indexOf('.'));
+            if(file.renameTo(new File(home, position + TODO)))
+                workers.add(name.substring(name.indexOf('.') + 1, name.length() - RUNNING.length()));
+        }
+        return workers;
+    }
+
+    /**
+     * Puts the targets claimed by the worker back to the queue, e.g. after the worker died.
+     *
+     * @return the number of targets put back.
+     */
+    public int requeue(String worker) {
+        int count = 0;
+        for (File file : list("." + worker + RUNNING)) {
+            String position = file.getName().substring(0, file.getName().indexOf('.'));
+            if(file.renameTo(new File(home, position + TODO)))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return all targets in queue order, whatever their state.
+     */
+    public List<String> targets() {
+        try {
+            return FileUtils.readLines(new File(home, TARGETS), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    public int size() {
+        return targets().size();
+    }
+
+    public int finished() {
+        return list(DONE).size();
+    }
+
+    /**
+     * @return the number of targets waiting to be claimed.
+     */
+    public int pending() {
+        return list(TODO).size();
+    }
+
+    public boolean isFinished() {
+        return finished() == size();
+    }
+
+    private List<File> list(String suffix) {
+        File[] files = home.listFiles((dir, name) -> name.endsWith(suffix));
+        if(files == null)
+            return new ArrayList<>();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static String read(File file) {
+        try {
+            return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    private static String position(int position) {
+        return String.format("%06d", position);
+    }
+}
@@ -0,0 +1,167 @@
+package uk.ac.ncl.utils;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timeline of the activity of the threads of a run, written to a file in the Chrome Trace Event format
+ * when the process ends, so that it can be opened in a trace viewer such as chrome://tracing or Perfetto.
+ * Tracing is off unless {@link #start} is called before the traced threads are created.
+ * <p>
+ * An event is recorded by taking its start from {@link #begin()} and passing it to {@link #end}
+ * once it is done. Waits, e.g. for a lock or a queue, are recorded by {@link #waited} only if they
+ * take longer than MIN_WAIT. Events are kept in a buffer owned by the recording thread, so that
+ * recording needs no synchronization between threads. When tracing is off, begin() returns 0 and
+ * nothing is recorded.
+ */
+public class Tracer {
+    private final static long MIN_WAIT = 100_000;
+    private final static int MAX_EVENTS = 1 << 20;
+    private final static long origin = System.nanoTime();
+    private final static List<Buffer> buffers = Collections.synchronizedList(new ArrayList<>());
+    private final static ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(Tracer::newBuffer);
+
+    private static boolean enabled = false;
+    private static File file;
+
+    /**
+     * Starts tracing. The trace is written to the file when the process ends.
+     */
+    public static synchronized void start(File file) {
+        if(!enabled)
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracer::write, "Tracer-Shutdown"));
+        Tracer.file = file;
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start of an event, or 0 if tracing is off.
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void end(long start, String category, String name) {
+        end(start, category, name, null);
+    }
+
+    /**
+     * Records the event from start to now.
+     *
+     * @param arg shown with the event in the viewer, converted to a string when the event is recorded
+     *            so that the buffers do not keep the traced objects alive
+     */
+    public static void end(long start, String category, String name, Object arg) {
+        if(start == 0)
+            return;
+        buffer.get().add(start, System.nanoTime() - start, category, name, arg == null ? null : arg.toString());
+    }
+
+    /**
+     * Records the wait from start to now if it takes longer than MIN_WAIT.
+     */
+    public static void waited(long start, String name) {
+        if(start == 0)
+            return;
+        long duration = System.nanoTime() - start;
+        if(duration >= MIN_WAIT)
+            buffer.get().add(start, duration, "wait", name, null);
+    }
+
+    private static Buffer newBuffer() {
+        Buffer buffer = new Buffer(Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private static synchronized void write() {
+        long s = System.currentTimeMillis();
+        long events = 0, dropped = 0;
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            boolean first = true;
+            for (Buffer buffer : buffers.toArray(new Buffer[0])) {
+                List<Event> list = buffer.snapshot();
+                if(!first)
+                    writer.write(",\n");
+                first = false;
+                writer.write("{\"ph\":\"M\",\"pid\":1,\"tid\":" + buffer.tid
+                        + ",\"name\":\"thread_name\",\"args\":{\"name\":" + JSONObject.quote(buffer.thread) + "}}");
+                for (Event event : list) {
+                    writer.write(",\n{\"ph\":\"X\",\"pid\":1,\"tid\":" + buffer.tid
+                            + ",\"ts\":" + micros(event.start - origin)
+                            + ",\"dur\":" + micros(event.duration)
+                            + ",\"cat\":" + JSONObject.quote(event.category)
+                            + ",\"name\":" + JSONObject.quote(event.name));
+                    if(event.arg != null)
+                        writer.write(",\"args\":{\"arg\":" + JSONObject.quote(event.arg) + "}");
+                    writer.write("}");
+                }
+                events += list.size();
+                dropped += buffer.dropped;
+            }
+            writer.write("\n]}\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("# Trace: " + file.getPath() + " | Events = " + events + " | Dropped = " + dropped
+                + " | Time: " + (System.currentTimeMillis() - s) / 1000d + "s");
+    }
+
+    private static String micros(long nanos) {
+        return String.valueOf(nanos / 1000d);
+    }
+
+    /**
+     * Events of a thread. Only the owner thread adds events, so the lock is uncontended except while
+     * the trace is written.
+     */
+    private static class Buffer {
+        final long tid;
+        final String thread;
+        final List<Event> events = new ArrayList<>();
+        long dropped = 0;
+
+        Buffer(Thread thread) {
+            this.tid = thread.getId();
+            this.thread = thread.getName();
+        }
+
+        synchronized void add(long start, long duration, String category, String name, String arg) {
+            if(events.size() < MAX_EVENTS)
+                events.add(new Event(start, duration, category, name, arg));
+            else
+                dropped++;
+        }
+
+        synchronized List<Event> snapshot() {
+            return new ArrayList<>(events);
+        }
+    }
+
+    private static class Event {
+        final long start;
+        final long duration;
+        final String category;
+        final String name;
+        final String arg;
+
+        Event(long start, long duration, String category, String name, String arg) {
+            this.start = start;
+            this.duration = duration;
+            this.category = category;
+            this.name = name;
+            this.arg = arg;
+        }
+    }
+}
@@ -8,13 +8,12 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.json.JSONArray;
 import uk.ac.ncl.core.Engine;
+import uk.ac.ncl.utils.AsyncWriter;
 import uk.ac.ncl.utils.IO;
 import uk.ac.ncl.utils.Logger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -62,10 +61,10 @@ public class Ensemble extends Engine {
         }
         BlockingQueue<String> contents = new LinkedBlockingDeque<>(100000);
         Thread reader = new PredictionReader(targetMap, contents);
-        Thread writer = new PredictionWriter(new File(out, "predictions.txt"), contents, reader);
+        AsyncWriter<String> writer = AsyncWriter.text("PredictionWriter", new File(out, "predictions.txt"), contents, false, true);
         try {
             reader.join();
-            writer.join();
+            writer.close();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
@@ -90,35 +89,6 @@ public class Ensemble extends Engine {
         }
     }
 
-    class PredictionWriter extends Thread {
-        File in;
-        BlockingQueue<String> queue;
-        Thread reader;
-
-        PredictionWriter(File in, BlockingQueue<String> queue, Thread reader) {
-            this.queue = queue;
-            this.in = in;
-            this.reader = reader;
-            start();
-        }
-
-        @Override
-        public void run() {
-            try(PrintWriter writer = new PrintWriter(new FileWriter(in, false))) {
-                sleep(200);
-                while(!queue.isEmpty() || reader.isAlive()) {
-                    String content = queue.poll();
-                    if(content != null) {
-                        writer.println(content);
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.exit(-1);
-            }
-        }
-    }
-
     private void readPredictions(File file, Collection<String> targets, BlockingQueue<String> queue) {
         try(LineIterator l = FileUtils.lineIterator(new File(file, "predictions.txt"))) {
             while(l.hasNext()) {
@@ -5,6 +5,7 @@ import com.google.common.collect.MultimapBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.neo4j.graphdb.Transaction;
+import uk.ac.ncl.core.Context;
 import uk.ac.ncl.core.Engine;
 import uk.ac.ncl.core.GraphOps;
 import uk.ac.ncl.structure.*;
@@ -50,8 +51,8 @@ public class ValidRuleEvalEfficiency extends Engine {
         try (Transaction tx = graph.beginTx()) {
             for (String target : targets) {
                 double allSinTime = 0, allColTime = 0;
-                Set<Rule> rules = readRules(target);
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
+                Set<Rule> rules = readRules(target, IO.isTargetFunctional(trainPairs));
 
                 Multimap<String, Rule> categories = MultimapBuilder.treeKeys().arrayListValues().build();
                 for (Rule rule : rules) {
@@ -114,10 +115,16 @@ public class ValidRuleEvalEfficiency extends Engine {
         return sampled;
     }
 
-    public Set<Rule> readRules(String target) {
+    /**
+     * Reads the rules of the target, computing their measures under the functionality of the target.
+     */
+    public Set<Rule> readRules(String target, boolean functional) {
         Set<Rule> rules = new HashSet<>();
         int ruleCount = 0;
         File ruleIndexFile = new File(ruleIndexHome, target.replaceAll("[:/<>]", "_") + ".txt");
+        Context context = new Context(target);
+        context.setTargetFunctional(functional);
+        context.attach();
         try (LineIterator l = FileUtils.lineIterator(ruleIndexFile)) {
             while(l.hasNext()) {
                 String line = l.nextLine();
@@ -133,11 +140,7 @@ public class ValidRuleEvalEfficiency extends Engine {
                         }
                     } else {
                         String[] words = line.split("ABS: ")[1].split("\t");
-                        rule.stats.setStandardConf(Double.parseDouble(words[3]));
-                        rule.stats.setSmoothedConf(Double.parseDouble(words[4]));
-                        rule.stats.setPcaConf(Double.parseDouble(words[5]));
-                        rule.stats.setApcaConf(Double.parseDouble(words[6]));
-                        rule.stats.setHeadCoverage(Double.parseDouble(words[7]));
+                        rule.stats.readIndexString(words, 3);
                         ruleCount++;
                     }
                     rules.add(rule);
@@ -146,6 +149,8 @@ public class ValidRuleEvalEfficiency extends Engine {
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
+        } finally {
+            Context.detach();
         }
 
         Logger.println(MessageFormat.format("# Start Analyzing for Target: {0} | Rule Size: {1}", target, ruleCount));
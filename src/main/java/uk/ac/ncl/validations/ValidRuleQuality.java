@@ -48,7 +48,8 @@ public class ValidRuleQuality extends Engine {
 
         try(Transaction tx = graph.beginTx()) {
             for (String target : targets) {
-                for (Rule rule : IO.readRules(target, ruleIndexHome, graph)) {
+                boolean functional = IO.isTargetFunctional(IO.readPair(graph, trainFile, target));
+                for (Rule rule : IO.readRules(target, ruleIndexHome, graph, functional)) {
                     Template template = (Template) rule;
                     if(template.isClosed()) {
                         typeSet.add("CAR");
@@ -198,7 +199,7 @@ public class ValidRuleQuality extends Engine {
                 Set<Future<?>> futures = new HashSet<>();
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
-                List<Rule> localRules = readRules(target, ruleIndexHome, graph);
+                List<Rule> localRules = readRules(target, ruleIndexHome, graph, IO.isTargetFunctional(trainPairs));
                 List<Rule> visited = new ArrayList<>();
 
                 long timer = System.currentTimeMillis();
@@ -328,8 +329,8 @@ public class ValidRuleQuality extends Engine {
         }
     }
 
-    private List<Rule> readRules(String target, File ruleIndexHome, GraphDatabaseService graph) {
-        Set<Rule> templates = IO.readRules(target, ruleIndexHome, graph);
+    private List<Rule> readRules(String target, File ruleIndexHome, GraphDatabaseService graph, boolean functional) {
+        Set<Rule> templates = IO.readRules(target, ruleIndexHome, graph, functional);
         List<Rule> sortedRules = new ArrayList<>();
         for (Rule template : templates) {
             if(template.isClosed())
@@ -373,7 +374,7 @@ public class ValidRuleQuality extends Engine {
 
                 Set<Pair> trainPairs = IO.readPair(graph, trainFile, target);
                 Set<Pair> testPairs = IO.readPair(graph, testFile, target);
-                List<Rule> sortedRules = readRules(target, ruleIndexHome, graph);
+                List<Rule> sortedRules = readRules(target, ruleIndexHome, graph, IO.isTargetFunctional(trainPairs));
                 sortedRules.sort(IO.ruleComparatorBySC());
 
                 for (Rule rule : sortedRules.subList(0, Math.min(topRulePerTargetPrecision, sortedRules.size()))) {